@@ -0,0 +1,365 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//Logging off the hot path. System.out.println() takes the PrintStream lock and writes to the console synchronously, so under load
+//every handler thread queues up behind the terminal - the console becomes a global lock.
+//
+//How it works:
+    //1. A handler thread only claims a slot in a fixed ring buffer (one CAS) and stores the template + arguments there.
+    //   No String is built, nothing is formatted, no lock is taken - formatting happens on the writer thread.
+    //2. One background thread drains the ring in batches, formats each record, and flushes the output once per batch.
+    //3. Below the level threshold a call returns after one comparison - the arguments are never even looked at.
+    //4. When the ring is full: DROP (default) counts the record as dropped and returns at once - a handler never waits for
+    //   the log; BLOCK waits for a free slot instead, for when no line may be lost.
+//
+//Messages use {} placeholders:  LOG.info(ANSI_RED + "Received number from Client {}" + ANSI_RESET, number)
+//(constant concatenation is folded by the compiler, so the colour codes cost nothing at runtime).
+//The long overloads exist so numbers are not boxed on the calling thread.
+//
+//The process-wide logger (getDefault()) is configured with system properties:
+    //-Dlog.level=DEBUG|INFO|WARN|ERROR|OFF (INFO)  -Dlog.file=server.log (stdout)  -Dlog.policy=DROP|BLOCK (DROP)  -Dlog.bufferSize=8192
+public class AsyncLogger {
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        OFF
+    }
+
+    public enum FullPolicy {
+        DROP,
+        BLOCK
+    }
+
+    //One preallocated record. sequence tells producers and the consumer whose turn it is:
+    //  sequence == position      -> free, a producer may claim it for that position
+    //  sequence == position + 1  -> written, the consumer may read it
+    //after reading, the consumer sets it to position + capacity (free for the next lap)
+    private static final class Slot {
+        volatile long sequence;
+        Level level;
+        long timeMillis;
+        String threadName;
+        String template;
+        Object arg0;
+        Object arg1;
+        long number;
+        //true when the long overload was used - the number replaces the first {}
+        boolean hasNumber;
+    }
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    //idle writer thread backs off up to this long between polls
+    private static final long MAX_IDLE_PARK_NANOS = 10_000_000;
+
+    private static volatile AsyncLogger defaultLogger;
+    //see addLoggingShutdownHook()
+    private static final List<Thread> LOGGING_SHUTDOWN_HOOKS = new CopyOnWriteArrayList<>();
+
+    private final Slot[] ring;
+    private final int mask;
+    //next position producers claim
+    private final AtomicLong tail = new AtomicLong();
+    //next position the writer thread reads - only touched by that thread
+    private long head;
+    private final FullPolicy policy;
+    private volatile Level threshold;
+    private final Writer out;
+    private final StringBuilder line = new StringBuilder(256);
+    private final LongAdder dropped = new LongAdder();
+    //dropped count already reported in the output
+    private long droppedReported;
+    private final Thread writerThread;
+    private volatile boolean closed;
+
+    //capacity is rounded up to a power of two, so a position maps to a slot with a mask
+    public AsyncLogger(OutputStream output, Level threshold, FullPolicy policy, int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.ring = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Slot();
+            ring[i].sequence = i;
+        }
+        this.mask = size - 1;
+        this.threshold = threshold;
+        this.policy = policy;
+        this.out = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+        this.writerThread = new Thread(this::drainLoop, "async-logger");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    //Registers a JVM shutdown hook that logs while it runs (e.g. Lifecycle.stopOnShutdown) - the default logger stays open until it is done
+    public static void addLoggingShutdownHook(Thread hook) {
+        LOGGING_SHUTDOWN_HOOKS.add(hook);
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    //The process-wide logger, created on first use from the log.* system properties. Whatever is still queued is written at exit.
+    public static AsyncLogger getDefault() {
+        AsyncLogger logger = defaultLogger;
+        if (logger == null) {
+            synchronized (AsyncLogger.class) {
+                logger = defaultLogger;
+                if (logger == null) {
+                    logger = fromSystemProperties();
+                    AsyncLogger created = logger;
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        //JVM shutdown hooks run concurrently - let the ones that still log (a graceful stop) finish first
+                        for (Thread hook : LOGGING_SHUTDOWN_HOOKS) {
+                            try {
+                                hook.join();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                break;
+                            }
+                        }
+                        created.close();
+                    }, "async-logger-shutdown"));
+                    defaultLogger = logger;
+                }
+            }
+        }
+        return logger;
+    }
+
+    private static AsyncLogger fromSystemProperties() {
+        Level level = Level.valueOf(System.getProperty("log.level", "INFO").toUpperCase());
+        FullPolicy policy = FullPolicy.valueOf(System.getProperty("log.policy", "DROP").toUpperCase());
+        int capacity = Integer.parseInt(System.getProperty("log.bufferSize", "8192"));
+        String file = System.getProperty("log.file");
+        OutputStream output;
+        if (file == null) {
+            output = System.out;
+        } else {
+            try {
+                output = new FileOutputStream(file, true);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open log file " + file, e);
+            }
+        }
+        return new AsyncLogger(output, level, policy, capacity);
+    }
+
+    public void setLevel(Level level) {
+        this.threshold = level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    //records lost because the ring was full (DROP policy)
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    public void debug(String template) {
+        log(Level.DEBUG, template, null, null, 0, false);
+    }
+
+    public void debug(String template, Object arg) {
+        log(Level.DEBUG, template, arg, null, 0, false);
+    }
+
+    public void debug(String template, long number) {
+        log(Level.DEBUG, template, null, null, number, true);
+    }
+
+    public void info(String template) {
+        log(Level.INFO, template, null, null, 0, false);
+    }
+
+    public void info(String template, Object arg) {
+        log(Level.INFO, template, arg, null, 0, false);
+    }
+
+    public void info(String template, Object arg0, Object arg1) {
+        log(Level.INFO, template, arg0, arg1, 0, false);
+    }
+
+    public void info(String template, long number) {
+        log(Level.INFO, template, null, null, number, true);
+    }
+
+    public void warn(String template) {
+        log(Level.WARN, template, null, null, 0, false);
+    }
+
+    public void warn(String template, Object arg) {
+        log(Level.WARN, template, arg, null, 0, false);
+    }
+
+    public void warn(String template, Object arg0, Object arg1) {
+        log(Level.WARN, template, arg0, arg1, 0, false);
+    }
+
+    //a Throwable as the last argument is printed with its stack trace after the message
+    public void error(String template, Object arg) {
+        log(Level.ERROR, template, arg, null, 0, false);
+    }
+
+    public void error(String template, Object arg0, Object arg1) {
+        log(Level.ERROR, template, arg0, arg1, 0, false);
+    }
+
+    private void log(Level level, String template, Object arg0, Object arg1, long number, boolean hasNumber) {
+        if (level.compareTo(threshold) < 0 || closed) {
+            return;
+        }
+        long position = claim();
+        if (position < 0) {
+            dropped.increment();
+            return;
+        }
+        Slot slot = ring[(int) (position & mask)];
+        slot.level = level;
+        slot.timeMillis = System.currentTimeMillis();
+        slot.threadName = Thread.currentThread().getName();
+        slot.template = template;
+        slot.arg0 = arg0;
+        slot.arg1 = arg1;
+        slot.number = number;
+        slot.hasNumber = hasNumber;
+        //publish - the volatile write makes the fields above visible to the writer thread
+        slot.sequence = position + 1;
+    }
+
+    //Claims the next position in the ring, or returns -1 when the ring is full and the policy is DROP
+    private long claim() {
+        while (true) {
+            long position = tail.get();
+            long sequence = ring[(int) (position & mask)].sequence;
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (sequence < position) {
+                //the writer has not freed this slot yet - the ring is full
+                if (policy == FullPolicy.DROP) {
+                    return -1;
+                }
+                LockSupport.parkNanos(50_000);
+            }
+            //else another producer claimed this position first - retry with the new tail
+        }
+    }
+
+    private void drainLoop() {
+        long idlePark = 50_000;
+        while (true) {
+            int drained = drainBatch();
+            if (drained > 0) {
+                idlePark = 50_000;
+            } else if (closed) {
+                return;
+            } else {
+                LockSupport.parkNanos(idlePark);
+                idlePark = Math.min(idlePark * 2, MAX_IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    //writes every published record, then flushes once - returns how many were written
+    private int drainBatch() {
+        int count = 0;
+        try {
+            while (true) {
+                Slot slot = ring[(int) (head & mask)];
+                if (slot.sequence != head + 1) {
+                    break;
+                }
+                format(slot);
+                out.append(line);
+                slot.template = null;
+                slot.arg0 = null;
+                slot.arg1 = null;
+                slot.threadName = null;
+                //free for the producers' next lap around the ring
+                slot.sequence = head + ring.length;
+                head++;
+                count++;
+            }
+            long droppedNow = dropped.sum();
+            if (droppedNow != droppedReported) {
+                out.append("[async-logger] ").append(String.valueOf(droppedNow - droppedReported)).append(" log records dropped (ring full)\n");
+                droppedReported = droppedNow;
+                count++;
+            }
+            if (count > 0) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            //the output is gone (closed stdout, full disk) - keep draining so producers never block on a dead log
+        }
+        return count;
+    }
+
+    private void format(Slot slot) {
+        line.setLength(0);
+        line.append(TIME_FORMAT.format(Instant.ofEpochMilli(slot.timeMillis)))
+                .append(' ').append(slot.level).append(" [").append(slot.threadName).append("] ");
+        String template = slot.template;
+        //the long argument (if any) fills the first {}, then arg0, then arg1
+        int used = slot.hasNumber ? -1 : 0;
+        int from = 0;
+        int placeholder;
+        while ((placeholder = template.indexOf("{}", from)) >= 0) {
+            line.append(template, from, placeholder);
+            if (used == -1) {
+                line.append(slot.number);
+            } else if (slot.hasNumber) {
+                line.append("{}");
+            } else if (used == 0) {
+                line.append(slot.arg0);
+            } else if (used == 1) {
+                line.append(slot.arg1);
+            } else {
+                line.append("{}");
+            }
+            used++;
+            from = placeholder + 2;
+        }
+        line.append(template, from, template.length()).append('\n');
+        //an argument no placeholder consumed is printed as a stack trace if it is a Throwable
+        Object leftover = null;
+        if (used <= 0) {
+            leftover = slot.arg1 != null ? slot.arg1 : slot.arg0;
+        } else if (used == 1) {
+            leftover = slot.arg1;
+        }
+        if (leftover instanceof Throwable) {
+            StringWriter trace = new StringWriter();
+            ((Throwable) leftover).printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+    }
+
+    //Stops taking records, writes whatever is queued and flushes - the output itself is left open (it may be System.out)
+    public void close() {
+        closed = true;
+        try {
+            writerThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
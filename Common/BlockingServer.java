@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//Accept loop + graceful stop for the thread based servers (MultiThreaded, ThreadPool, the load balancer's backends).
+//One acceptor thread hands every client to a ConnectionHandler. stop() closes the listening socket (accept() throws and the loop
+//ends), waits for the connections already handed over, and force-closes whatever is still open at the deadline.
+//
+//Replaces the old setSoTimeout(20000) on the ServerSocket: the only way out of the accept loop used to be 20 s without a client.
+public class BlockingServer implements Lifecycle {
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
+
+    private final String name;
+    private final ConnectionHandler connectionHandler;
+    private volatile ServerSocket serverSocket;
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    //name: used for the thread names and log lines
+    public BlockingServer(String name, ConnectionHandler connectionHandler) {
+        this.name = name;
+        this.connectionHandler = connectionHandler;
+    }
+
+    @Override
+    public void start(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+        new Thread(this::acceptLoop, name + "-acceptor").start();
+    }
+
+    private void acceptLoop() {
+        while (!stopping.get()) {
+            Socket clientSocket;
+            try {
+                // Wait for a client to connect (blocks until a connection arrives or stop() closes the server socket)
+                clientSocket = serverSocket.accept();
+            } catch (IOException ex) {
+                if (!stopping.get()) {
+                    LOG.error(name + " stopped accepting", ex);
+                    stop(0, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            connectionHandler.handle(clientSocket);
+        }
+    }
+
+    @Override
+    public void stop(long drainTimeout, TimeUnit unit) {
+        if (!stopping.compareAndSet(false, true)) {
+            return;
+        }
+        LOG.info(name + " stopping - draining {} connection(s) for up to {} ms", connectionHandler.getOpenConnections(), unit.toMillis(drainTimeout));
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {}
+        connectionHandler.shutdown();
+        new Thread(() -> {
+            try {
+                if (!connectionHandler.awaitTermination(drainTimeout, unit)) {
+                    LOG.warn(name + " drain timeout over - closing {} connection(s)", connectionHandler.forceClose());
+                    connectionHandler.awaitTermination(1, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                connectionHandler.forceClose();
+            } finally {
+                connectionHandler.getMetrics().stopEndpoint();
+                LOG.info(name + " stopped");
+                terminated.countDown();
+            }
+        }, name + "-drain").start();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    public ConnectionHandler getConnectionHandler() {
+        return connectionHandler;
+    }
+}
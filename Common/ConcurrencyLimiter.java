@@ -0,0 +1,84 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Admission control: at most limit requests are inside the server at once, and the limit follows the observed latency
+//(see LimitAlgorithm). A request over the limit is refused up front - under overload the server answers the excess with fast
+//rejections while the admitted requests keep their normal latency, instead of everyone queueing into a timeout.
+//
+//Usage, one acquire and exactly one release per request:
+//  if (!limiter.tryAcquire()) -> reject
+//  ... handle ...
+//  limiter.onSuccess(startNanos)   or   limiter.onDropped() on failure   or   limiter.onIgnore() if it says nothing about load
+public class ConcurrencyLimiter {
+    private final LimitAlgorithm algorithm;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+    //one update at a time - a sample arriving while another thread updates is skipped instead of waiting
+    private final AtomicBoolean updating = new AtomicBoolean();
+
+    //METRICS - standalone until bindMetrics() puts them into a registry
+    private Counter rejected = new Counter();
+
+    public ConcurrencyLimiter(LimitAlgorithm algorithm, int initialLimit) {
+        if (initialLimit < 1) {
+            throw new IllegalArgumentException("initialLimit must be at least 1");
+        }
+        this.algorithm = algorithm;
+        this.limit = initialLimit;
+    }
+
+    //Registers <prefix>_concurrency_limit, _in_flight and _rejected_total - call before any traffic
+    public void bindMetrics(MetricsRegistry metrics, String prefix) {
+        metrics.gauge(prefix + "_concurrency_limit", "Current adaptive concurrency limit", () -> limit);
+        metrics.gauge(prefix + "_concurrency_in_flight", "Requests admitted and not finished yet", inFlight::get);
+        rejected = metrics.counter(prefix + "_concurrency_rejected_total", "Requests refused because the concurrency limit was reached");
+    }
+
+    //Admits the request if fewer than limit are in flight - lock free
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    //the request completed normally - startNanos is when it arrived (System.nanoTime()), so queue wait counts as latency
+    public void onSuccess(long startNanos) {
+        sample(System.nanoTime() - startNanos, false);
+    }
+
+    //the request failed or timed out
+    public void onDropped() {
+        sample(0, true);
+    }
+
+    //release without a sample (e.g. rejected further down, or a malformed request)
+    public void onIgnore() {
+        inFlight.decrementAndGet();
+    }
+
+    private void sample(long rttNanos, boolean dropped) {
+        int current = inFlight.getAndDecrement();
+        if (updating.compareAndSet(false, true)) {
+            try {
+                limit = Math.max(1, algorithm.update(limit, rttNanos, current, dropped));
+            } finally {
+                updating.set(false);
+            }
+        }
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
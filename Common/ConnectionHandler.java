@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+//Runs the per-connection logic of a blocking server (MultiThreaded getConsumer(), ThreadPool handleClient) with a selectable execution strategy,
+//so the same handler code can be compared across strategies.
+//
+//Modes:
+    //1. PLATFORM_PER_CONNECTION - new Thread per connection (MultiThreaded). No queueing, but every connection costs a full OS thread + stack.
+    //2. FIXED_POOL - poolSize threads (ThreadPool). Bounded threads, but connections beyond poolSize wait in the pool's queue.
+    //3. VIRTUAL_PER_CONNECTION - a virtual thread per connection (JDK 21+). Blocking reads unmount the virtual thread, so thousands
+    //   of idle connections only cost a small heap-allocated stack each.
+    //4. WORK_STEALING_POOL - like FIXED_POOL, but on per-worker deques with stealing instead of one shared queue (see ProcessingPool).
+//The two pool modes can be resized at runtime - hand getPool() to a PoolAutoTuner instead of guessing poolSize.
+//
+//Overload: the pool modes' queue is bounded (queueCapacity) - when it is full the OverloadPolicy decides: FAIL_FAST answers
+//"Server busy" and closes, CALLER_RUNS makes the accept thread handle the connection itself (so it stops accepting meanwhile).
+//An optional ConcurrencyLimiter caps the connections inside the handler in every mode, with a limit that follows the latency.
+public class ConnectionHandler {
+    public enum Mode {
+        PLATFORM_PER_CONNECTION,
+        FIXED_POOL,
+        VIRTUAL_PER_CONNECTION,
+        WORK_STEALING_POOL
+    }
+
+    //pool modes' queue bound when none is given
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final byte[] BUSY_LINE = (OverloadPolicy.BUSY_RESPONSE + "\n").getBytes(StandardCharsets.US_ASCII);
+
+    private final Mode mode;
+    private final Consumer<Socket> logic;
+    private final Executor executor;
+    //set for VIRTUAL_PER_CONNECTION only
+    private final ExecutorService executorService;
+    //set for FIXED_POOL and WORK_STEALING_POOL only
+    private final ProcessingPool pool;
+    //connections handed over and not finished yet (queued or inside the logic) - what a graceful stop waits for, and force-closes
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    //keep-alive connections blocked waiting for their next request - a graceful stop ends these at once (see awaitRequest)
+    private final Set<Socket> idle = ConcurrentHashMap.newKeySet();
+    private volatile boolean stopping;
+    //connections currently inside the handler logic
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peakActive = new AtomicInteger();
+
+    //METRICS - the servers publish these with registerJmx()/startEndpoint()
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final Counter handled = metrics.counter("blocking_connections_handled_total", "Connections handed to the handler");
+    private final Counter errors = metrics.counter("blocking_handler_errors_total", "Handler runs that ended with an unexpected exception");
+    //from handle() to the end of the logic - includes the wait in FIXED_POOL's queue
+    private final LatencyHistogram connectionTime = metrics.histogram("blocking_connection_seconds", "Queue wait + handling time per connection");
+    private final Counter rejectedQueueFull = metrics.counter("blocking_rejected_total", "reason=\"queue_full\"", "Connections answered with Server busy, by cause");
+    private final Counter rejectedLimit = metrics.counter("blocking_rejected_total", "reason=\"concurrency_limit\"", "Connections answered with Server busy, by cause");
+    //null = no admission control
+    private volatile ConcurrencyLimiter limiter;
+
+    //poolSize is only used by the pool modes
+    public ConnectionHandler(Mode mode, int poolSize, Consumer<Socket> logic) {
+        this(mode, poolSize, DEFAULT_QUEUE_CAPACITY, OverloadPolicy.FAIL_FAST, logic);
+    }
+
+    //poolSize, queueCapacity and overload are only used by the pool modes - the per-connection modes have no queue to fill
+    public ConnectionHandler(Mode mode, int poolSize, int queueCapacity, OverloadPolicy overload, Consumer<Socket> logic) {
+        if (overload == OverloadPolicy.PAUSE_READS) {
+            throw new IllegalArgumentException("PAUSE_READS needs a selector - CALLER_RUNS is the blocking equivalent (stop accepting)");
+        }
+        this.mode = mode;
+        this.logic = logic;
+        switch (mode) {
+            case PLATFORM_PER_CONNECTION:
+                this.executorService = null;
+                this.pool = null;
+                this.executor = task -> new Thread(task).start();
+                break;
+            case FIXED_POOL:
+            case WORK_STEALING_POOL:
+                this.executorService = null;
+                this.pool = new ProcessingPool(mode == Mode.FIXED_POOL ? ProcessingPool.Kind.SHARED_QUEUE : ProcessingPool.Kind.WORK_STEALING,
+                        poolSize, queueCapacity, overload);
+                this.executor = pool;
+                pool.bindMetrics(metrics, "blocking");
+                break;
+            case VIRTUAL_PER_CONNECTION:
+                this.executorService = newVirtualThreadPerTaskExecutor();
+                this.pool = null;
+                this.executor = executorService;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        metrics.gauge("blocking_connections_active", "Connections inside the handler logic", active::get);
+        metrics.gauge("blocking_connections_peak", "Most connections inside the handler logic at once", peakActive::get);
+    }
+
+    //Parses a mode name from the command line, e.g. "VIRTUAL_PER_CONNECTION", falling back to the given default
+    public static Mode modeFromArgs(String[] args, Mode defaultMode) {
+        return args.length > 0 ? Mode.valueOf(args[0].toUpperCase()) : defaultMode;
+    }
+
+    //Admission control for every following handle() - limiter.bindMetrics() is up to the caller
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    //Hands the accepted socket to the strategy - returns immediately, the logic runs on another thread
+    //(on the calling thread with CALLER_RUNS and a full queue)
+    public void handle(Socket clientSocket) {
+        handled.increment();
+        long handedOverNanos = System.nanoTime();
+        ConcurrencyLimiter limiter = this.limiter;
+        if (limiter != null && !limiter.tryAcquire()) {
+            rejectedLimit.increment();
+            reject(clientSocket);
+            return;
+        }
+        open.add(clientSocket);
+        try {
+            executor.execute(() -> {
+                int now = active.incrementAndGet();
+                peakActive.accumulateAndGet(now, Math::max);
+                boolean failed = true;
+                try {
+                    logic.accept(clientSocket);
+                    failed = false;
+                } catch (RuntimeException e) {
+                    //e.g. NumberFormatException on a bad request line - counted, then left to the thread's default handler as before
+                    errors.increment();
+                    throw e;
+                } finally {
+                    active.decrementAndGet();
+                    open.remove(clientSocket);
+                    idle.remove(clientSocket);
+                    connectionTime.recordNanos(System.nanoTime() - handedOverNanos);
+                    if (limiter != null) {
+                        if (failed) {
+                            limiter.onDropped();
+                        } else {
+                            limiter.onSuccess(handedOverNanos);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            open.remove(clientSocket);
+            //FAIL_FAST with a full queue (or the handler is shutting down)
+            if (limiter != null) {
+                limiter.onIgnore();
+            }
+            rejectedQueueFull.increment();
+            reject(clientSocket);
+        }
+    }
+
+    //One line into a fresh socket's empty send buffer never blocks - the accept thread answers and moves on
+    private static void reject(Socket clientSocket) {
+        try (Socket socket = clientSocket) {
+            OutputStream out = socket.getOutputStream();
+            out.write(BUSY_LINE);
+            out.flush();
+        } catch (IOException ignored) {
+            //client already gone
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getActiveConnections() {
+        return active.get();
+    }
+
+    public int getPeakActiveConnections() {
+        return peakActive.get();
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    //the worker pool of FIXED_POOL / WORK_STEALING_POOL, null in the per-connection modes
+    public ProcessingPool getPool() {
+        return pool;
+    }
+
+    //Keep-alive handlers call this before blocking for the next request, and requestArrived() once it is read.
+    //false once stopping: end the connection instead of waiting. A connection already waiting when shutdown() is called gets its
+    //input shut down, so the blocked read returns end of stream - there is no request in flight to lose, and it need not wait
+    //for the drain timeout.
+    public boolean awaitRequest(Socket clientSocket) {
+        idle.add(clientSocket);
+        //re-checked after the add: either shutdown() sees the socket in idle, or we see stopping
+        if (stopping) {
+            idle.remove(clientSocket);
+            return false;
+        }
+        return true;
+    }
+
+    public void requestArrived(Socket clientSocket) {
+        idle.remove(clientSocket);
+    }
+
+    //Stops taking new connections and lets the running ones finish
+    public void shutdown() {
+        stopping = true;
+        for (Socket socket : idle) {
+            try {
+                socket.shutdownInput();
+            } catch (IOException ignored) {}
+        }
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    //true once shutdown() was called - a keep-alive handler checks it between requests and ends the connection
+    public boolean isStopping() {
+        return stopping;
+    }
+
+    //Waits until every connection handed over so far has finished (and the pool's threads are gone)
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        //the per-connection modes have no executor to wait on - poll the open set, this only runs while stopping
+        while (!open.isEmpty()) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        long remaining = Math.max(0, deadline - System.nanoTime());
+        if (pool != null) {
+            return pool.awaitTermination(remaining, TimeUnit.NANOSECONDS);
+        }
+        return executorService == null || executorService.awaitTermination(remaining, TimeUnit.NANOSECONDS);
+    }
+
+    //After the drain timeout: closes the sockets of every connection still open, so blocked reads/writes fail and the handlers end
+    //returns how many were closed
+    public int forceClose() {
+        int closed = 0;
+        for (Socket socket : open) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+            closed++;
+        }
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+        return closed;
+    }
+
+    public int getOpenConnections() {
+        return open.size();
+    }
+
+    //Executors.newVirtualThreadPerTaskExecutor() only exists from JDK 21, looked up reflectively so the repo still compiles on older JDKs.
+    //Also used by the LoadGenerator's virtual-thread engine.
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads need JDK 21+, running on " + System.getProperty("java.version"));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create virtual thread executor", e);
+        }
+    }
+}
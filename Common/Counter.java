@@ -0,0 +1,20 @@
+import java.util.concurrent.atomic.LongAdder;
+
+//A monotonically increasing count (accepts, bytes, errors...).
+//Backed by a LongAdder: every thread adds to its own cell, so the hot path never contends on one cache line -
+//only a scrape pays for summing the cells.
+public final class Counter {
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,57 @@
+//Approximate access counts for TinyLFU admission (see ResponseCache): a count-min sketch of 4-bit counters.
+//Every key hashes to one counter in each of 4 rows (16 counters packed per long), its frequency is the smallest of the 4 -
+//collisions can only make a count too high, never too low. Counters saturate at 15, which is plenty to compare two keys.
+//AGING: after sampleSize increments every counter is halved, so keys that were popular an hour ago give way to today's.
+//Not thread safe - ResponseCache only calls it under its policy lock.
+public final class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    //expectedEntries: about how many keys the cache holds - the table gets one long (16 counters) per entry, a power of two
+    public FrequencySketch(int expectedEntries) {
+        int size = Integer.highestOneBit(Math.max(16, Math.min(expectedEntries, 1 << 24)) - 1) << 1;
+        table = new long[size];
+        mask = size - 1;
+        sampleSize = 10 * size;
+    }
+
+    public int frequency(int hash) {
+        int frequency = 15;
+        for (int row = 0; row < 4; row++) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            int index = (int) (h >>> 32) & mask;
+            int offset = ((int) (h >>> 8) & 15) << 2;
+            frequency = Math.min(frequency, (int) (table[index] >>> offset) & 15);
+        }
+        return frequency;
+    }
+
+    public void increment(int hash) {
+        boolean added = false;
+        for (int row = 0; row < 4; row++) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            int index = (int) (h >>> 32) & mask;
+            int offset = ((int) (h >>> 8) & 15) << 2;
+            if (((table[index] >>> offset) & 15) < 15) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    //halves every counter (the shift moves each counter's low bit into its neighbour, the mask drops it)
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+}
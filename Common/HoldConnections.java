@@ -0,0 +1,43 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+//Measures how many concurrent connections a blocking server sustains: opens connections and keeps them open without sending
+//the request, so every one of them parks a handler inside readLine(). Watch the server's RSS / thread count meanwhile
+//(e.g. grep VmRSS /proc/<pid>/status) and divide the growth by the connections held to get memory per connection.
+//Usage: java -cp . HoldConnections <port> <connections> <holdSeconds>
+public class HoldConnections {
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8010;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int holdSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        List<Socket> sockets = new ArrayList<>(connections);
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            try {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress("localhost", port), 5000);
+                sockets.add(socket);
+            } catch (IOException e) {
+                System.out.println("Failed after " + sockets.size() + " connections: " + e.getMessage());
+                break;
+            }
+        }
+        System.out.printf("Holding %d connections (opened in %d ms) for %d s%n",
+                sockets.size(), (System.nanoTime() - start) / 1_000_000, holdSeconds);
+        Thread.sleep(holdSeconds * 1000L);
+
+        //finally send the number each handler is waiting for so they all complete
+        for (int i = 0; i < sockets.size(); i++) {
+            try (Socket socket = sockets.get(i)) {
+                new PrintWriter(socket.getOutputStream(), true).println(i + 1);
+            } catch (IOException ignored) {
+                // server may already have dropped it
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+//A lock-free latency histogram with power-of-two microsecond buckets: bucket i counts values up to 2^i us
+//(1 us, 2 us, 4 us ... ~36 min). Recording is one numberOfLeadingZeros() and one LongAdder increment - cheap enough
+//for every request. Percentiles are only as precise as the bucket (within 2x), which is plenty to spot saturation;
+//the LoadGenerator's HdrHistogram is the tool for exact client-side numbers.
+public final class LatencyHistogram {
+    static final int BUCKETS = 32;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void recordNanos(long nanos) {
+        long micros = Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0);
+        //smallest i with micros <= 2^i
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        buckets[Math.min(bucket, BUCKETS - 1)].increment();
+        count.increment();
+        sumMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    //upper bound of bucket i in microseconds
+    static long bucketUpperMicros(int bucket) {
+        return 1L << bucket;
+    }
+
+    long bucketCount(int bucket) {
+        return buckets[bucket].sum();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumMicros() {
+        return sumMicros.sum();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    //upper bound of the bucket holding the given percentile (0-100), 0 when nothing was recorded
+    public long percentileMicros(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank) {
+                return Math.min(bucketUpperMicros(i), getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+}
@@ -0,0 +1,39 @@
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+//Start/stop contract of every server, so a deploy can take one down without cutting off the requests it is serving.
+//
+//Graceful stop, in order:
+    //1. stop accepting - the listening socket is closed, new clients get a refused connect and go elsewhere (or retry)
+    //2. drain - requests already accepted are answered; idle connections are closed as soon as they have nothing in flight
+    //3. force - whatever is still open when the drain timeout is over is closed
+//
+//Usage from main():
+//  server.start(port);
+//  Lifecycle.stopOnShutdown(server, 10, TimeUnit.SECONDS);   // SIGTERM / Ctrl+C drains instead of killing
+//  server.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+public interface Lifecycle {
+
+    //Binds the port and starts accepting on background threads - returns once the port is bound
+    void start(int port) throws IOException;
+
+    //Starts a graceful stop and returns at once - awaitTermination() waits for it. Calling it again does nothing.
+    void stop(long drainTimeout, TimeUnit unit);
+
+    //Waits until the server stopped and every connection is closed - false if the timeout passed first
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+
+    //Runs a graceful stop from a JVM shutdown hook (SIGTERM, Ctrl+C) and holds the JVM until it finished
+    static void stopOnShutdown(Lifecycle server, long drainTimeout, TimeUnit unit) {
+        //the async logger stays open until this hook finished, so the drain is still logged
+        AsyncLogger.addLoggingShutdownHook(new Thread(() -> {
+            server.stop(drainTimeout, unit);
+            try {
+                //the force-close after the drain timeout needs a moment too
+                server.awaitTermination(unit.toMillis(drainTimeout) + 1000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "graceful-shutdown"));
+    }
+}
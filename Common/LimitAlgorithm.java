@@ -0,0 +1,107 @@
+//Decides the next concurrency limit from one completed request. Used by ConcurrencyLimiter, which calls update() from one thread
+//at a time (samples that arrive while another update runs are skipped), so implementations keep plain fields and need no locking.
+public interface LimitAlgorithm {
+
+    //limit: current limit, rttNanos: time the request took (queue wait included), inFlight: requests running when it finished,
+    //dropped: the request failed or timed out - a sign of overload, whatever its latency. Returns the new limit.
+    int update(int limit, long rttNanos, int inFlight, boolean dropped);
+
+    //"aimd" or "gradient"
+    static LimitAlgorithm byName(String name) {
+        switch (name.toLowerCase()) {
+            case "aimd":
+                return new Aimd(1, 1000, 0.9, 100_000_000L);
+            case "gradient":
+                return new Gradient(1, 1000);
+            default:
+                throw new IllegalArgumentException("Unknown limit algorithm " + name);
+        }
+    }
+
+    //ADDITIVE INCREASE / MULTIPLICATIVE DECREASE (TCP congestion control)
+    //+1 for every good request while the limit is actually in use, limit * backoff on a drop or a request slower than the timeout.
+    //Simple and stable, but it only reacts once requests already fail or time out.
+    final class Aimd implements LimitAlgorithm {
+        private final int minLimit;
+        private final int maxLimit;
+        private final double backoffRatio;
+        private final long timeoutNanos;
+
+        public Aimd(int minLimit, int maxLimit, double backoffRatio, long timeoutNanos) {
+            if (backoffRatio <= 0 || backoffRatio >= 1) {
+                throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+            }
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.backoffRatio = backoffRatio;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        @Override
+        public int update(int limit, long rttNanos, int inFlight, boolean dropped) {
+            if (dropped || rttNanos > timeoutNanos) {
+                return Math.max(minLimit, (int) (limit * backoffRatio));
+            }
+            //an idle server proves nothing about a higher limit - only grow while at least half of it is used
+            if (inFlight * 2 >= limit) {
+                return Math.min(maxLimit, limit + 1);
+            }
+            return limit;
+        }
+    }
+
+    //GRADIENT
+    //Compares the latency now (short EWMA) with the latency the server has when not queueing (long EWMA):
+    //  gradient = longRtt / shortRtt, clamped to [0.5, 1] - 1 while latency is flat, below 1 as soon as requests start queueing
+    //  new limit = limit * gradient + sqrt(limit)   (the sqrt term lets the limit probe upwards while latency stays flat)
+    //It backs off when latency starts to rise, before anything times out.
+    final class Gradient implements LimitAlgorithm {
+        //latency may rise this much over the baseline before the limit is cut
+        private static final double TOLERANCE = 1.5;
+        //weight of a new sample in the short and long EWMA (roughly the last 10 and the last 500 requests)
+        private static final double SHORT_WEIGHT = 0.1;
+        private static final double LONG_WEIGHT = 0.002;
+        //how much of the computed limit is applied per update - smooths out single outliers
+        private static final double SMOOTHING = 0.2;
+
+        private final int minLimit;
+        private final int maxLimit;
+        private double shortRtt;
+        private double longRtt;
+        //fractional limit, so many small steps are not all rounded away
+        private double estimatedLimit = -1;
+
+        public Gradient(int minLimit, int maxLimit) {
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+        }
+
+        @Override
+        public int update(int limit, long rttNanos, int inFlight, boolean dropped) {
+            if (estimatedLimit < 0) {
+                estimatedLimit = limit;
+                shortRtt = rttNanos;
+                longRtt = rttNanos;
+                return limit;
+            }
+            shortRtt += (rttNanos - shortRtt) * SHORT_WEIGHT;
+            longRtt += (rttNanos - longRtt) * LONG_WEIGHT;
+            //after a long overload the baseline itself has crept up - pull it back down so it recovers
+            if (longRtt > shortRtt * 2) {
+                longRtt *= 0.95;
+            }
+            //an idle server proves nothing about a higher limit
+            if (!dropped && inFlight * 2 < estimatedLimit) {
+                return limit;
+            }
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+            if (dropped) {
+                gradient = 0.5;
+            }
+            double target = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            estimatedLimit = estimatedLimit * (1 - SMOOTHING) + target * SMOOTHING;
+            estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit));
+            return (int) estimatedLimit;
+        }
+    }
+}
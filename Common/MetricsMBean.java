@@ -0,0 +1,96 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+//Read-only JMX view of a MetricsRegistry. Dynamic, because series can be registered after startup (e.g. one per backend).
+//Counters and gauges are one attribute each; a histogram becomes <series>.count / .p50Micros / .p99Micros / .maxMicros.
+final class MetricsMBean implements DynamicMBean {
+    private static final String[] HISTOGRAM_FIELDS = {"count", "p50Micros", "p99Micros", "maxMicros"};
+
+    private final MetricsRegistry registry;
+
+    MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        for (MetricsRegistry.Metric metric : registry.metrics()) {
+            String series = metric.series();
+            if (metric.type != MetricsRegistry.Type.HISTOGRAM) {
+                if (series.equals(attribute)) {
+                    return MetricsRegistry.longValue(metric);
+                }
+            } else if (attribute.startsWith(series + ".")) {
+                return histogramField((LatencyHistogram) metric.value, attribute.substring(series.length() + 1));
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    private static Object histogramField(LatencyHistogram histogram, String field) throws AttributeNotFoundException {
+        switch (field) {
+            case "count":
+                return histogram.getCount();
+            case "p50Micros":
+                return histogram.percentileMicros(50);
+            case "p99Micros":
+                return histogram.percentileMicros(99);
+            case "maxMicros":
+                return histogram.getMaxMicros();
+            default:
+                throw new AttributeNotFoundException(field);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException ignored) {
+                // unknown names are left out, as the DynamicMBean contract allows
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (MetricsRegistry.Metric metric : registry.metrics()) {
+            if (metric.type != MetricsRegistry.Type.HISTOGRAM) {
+                attributes.add(new MBeanAttributeInfo(metric.series(), "long", metric.help, true, false, false));
+            } else {
+                for (String field : HISTOGRAM_FIELDS) {
+                    attributes.add(new MBeanAttributeInfo(metric.series() + "." + field, "long", metric.help, true, false, false));
+                }
+            }
+        }
+        return new MBeanInfo(MetricsRegistry.class.getName(), "Server metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("Metrics have no operations");
+    }
+}
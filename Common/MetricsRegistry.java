@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+//All the numbers a server wants to show about itself, in one place, instead of println() in every handler.
+//
+//Metric kinds:
+    //1. Counter - monotonically increasing (accepts, bytes, errors). LongAdder, so recording from many threads never contends.
+    //2. Gauge - a value read at scrape time from a LongSupplier (active connections, queue depth). Costs nothing between scrapes.
+    //3. LatencyHistogram - durations in power-of-two buckets (selector loop time, backend latency).
+//Components look their metrics up ONCE (counter(), histogram()...) and keep the reference - the registry is never on the hot path.
+//
+//Exposed two ways:
+    //1. JMX - registerJmx() publishes every metric as an attribute of one MBean (jconsole / VisualVM / any JMX agent).
+    //2. startEndpoint(port) - plain text on a side port in the Prometheus exposition format:  curl localhost:9010/metrics
+public class MetricsRegistry {
+    enum Type {
+        COUNTER("counter"),
+        GAUGE("gauge"),
+        HISTOGRAM("histogram");
+
+        final String text;
+
+        Type(String text) {
+            this.text = text;
+        }
+    }
+
+    //one registered series: name + optional labels, e.g. lb_backend_requests_total{backend="localhost:8011"}
+    static final class Metric {
+        final String name;
+        final String labels;
+        final String help;
+        final Type type;
+        final Object value;
+
+        Metric(String name, String labels, String help, Type type, Object value) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+
+        //name{labels}, or just name without labels
+        String series() {
+            return labels.isEmpty() ? name : name + "{" + labels + "}";
+        }
+    }
+
+    //sorted by name first (the space sorts before any label text), so series of one metric are written together
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+    //null until startEndpoint()
+    private HttpServer endpoint;
+
+    public Counter counter(String name, String help) {
+        return counter(name, "", help);
+    }
+
+    //labels in exposition syntax without braces, e.g. backend="localhost:8011"
+    public Counter counter(String name, String labels, String help) {
+        return (Counter) register(name, labels, help, Type.COUNTER, new Counter());
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        gauge(name, "", help, value);
+    }
+
+    public void gauge(String name, String labels, String help, LongSupplier value) {
+        register(name, labels, help, Type.GAUGE, value);
+    }
+
+    public LatencyHistogram histogram(String name, String help) {
+        return histogram(name, "", help);
+    }
+
+    public LatencyHistogram histogram(String name, String labels, String help) {
+        return (LatencyHistogram) register(name, labels, help, Type.HISTOGRAM, new LatencyHistogram());
+    }
+
+    //registering the same series twice returns the first one (so two components can share a counter)
+    private Object register(String name, String labels, String help, Type type, Object value) {
+        Metric metric = metrics.computeIfAbsent(name + " " + labels, key -> new Metric(name, labels, help, type, value));
+        if (metric.type != type) {
+            throw new IllegalArgumentException(metric.series() + " is already registered as a " + metric.type.text);
+        }
+        return metric.value;
+    }
+
+    //Drops every series with exactly these labels - for a component that went away at runtime (e.g. a removed backend),
+    //so its last values are not scraped forever. Components still holding the objects can keep recording into them.
+    public void unregister(String labels) {
+        metrics.values().removeIf(metric -> metric.labels.equals(labels));
+    }
+
+    Iterable<Metric> metrics() {
+        return metrics.values();
+    }
+
+    //current value of a counter or gauge
+    static long longValue(Metric metric) {
+        return metric.type == Type.COUNTER ? ((Counter) metric.value).get() : ((LongSupplier) metric.value).getAsLong();
+    }
+
+    //Prometheus text exposition format (version 0.0.4) - histograms in seconds, as that format expects
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        String previousName = null;
+        for (Metric metric : metrics.values()) {
+            if (!metric.name.equals(previousName)) {
+                out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+                out.append("# TYPE ").append(metric.name).append(' ').append(metric.type.text).append('\n');
+                previousName = metric.name;
+            }
+            if (metric.type == Type.HISTOGRAM) {
+                appendHistogram(out, metric);
+            } else {
+                out.append(metric.series()).append(' ').append(longValue(metric)).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static void appendHistogram(StringBuilder out, Metric metric) {
+        LatencyHistogram histogram = (LatencyHistogram) metric.value;
+        String labelPrefix = metric.labels.isEmpty() ? "" : metric.labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            cumulative += histogram.bucketCount(i);
+            out.append(metric.name).append("_bucket{").append(labelPrefix)
+                    .append("le=\"").append(microsToSeconds(LatencyHistogram.bucketUpperMicros(i))).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        //count is read separately from the buckets, so a concurrent record() can make it one ahead - +Inf uses the larger
+        long count = Math.max(histogram.getCount(), cumulative);
+        out.append(metric.name).append("_bucket{").append(labelPrefix).append("le=\"+Inf\"} ").append(count).append('\n');
+        String suffixLabels = metric.labels.isEmpty() ? "" : "{" + metric.labels + "}";
+        out.append(metric.name).append("_sum").append(suffixLabels).append(' ')
+                .append(microsToSeconds(histogram.getSumMicros())).append('\n');
+        out.append(metric.name).append("_count").append(suffixLabels).append(' ').append(count).append('\n');
+    }
+
+    private static String microsToSeconds(long micros) {
+        return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+    }
+
+    //Publishes the registry as one MBean, e.g. "webserver:type=NonBlockingThreadPool"
+    public void registerJmx(String objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), new ObjectName(objectName));
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register metrics MBean " + objectName, e);
+        }
+    }
+
+    //Serves scrape() at http://host:port/metrics on a side port, so a scrape never queues behind clients
+    public synchronized void startEndpoint(int port) throws IOException {
+        if (endpoint != null) {
+            throw new IllegalStateException("Metrics endpoint already started");
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-endpoint");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        endpoint = server;
+    }
+
+    //The endpoint's dispatcher thread is not a daemon - a server that stops on its own must stop the endpoint too
+    public synchronized void stopEndpoint() {
+        if (endpoint != null) {
+            endpoint.stop(0);
+            endpoint = null;
+        }
+    }
+}
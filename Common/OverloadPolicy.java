@@ -0,0 +1,16 @@
+//What a server does when its worker pool cannot take more work.
+//Executors.newFixedThreadPool() queues without limit: a spike just grows the queue (and the heap), and every request behind it
+//waits longer - the server keeps accepting work it will answer too late. A bounded queue (see ProcessingPool) turns that into an explicit decision:
+    //1. FAIL_FAST   - answer "Server busy" at once and move on. The client gets a fast, cheap error instead of a timeout.
+    //2. CALLER_RUNS - the accepting/dispatching thread runs the task itself, so it stops taking new work until it is done.
+    //                 Back-pressure for free, but everything else that thread serves waits meanwhile.
+    //3. PAUSE_READS - (selector based servers only) park the request and stop reading from that connection until the pool
+    //                 has room again - the client's own TCP window then slows it down.
+public enum OverloadPolicy {
+    FAIL_FAST,
+    CALLER_RUNS,
+    PAUSE_READS;
+
+    //Reply sent to a rejected client or request
+    public static final String BUSY_RESPONSE = "Server busy";
+}
@@ -0,0 +1,122 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+//Sizes a ProcessingPool from what it observes instead of a hard-coded poolSize, so the same build behaves on 4 and on 64 cores.
+//Every interval it looks at the tasks completed since the last look:
+    //wait    - average time a task sat in the queue
+    //service - average time a pool thread spent on it
+    //busy    - service time / (threads * interval): how much of the pool's capacity was actually used
+    //cpu     - the process' CPU load (0..1 across all cores)
+//Rules:
+    //1. wait > service / 2 and cpu below CPU_HIGH -> grow by a quarter: tasks queue longer than they run and there is spare CPU,
+    //   i.e. the workers are blocked (I/O, locks) rather than busy - more threads help.
+    //2. wait high but cpu above CPU_HIGH -> hold: the machine is saturated, more threads only add context switches.
+    //3. busy below BUSY_LOW and (almost) no waiting -> shrink by one: the extra threads only cost memory.
+    //4. a full queue with nothing completed (every worker stuck) -> grow.
+//Changes are bounded by [minThreads, maxThreads].
+public class PoolAutoTuner {
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
+    private static final double CPU_HIGH = 0.85;
+    private static final double BUSY_LOW = 0.4;
+
+    private final ProcessingPool pool;
+    private final int minThreads;
+    private final int maxThreads;
+    private final long intervalMillis;
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+    private long lastCompleted;
+    private long lastWaitNanos;
+    private long lastServiceNanos;
+    private long lastTickNanos;
+    private volatile boolean stopped;
+
+    public PoolAutoTuner(ProcessingPool pool, int minThreads, int maxThreads, long intervalMillis) {
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException("expected 1 <= minThreads <= maxThreads");
+        }
+        this.pool = pool;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.intervalMillis = intervalMillis;
+    }
+
+    //Tunes on its own daemon thread until stop()
+    public void start() {
+        lastCompleted = pool.completedTasks();
+        lastWaitNanos = pool.totalWaitNanos();
+        lastServiceNanos = pool.totalServiceNanos();
+        lastTickNanos = System.nanoTime();
+        Thread thread = new Thread(() -> {
+            while (!stopped) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                tick();
+            }
+        }, "pool-auto-tuner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    void tick() {
+        long now = System.nanoTime();
+        long completed = pool.completedTasks();
+        long waitNanos = pool.totalWaitNanos();
+        long serviceNanos = pool.totalServiceNanos();
+        long tasks = completed - lastCompleted;
+        long elapsed = now - lastTickNanos;
+        long serviceDelta = serviceNanos - lastServiceNanos;
+        long waitDelta = waitNanos - lastWaitNanos;
+        lastCompleted = completed;
+        lastWaitNanos = waitNanos;
+        lastServiceNanos = serviceNanos;
+        lastTickNanos = now;
+
+        int threads = pool.getThreads();
+        double cpu = processCpuLoad();
+        int target = threads;
+        if (tasks == 0) {
+            //nothing finished: idle, or every worker is stuck on something slow
+            if (pool.getWaiting() > 0 && pool.getRunning() >= threads && cpu < CPU_HIGH) {
+                target = threads + Math.max(1, threads / 4);
+            }
+        } else {
+            double wait = (double) waitDelta / tasks;
+            double service = (double) serviceDelta / tasks;
+            double busy = (double) serviceDelta / ((double) threads * elapsed);
+            if (wait > service / 2 && cpu < CPU_HIGH) {
+                target = threads + Math.max(1, threads / 4);
+            } else if (busy < BUSY_LOW && wait < service / 10) {
+                target = threads - 1;
+            }
+        }
+        target = Math.max(minThreads, Math.min(maxThreads, target));
+        if (target != threads) {
+            if (pool.resize(target)) {
+                LOG.info("Processing pool resized {} -> {} threads", threads, target);
+            } else {
+                LOG.warn("Processing pool ({}) cannot be resized on this JDK - stopping the tuner", pool.getKind());
+                stopped = true;
+            }
+        }
+    }
+
+    //process CPU load when the JVM exposes it, else the load average spread over the cores, -1 if neither is known
+    private double processCpuLoad() {
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+            if (load >= 0) {
+                return load;
+            }
+        }
+        double average = os.getSystemLoadAverage();
+        return average < 0 ? -1 : Math.min(1.0, average / os.getAvailableProcessors());
+    }
+}
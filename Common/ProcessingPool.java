@@ -0,0 +1,277 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+//The pool request processing runs on, in one of two shapes:
+    //1. SHARED_QUEUE - ThreadPoolExecutor: every worker takes from one queue. Simple, FIFO, but every submit and every take
+    //   goes through the same queue head - with many cores the workers contend on it.
+    //2. WORK_STEALING - ForkJoinPool in async (FIFO) mode: each worker has its own deque; tasks submitted from a worker stay
+    //   on its deque, an idle worker steals from the others. Submits from outside threads (event loops, acceptors) are spread
+    //   over several submission queues instead of one.
+//
+//Either way at most queueCapacity tasks wait for a thread (beyond those an idle thread is about to take) - counted here, so the
+//bound is the same for both shapes and follows the thread count - and every task is timed: queue wait and service time feed
+//PoolAutoTuner.
+//The thread count can be changed at runtime with resize().
+public class ProcessingPool implements Executor {
+    public enum Kind {
+        SHARED_QUEUE,
+        WORK_STEALING;
+
+        //"shared" or "work-stealing"
+        public static Kind byName(String name) {
+            switch (name.toLowerCase()) {
+                case "shared":
+                    return SHARED_QUEUE;
+                case "work-stealing":
+                    return WORK_STEALING;
+                default:
+                    throw new IllegalArgumentException("Unknown pool kind " + name);
+            }
+        }
+    }
+
+    //ForkJoinPool.setParallelism() only exists from JDK 19 - looked up once, null on older JDKs
+    private static final Method SET_PARALLELISM = findSetParallelism();
+
+    private final Kind kind;
+    //exactly one of the two is set
+    private final ThreadPoolExecutor sharedQueue;
+    private final ForkJoinPool workStealing;
+    private final int queueCapacity;
+    //what execute() does when queueCapacity tasks are already waiting
+    private final OverloadPolicy overload;
+    private volatile int threads;
+
+    //tasks submitted and not started yet
+    private final AtomicInteger waiting = new AtomicInteger();
+    //tasks running right now
+    private final AtomicInteger running = new AtomicInteger();
+    //called when a slot may have become free (a task started or finished) - see setSlotFreedListener()
+    private volatile Runnable slotFreedListener;
+
+    //STATS for the tuner - nanosecond sums, so microsecond tasks still add up
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder serviceNanos = new LongAdder();
+    //METRICS - standalone until bindMetrics() puts them into a registry
+    private LatencyHistogram waitTime = new LatencyHistogram();
+    private LatencyHistogram serviceTime = new LatencyHistogram();
+
+    public ProcessingPool(Kind kind, int threads, int queueCapacity, OverloadPolicy overload) {
+        if (threads < 1 || queueCapacity < 0) {
+            throw new IllegalArgumentException("expected threads >= 1 and queueCapacity >= 0");
+        }
+        this.kind = kind;
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+        this.overload = overload;
+        if (kind == Kind.SHARED_QUEUE) {
+            //the queue itself is unbounded - waiting is the bound
+            this.sharedQueue = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            this.workStealing = null;
+        } else {
+            //asyncMode = true: FIFO per worker deque, right for independent event-style tasks that are never joined
+            this.workStealing = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+            this.sharedQueue = null;
+        }
+    }
+
+    //Registers <prefix>_pool_threads, _pool_queue_depth, _pool_active_threads and the wait/service histograms
+    public void bindMetrics(MetricsRegistry metrics, String prefix) {
+        metrics.gauge(prefix + "_pool_threads", "Worker threads in the processing pool", () -> threads);
+        metrics.gauge(prefix + "_pool_queue_depth", "Tasks waiting for a pool thread", waiting::get);
+        metrics.gauge(prefix + "_pool_active_threads", "Pool threads busy with a task", running::get);
+        waitTime = metrics.histogram(prefix + "_pool_wait_seconds", "Time a task waited for a pool thread");
+        serviceTime = metrics.histogram(prefix + "_pool_service_seconds", "Time a pool thread spent on a task");
+    }
+
+    //Called on a pool thread every time a task starts or finishes, i.e. a slot may have become free - e.g. to resume a connection
+    //parked on a full pool. The counters are already updated when it runs, so a caller that re-checks hasFreeSlot() after
+    //parking never misses its wake-up.
+    public void setSlotFreedListener(Runnable listener) {
+        this.slotFreedListener = listener;
+    }
+
+    //Submits unless queueCapacity tasks are already waiting and no thread is idle - returns false then, the caller decides what to do
+    //(throws RejectedExecutionException after shutdown())
+    public boolean tryExecute(Runnable task) {
+        while (true) {
+            int current = waiting.get();
+            if (current >= queueCapacity && running.get() + current >= threads) {
+                return false;
+            }
+            if (waiting.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        TimedTask timed = new TimedTask(task, System.nanoTime());
+        try {
+            if (sharedQueue != null) {
+                sharedQueue.execute(timed);
+            } else {
+                workStealing.execute(timed);
+            }
+        } catch (RejectedExecutionException e) {
+            //shut down - the slot was never used
+            waiting.decrementAndGet();
+            throw e;
+        }
+        return true;
+    }
+
+    //Submits, or applies the overload policy when the queue is full: CALLER_RUNS runs the task here,
+    //anything else throws RejectedExecutionException
+    @Override
+    public void execute(Runnable task) {
+        if (tryExecute(task)) {
+            return;
+        }
+        if (overload == OverloadPolicy.CALLER_RUNS) {
+            task.run();
+            return;
+        }
+        throw new RejectedExecutionException("Processing pool full (" + queueCapacity + " waiting)");
+    }
+
+    public boolean hasFreeSlot() {
+        return waiting.get() < queueCapacity || running.get() + waiting.get() < threads;
+    }
+
+    private final class TimedTask implements Runnable {
+        private final Runnable task;
+        private final long submittedNanos;
+
+        TimedTask(Runnable task, long submittedNanos) {
+            this.task = task;
+            this.submittedNanos = submittedNanos;
+        }
+
+        @Override
+        public void run() {
+            long startNanos = System.nanoTime();
+            running.incrementAndGet();
+            waiting.decrementAndGet();
+            long waited = startNanos - submittedNanos;
+            waitNanos.add(waited);
+            waitTime.recordNanos(waited);
+            slotFreed();
+            try {
+                task.run();
+            } finally {
+                long served = System.nanoTime() - startNanos;
+                running.decrementAndGet();
+                serviceNanos.add(served);
+                serviceTime.recordNanos(served);
+                completed.increment();
+                slotFreed();
+            }
+        }
+    }
+
+    private void slotFreed() {
+        Runnable listener = slotFreedListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    //Changes the worker count. Shrinking lets busy workers finish their current task first.
+    //Returns false when the pool cannot be resized (a work-stealing pool before JDK 19).
+    public synchronized boolean resize(int newThreads) {
+        if (newThreads < 1) {
+            throw new IllegalArgumentException("newThreads must be at least 1");
+        }
+        if (newThreads == threads) {
+            return true;
+        }
+        if (sharedQueue != null) {
+            //core <= max at every step
+            if (newThreads > threads) {
+                sharedQueue.setMaximumPoolSize(newThreads);
+                sharedQueue.setCorePoolSize(newThreads);
+            } else {
+                sharedQueue.setCorePoolSize(newThreads);
+                sharedQueue.setMaximumPoolSize(newThreads);
+            }
+        } else {
+            if (SET_PARALLELISM == null) {
+                return false;
+            }
+            try {
+                SET_PARALLELISM.invoke(workStealing, newThreads);
+            } catch (ReflectiveOperationException e) {
+                return false;
+            }
+        }
+        threads = newThreads;
+        return true;
+    }
+
+    private static Method findSetParallelism() {
+        try {
+            return ForkJoinPool.class.getMethod("setParallelism", int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public OverloadPolicy getOverloadPolicy() {
+        return overload;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    long completedTasks() {
+        return completed.sum();
+    }
+
+    long totalWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    long totalServiceNanos() {
+        return serviceNanos.sum();
+    }
+
+    public void shutdown() {
+        if (sharedQueue != null) {
+            sharedQueue.shutdown();
+        } else {
+            workStealing.shutdown();
+        }
+    }
+
+    //Drops the tasks still waiting and interrupts the running ones
+    public void shutdownNow() {
+        if (sharedQueue != null) {
+            sharedQueue.shutdownNow();
+        } else {
+            workStealing.shutdownNow();
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return sharedQueue != null ? sharedQueue.awaitTermination(timeout, unit) : workStealing.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,355 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.function.UnaryOperator;
+
+//In-process cache of complete, already encoded responses in front of a request handler - a hit skips parsing, the handler's
+//work and the encoding, the server just writes the stored bytes.
+//  ResponseCache<FrameKey, ByteBuffer> cache = new ResponseCache<>(16 << 20, 60, TimeUnit.SECONDS, ByteBuffer::capacity, FrameKey::copy);
+//  ByteBuffer reply = cache.get(FrameKey.view(request), key -> computeReply(request));
+//
+//BOUNDED BY SIZE: the weigher gives every value's size (bytes of the response), the total never exceeds maxWeight.
+//A plain LRU lets one scan of rarely repeated requests flush out everything that is asked for all the time, so:
+//W-TinyLFU (what Caffeine does)
+    //1. window LRU (1% of the size) - every new entry starts here, so a burst of a new key can build up some history
+    //2. main segmented LRU (99%) - probation (entries that left the window) and protected (80%, entries hit again in probation)
+    //3. an entry pushed out of the window only gets into the main part if it has been asked for MORE often than the
+       //entry it would evict (FrequencySketch - approximate counts of every key seen recently, hits and misses)
+//TTL: every entry expires ttl after it was stored, an expired entry is a miss.
+//
+//COALESCING: get(key, loader) on a miss runs the loader once per key - callers that miss on the same key while it runs
+//wait for that result instead of computing it again (a popular response expiring would otherwise hit the handler N times).
+//A loader returning null means "don't cache" (errors, one-off answers): every caller waiting on it gets null and does the work itself.
+//
+//CONCURRENCY: the entries are a ConcurrentHashMap, a hit is a lock-free lookup. The eviction policy (queue order, frequency
+//counts) sits behind one lock - hits only tryLock() it and skip the bookkeeping when another thread holds it, so readers
+//never wait (a busy cache loses some recency information instead of throughput).
+//Values must be immutable - one stored value is handed to every caller (for buffers: read-only, see freeze()).
+public class ResponseCache<K, V> {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int weight;
+        final long expiresAtNanos;
+        //guarded by the policy lock
+        int queue;
+        boolean removed;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int weight, long expiresAtNanos) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    //intrusive doubly linked list - head is the most recently used end, a node moves in O(1) without allocation
+    private static final class Queue<K, V> {
+        final Node<K, V> sentinel = new Node<>(null, null, 0, 0);
+        long weight;
+
+        Queue() {
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+        }
+
+        void addFirst(Node<K, V> node) {
+            node.next = sentinel.next;
+            node.prev = sentinel;
+            sentinel.next.prev = node;
+            sentinel.next = node;
+            weight += node.weight;
+        }
+
+        void remove(Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        Node<K, V> last() {
+            return sentinel.prev == sentinel ? null : sentinel.prev;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Node<K, V>> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final Queue<K, V> window = new Queue<>();
+    private final Queue<K, V> probation = new Queue<>();
+    private final Queue<K, V> protectedQueue = new Queue<>();
+    private final long maxWeight;
+    private final long windowMaxWeight;
+    private final long mainMaxWeight;
+    private final long protectedMaxWeight;
+    private final long ttlNanos;
+    private final ToIntFunction<? super V> weigher;
+    private final UnaryOperator<K> keyCopier;
+
+    //METRICS - standalone until bindMetrics() puts them into a registry
+    private Counter hits = new Counter();
+    private Counter misses = new Counter();
+    private Counter coalesced = new Counter();
+    private Counter evictedSize = new Counter();
+    private Counter evictedExpired = new Counter();
+    private Counter rejected = new Counter();
+
+    //maxWeight: total weight (bytes) of the values kept, ttl: how long an entry is served after it was stored
+    //keyCopier: lookups may use a temporary key (e.g. a view of the request buffer that is reused for the next request),
+    //the cache stores keyCopier.apply(key) instead when it inserts - UnaryOperator.identity() for immutable keys like Strings
+    public ResponseCache(long maxWeight, long ttl, TimeUnit unit, ToIntFunction<? super V> weigher, UnaryOperator<K> keyCopier) {
+        if (maxWeight <= 0 || ttl <= 0) {
+            throw new IllegalArgumentException("maxWeight and ttl must be positive");
+        }
+        this.maxWeight = maxWeight;
+        this.windowMaxWeight = Math.max(1, maxWeight / 100);
+        this.mainMaxWeight = maxWeight - windowMaxWeight;
+        this.protectedMaxWeight = mainMaxWeight * 8 / 10;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.weigher = weigher;
+        this.keyCopier = keyCopier;
+        //sized for responses of ~256 bytes on average - too small only makes the counts a little less precise
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, maxWeight / 256));
+    }
+
+    public void bindMetrics(MetricsRegistry metrics, String prefix) {
+        hits = metrics.counter(prefix + "_response_cache_requests_total", "result=\"hit\"", "Response cache lookups");
+        misses = metrics.counter(prefix + "_response_cache_requests_total", "result=\"miss\"", "Response cache lookups");
+        coalesced = metrics.counter(prefix + "_response_cache_coalesced_total", "Misses that waited for a load already running for the same key");
+        evictedSize = metrics.counter(prefix + "_response_cache_evictions_total", "cause=\"size\"", "Entries removed from the response cache");
+        evictedExpired = metrics.counter(prefix + "_response_cache_evictions_total", "cause=\"expired\"", "Entries removed from the response cache");
+        rejected = metrics.counter(prefix + "_response_cache_evictions_total", "cause=\"rejected\"", "Entries removed from the response cache");
+        metrics.gauge(prefix + "_response_cache_entries", "Entries in the response cache", this::size);
+        metrics.gauge(prefix + "_response_cache_bytes", "Total weight of the entries in the response cache", this::weightedSize);
+    }
+
+    //A copy of a response in its own direct buffer, as a read-only view - what a cache of ByteBuffers should store.
+    //Direct: the socket write needs no extra copy into native memory. Read-only: callers write duplicate()s of it and can't
+    //change the bytes other connections are sending (BufferPool.release() also ignores read-only buffers).
+    public static ByteBuffer freeze(ByteBuffer response) {
+        ByteBuffer copy = ByteBuffer.allocateDirect(response.remaining());
+        copy.put(response.duplicate()).flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    //the cached value, null if there is none or it expired
+    public V getIfPresent(K key) {
+        Node<K, V> node = entries.get(key);
+        long now = System.nanoTime();
+        if (node == null || now - node.expiresAtNanos >= 0) {
+            misses.increment();
+            if (node != null && policyLock.tryLock()) {
+                try {
+                    if (remove(node)) {
+                        evictedExpired.increment();
+                    }
+                } finally {
+                    policyLock.unlock();
+                }
+            }
+            return null;
+        }
+        hits.increment();
+        if (policyLock.tryLock()) {
+            try {
+                onAccess(node);
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        return node.value;
+    }
+
+    //The cached value, or the loader's result (cached unless null). Concurrent misses on one key run the loader once.
+    //A waiting caller blocks until that load is done - loaders should be short (they are: encoding a response).
+    //An exception thrown by the loader reaches every caller waiting on it, nothing is cached.
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        V value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+        K storedKey = keyCopier.apply(key);
+        CompletableFuture<V> load = new CompletableFuture<>();
+        CompletableFuture<V> running = loading.putIfAbsent(storedKey, load);
+        if (running != null) {
+            coalesced.increment();
+            return running.join();
+        }
+        try {
+            //a load for this key may have finished between the lookup and putIfAbsent
+            Node<K, V> node = entries.get(storedKey);
+            if (node != null && System.nanoTime() - node.expiresAtNanos < 0) {
+                value = node.value;
+            } else {
+                value = loader.apply(key);
+                if (value != null) {
+                    put(storedKey, value);
+                }
+            }
+            load.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(storedKey, load);
+        }
+    }
+
+    //stores value for key (used as is, not copied) - a value heavier than the whole cache is not stored
+    public void put(K key, V value) {
+        int weight = weigher.applyAsInt(value);
+        if (weight > maxWeight) {
+            return;
+        }
+        Node<K, V> node = new Node<>(key, value, weight, System.nanoTime() + ttlNanos);
+        policyLock.lock();
+        try {
+            Node<K, V> previous = entries.put(key, node);
+            if (previous != null) {
+                unlink(previous);
+            }
+            sketch.increment(key.hashCode());
+            node.queue = WINDOW;
+            window.addFirst(node);
+            evict();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public void invalidate(K key) {
+        policyLock.lock();
+        try {
+            Node<K, V> node = entries.get(key);
+            if (node != null) {
+                remove(node);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        policyLock.lock();
+        try {
+            for (Node<K, V> node : entries.values()) {
+                remove(node);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public long size() {
+        return entries.size();
+    }
+
+    public long weightedSize() {
+        policyLock.lock();
+        try {
+            return window.weight + probation.weight + protectedQueue.weight;
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    //POLICY - everything below runs under policyLock
+
+    //a hit: counts for admission, and moves the entry up - a second hit in probation promotes it to protected
+    private void onAccess(Node<K, V> node) {
+        if (node.removed) {
+            return;
+        }
+        sketch.increment(node.key.hashCode());
+        if (node.queue == WINDOW) {
+            window.remove(node);
+            window.addFirst(node);
+        } else if (node.queue == PROBATION) {
+            probation.remove(node);
+            node.queue = PROTECTED;
+            protectedQueue.addFirst(node);
+            //protected over its share: its least recently used entries go back to probation (not out of the cache)
+            Node<K, V> demoted;
+            while (protectedQueue.weight > protectedMaxWeight && (demoted = protectedQueue.last()) != null) {
+                protectedQueue.remove(demoted);
+                demoted.queue = PROBATION;
+                probation.addFirst(demoted);
+            }
+        } else {
+            protectedQueue.remove(node);
+            protectedQueue.addFirst(node);
+        }
+    }
+
+    //window over its share: its oldest entries are candidates for the main part, admitted only if they are asked for
+    //more often than the main part's next victims
+    private void evict() {
+        Node<K, V> candidate;
+        while (window.weight > windowMaxWeight && (candidate = window.last()) != null) {
+            window.remove(candidate);
+            if (admit(candidate)) {
+                candidate.queue = PROBATION;
+                probation.addFirst(candidate);
+            } else {
+                entries.remove(candidate.key, candidate);
+                candidate.removed = true;
+                rejected.increment();
+            }
+        }
+    }
+
+    //makes room in the main part for the candidate if it wins against every victim that has to go for it
+    private boolean admit(Node<K, V> candidate) {
+        if (candidate.weight > mainMaxWeight) {
+            return false;
+        }
+        int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+        while (probation.weight + protectedQueue.weight + candidate.weight > mainMaxWeight) {
+            Node<K, V> victim = probation.last() != null ? probation.last() : protectedQueue.last();
+            boolean expired = System.nanoTime() - victim.expiresAtNanos >= 0;
+            if (!expired && sketch.frequency(victim.key.hashCode()) >= candidateFrequency) {
+                return false;
+            }
+            remove(victim);
+            (expired ? evictedExpired : evictedSize).increment();
+        }
+        return true;
+    }
+
+    private boolean remove(Node<K, V> node) {
+        if (node.removed) {
+            return false;
+        }
+        entries.remove(node.key, node);
+        unlink(node);
+        return true;
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (node.removed) {
+            return;
+        }
+        node.removed = true;
+        if (node.queue == WINDOW) {
+            window.remove(node);
+        } else if (node.queue == PROBATION) {
+            probation.remove(node);
+        } else {
+            protectedQueue.remove(node);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.util.concurrent.TimeUnit;
+
+//Hashed timing wheel: a ring of wheelSize buckets, each bucket covering one tick (e.g. 100 ms).
+//A timeout due in d ticks goes into bucket (currentTick + d) % wheelSize - one longer than a full turn simply stays in its bucket
+//until the turn in which it is due. Every bucket is an intrusive doubly linked list, so:
+    //1. schedule() - O(1): compute the bucket, link the node at its head
+    //2. cancel()   - O(1): unlink the node (it knows its neighbours)
+    //3. expire()   - visits only the buckets of the ticks that passed, not every timeout
+//Compared to a ScheduledExecutorService (a binary heap + its own thread, O(log n) per schedule/cancel and a task object per
+//timeout) this stays cheap at 100k connections, and needs no thread of its own: the owner calls expire() from its loop.
+//Timeouts fire up to one tick late, never early.
+//
+//NOT thread safe - all calls must come from one thread (an event loop), or be guarded by the caller (see IdleWatchdog).
+public class TimingWheel {
+    private final long tickNanos;
+    private final int mask;
+    private final Timeout[] buckets;
+    private final long startNanos;
+    //last tick expire() has processed
+    private long currentTick;
+    private int size;
+
+    //wheelSize is rounded up to a power of two so the bucket is a mask instead of a division
+    public TimingWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0 || wheelSize < 1) {
+            throw new IllegalArgumentException("expected tickDuration > 0 and wheelSize >= 1");
+        }
+        int slots = Integer.highestOneBit(wheelSize);
+        if (slots < wheelSize) {
+            slots <<= 1;
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.mask = slots - 1;
+        this.buckets = new Timeout[slots];
+        this.startNanos = System.nanoTime();
+    }
+
+    //A scheduled task - keep it to cancel() it
+    public static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int DUE = 1;
+        private static final int CANCELLED = 2;
+        private static final int FIRED = 3;
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+        //PENDING: linked in a bucket, DUE: unlinked by expire() and about to run
+        private int state = PENDING;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadlineTick) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        //Removes the timeout if it has not fired yet - O(1). Returns false when it already fired or was cancelled.
+        public boolean cancel() {
+            if (state == PENDING) {
+                wheel.unlink(this);
+            } else if (state != DUE) {
+                return false;
+            }
+            //a DUE one is skipped by expire()
+            state = CANCELLED;
+            return true;
+        }
+
+        public boolean isPending() {
+            return state == PENDING || state == DUE;
+        }
+    }
+
+    //Runs task from expire() once delay has passed (rounded up to whole ticks)
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadlineNanos = System.nanoTime() - startNanos + unit.toNanos(delay);
+        //ceil, and at least the next tick - the current one may already be half over
+        long deadlineTick = Math.max(currentTick + 1, (deadlineNanos + tickNanos - 1) / tickNanos);
+        Timeout timeout = new Timeout(this, task, deadlineTick);
+        int index = (int) (deadlineTick & mask);
+        Timeout head = buckets[index];
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        buckets[index] = timeout;
+        size++;
+        return timeout;
+    }
+
+    //Runs every timeout due by nowNanos (System.nanoTime()) and returns how many fired
+    public int expire(long nowNanos) {
+        long nowTick = (nowNanos - startNanos) / tickNanos;
+        if (nowTick <= currentTick) {
+            return 0;
+        }
+        //more than a full turn behind (e.g. the loop was blocked): every bucket once is enough
+        long ticks = Math.min(nowTick - currentTick, buckets.length);
+        //due timeouts are unlinked first and run afterwards, so a task may freely schedule or cancel others
+        Timeout due = null;
+        for (long tick = nowTick - ticks + 1; tick <= nowTick; tick++) {
+            Timeout node = buckets[(int) (tick & mask)];
+            while (node != null) {
+                Timeout next = node.next;
+                if (node.deadlineTick <= nowTick) {
+                    unlink(node);
+                    node.state = Timeout.DUE;
+                    node.next = due;
+                    due = node;
+                }
+                node = next;
+            }
+        }
+        currentTick = nowTick;
+
+        int fired = 0;
+        while (due != null) {
+            Timeout next = due.next;
+            due.next = null;
+            if (due.state == Timeout.DUE) {
+                due.state = Timeout.FIRED;
+                due.task.run();
+                fired++;
+            }
+            due = next;
+        }
+        return fired;
+    }
+
+    private void unlink(Timeout timeout) {
+        int index = (int) (timeout.deadlineTick & mask);
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[index] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        size--;
+    }
+
+    //timeouts waiting to fire
+    public int size() {
+        return size;
+    }
+
+    //how long a select() may block before the next tick is due - 0 when nothing is scheduled (block indefinitely)
+    public long millisToNextTick(long nowNanos) {
+        if (size == 0) {
+            return 0;
+        }
+        long untilNextTick = (currentTick + 1) * tickNanos - (nowNanos - startNanos);
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(untilNextTick + 999_999));
+    }
+}
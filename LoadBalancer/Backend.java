@@ -0,0 +1,227 @@
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//One backend server plus the live counters the balancing strategies look at.
+//The proxy (blocking or NIO) updates the counters; strategies only read them, so selection never takes a lock.
+public class Backend {
+    //how fast old latency samples fade out of the EWMA - a degraded backend's cost rises within one sample and
+    //falls back over a few seconds, with or without new samples (the decay is applied when the cost is read too)
+    private static final double DECAY_NANOS = 5_000_000_000.0;
+
+    private final String host;
+    private final int port;
+    //changed at runtime by a registry reload - the strategies read it when a new snapshot is built (see BackendRegistry)
+    private volatile int weight;
+    private final InetSocketAddress address;
+
+    //proxied connections currently open to this backend
+    private final AtomicInteger inFlight = new AtomicInteger();
+    //peak EWMA of the latency (time from connect to the backend's first byte), stored as Double bits
+    private final AtomicLong ewmaBits = new AtomicLong(Double.doubleToLongBits(0.0));
+    private final AtomicLong lastSampleNanos = new AtomicLong(System.nanoTime());
+
+    //HEALTH
+    //HEALTHY   -> gets traffic
+    //EJECTED   -> skipped until the back-off period is over
+    //HALF_OPEN -> back-off over, exactly one trial (a real connection or a probe) decides between HEALTHY and EJECTED again
+    //All transitions are CAS on one AtomicInteger, so selection only does a volatile read per backend - no lock.
+    static final int HEALTHY = 0;
+    static final int EJECTED = 1;
+    static final int HALF_OPEN = 2;
+    //consecutive connect failures/timeouts before the backend is ejected
+    static final int FAILURE_THRESHOLD = 3;
+    //ejection back-off doubles on every ejection in a row, starting here and capped at the max
+    static final long BASE_EJECTION_NANOS = 5_000_000_000L;
+    static final long MAX_EJECTION_NANOS = 60_000_000_000L;
+
+    private final AtomicInteger state = new AtomicInteger(HEALTHY);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicInteger consecutiveEjections = new AtomicInteger();
+    private volatile long ejectedUntilNanos;
+    //DRAINING - set by the operator (LoadBalancer.drainBackend), independent of health: no new traffic, in-flight work finishes
+    private volatile boolean draining;
+
+    //METRICS - standalone until bindMetrics() puts them into a registry, so the recording code needs no null checks
+    private LatencyHistogram latencyHistogram = new LatencyHistogram();
+    private Counter failures = new Counter();
+
+    //warm connections for framed mode - null unless the load balancer runs in framed mode
+    private volatile BackendConnectionPool connectionPool;
+
+    public Backend(String host, int port, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be at least 1");
+        }
+        this.host = host;
+        this.port = port;
+        this.weight = weight;
+        this.address = new InetSocketAddress(host, port);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    //only through LoadBalancer.setBackendWeight(), which publishes a snapshot with the strategy rebuilt for the new weight
+    void setWeight(int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be at least 1");
+        }
+        this.weight = weight;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    //Registers this backend's series, labelled backend="host:port" - call before any traffic
+    void bindMetrics(MetricsRegistry metrics) {
+        String labels = metricLabels();
+        latencyHistogram = metrics.histogram("lb_backend_latency_seconds", labels, "Time from connect/request start to the backend's first byte");
+        failures = metrics.counter("lb_backend_failures_total", labels, "Failed or timed out connects and requests (traffic and probes)");
+        metrics.gauge("lb_backend_in_flight", labels, "Connections (or framed requests) currently on the backend", inFlight::get);
+        metrics.gauge("lb_backend_healthy", labels, "1 while the backend gets traffic, 0 while ejected, half open or draining", () -> isHealthy() ? 1 : 0);
+        metrics.gauge("lb_backend_draining", labels, "1 while the backend is drained for a restart or removal", () -> draining ? 1 : 0);
+    }
+
+    //the labels of this backend's series - MetricsRegistry.unregister(metricLabels()) once it is removed
+    String metricLabels() {
+        return "backend=\"" + this + "\"";
+    }
+
+    public BackendConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    void setConnectionPool(BackendConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    void connectionStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    void connectionFinished() {
+        inFlight.decrementAndGet();
+    }
+
+    //Should a new client be sent here? Called on the selection path - lock free.
+    //An ejected backend whose back-off is over is let through once (half open).
+    public boolean isAvailable() {
+        if (draining) {
+            return false;
+        }
+        int current = state.get();
+        if (current == HEALTHY) {
+            return true;
+        }
+        return current == EJECTED
+                && System.nanoTime() - ejectedUntilNanos >= 0
+                && state.compareAndSet(EJECTED, HALF_OPEN);
+    }
+
+    //Should the health checker probe it now? Healthy and half-open backends always - a half-open trial handed to a request
+    //that never reports back (rejected client, lost exchange) would otherwise keep the backend out of rotation for good.
+    //An ejected one only once its back-off is over (isAvailable() moves it to half open).
+    boolean isProbeDue() {
+        if (draining) {
+            return false;
+        }
+        return state.get() != EJECTED || isAvailable();
+    }
+
+    public boolean isHealthy() {
+        return state.get() == HEALTHY && !draining;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    void setDraining(boolean draining) {
+        this.draining = draining;
+    }
+
+    //connect (real traffic or probe) succeeded
+    void recordSuccess() {
+        consecutiveFailures.set(0);
+        int current = state.get();
+        if (current == HALF_OPEN || (current == EJECTED && System.nanoTime() - ejectedUntilNanos >= 0)) {
+            if (state.compareAndSet(current, HEALTHY)) {
+                consecutiveEjections.set(0);
+                LoadBalancer.LOG.info(LoadBalancer.ANSI_GREEN + "Backend {} is healthy again" + LoadBalancer.ANSI_RESET, this);
+            }
+        }
+    }
+
+    //connect (real traffic or probe) failed or timed out
+    void recordFailure() {
+        failures.increment();
+        int current = state.get();
+        if (current == HALF_OPEN) {
+            //the trial failed - straight back out, with a longer back-off
+            eject(HALF_OPEN);
+        } else if (current == HEALTHY && consecutiveFailures.incrementAndGet() >= FAILURE_THRESHOLD) {
+            eject(HEALTHY);
+        }
+    }
+
+    private void eject(int from) {
+        int ejections = consecutiveEjections.get();
+        long backOff = Math.min(MAX_EJECTION_NANOS, BASE_EJECTION_NANOS << Math.min(ejections, 16));
+        ejectedUntilNanos = System.nanoTime() + backOff;
+        if (state.compareAndSet(from, EJECTED)) {
+            consecutiveEjections.incrementAndGet();
+            consecutiveFailures.set(0);
+            LoadBalancer.LOG.warn(LoadBalancer.ANSI_RED + "Backend {} ejected for {} ms" + LoadBalancer.ANSI_RESET, this, backOff / 1_000_000);
+        }
+    }
+
+    //PEAK EWMA
+    //A sample above the current average replaces it immediately (react to a slow backend at once),
+    //a sample below it is blended in with a weight that grows with the time since the previous sample.
+    //Readers see the stored value decayed by the time since the last sample: a backend that had one slow sample and then
+    //lost every pick on cost would otherwise never get the sample that brings its cost down, and never come back.
+    void recordLatency(long latencyNanos) {
+        latencyHistogram.recordNanos(latencyNanos);
+        long now = System.nanoTime();
+        long previous = lastSampleNanos.getAndSet(now);
+        double weightOld = Math.exp(-(now - previous) / DECAY_NANOS);
+        while (true) {
+            long bits = ewmaBits.get();
+            double ewma = Double.longBitsToDouble(bits);
+            double updated = latencyNanos > ewma ? latencyNanos : ewma * weightOld + latencyNanos * (1 - weightOld);
+            if (ewmaBits.compareAndSet(bits, Double.doubleToLongBits(updated))) {
+                return;
+            }
+        }
+    }
+
+    public double getEwmaLatencyNanos() {
+        return getEwmaLatencyNanos(System.nanoTime());
+    }
+
+    double getEwmaLatencyNanos(long nowNanos) {
+        double ewma = Double.longBitsToDouble(ewmaBits.get());
+        long sinceSample = nowNanos - lastSampleNanos.get();
+        return sinceSample > 0 ? ewma * Math.exp(-sinceSample / DECAY_NANOS) : ewma;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
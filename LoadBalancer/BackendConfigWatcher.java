@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//Hot reload of the backend list: one daemon thread checks the file's modification time and size every interval and,
+//when either changed, re-reads it and hands it to LoadBalancer.reloadBackends - new backends start getting traffic,
+//removed ones are drained, everything else keeps its connections.
+//File format, one backend per line, weight optional (default 1), # starts a comment:
+//    localhost:8011 3
+//    localhost:8012
+//A file that does not parse (or lists no backend) is logged and ignored - the load balancer keeps the backends it has,
+//so a half-saved edit never empties the pool.
+//Polling instead of a WatchService: editors that save by rename and files on mounted volumes don't always produce events.
+public class BackendConfigWatcher implements Runnable {
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
+
+    private final Path file;
+    private final LoadBalancer lb;
+    private final long intervalMillis;
+    private long lastModified;
+    private long lastSize;
+
+    //the file has already been loaded (see load()), only changes from now on are applied
+    public BackendConfigWatcher(Path file, LoadBalancer lb, long intervalMillis) {
+        this.file = file;
+        this.lb = lb;
+        this.intervalMillis = intervalMillis;
+        changed();
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "lb-config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!changed()) {
+                continue;
+            }
+            try {
+                Map<String, Integer> backends = load(file);
+                LOG.info("{} changed - {} backends", file, backends.size());
+                lb.reloadBackends(backends);
+            } catch (IOException | IllegalArgumentException ex) {
+                LOG.warn("{} not applied, keeping the current backends: {}", file, ex.getMessage());
+            }
+        }
+    }
+
+    //true when the file's modification time or size differs from the last call (a deleted file is not a change)
+    private boolean changed() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long modified = attributes.lastModifiedTime().toMillis();
+            long size = attributes.size();
+            if (modified == lastModified && size == lastSize) {
+                return false;
+            }
+            lastModified = modified;
+            lastSize = size;
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    //"host:port" -> weight, in file order
+    public static Map<String, Integer> load(Path file) throws IOException {
+        Map<String, Integer> backends = parse(Files.readAllLines(file));
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("no backends listed");
+        }
+        return backends;
+    }
+
+    static Map<String, Integer> parse(List<String> lines) {
+        Map<String, Integer> backends = new LinkedHashMap<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                int colon = fields[0].lastIndexOf(':');
+                if (colon <= 0 || fields.length > 2) {
+                    throw new IllegalArgumentException();
+                }
+                int port = Integer.parseInt(fields[0].substring(colon + 1));
+                int weight = fields.length > 1 ? Integer.parseInt(fields[1]) : 1;
+                if (port < 1 || port > 65535 || weight < 1) {
+                    throw new IllegalArgumentException();
+                }
+                backends.put(fields[0].substring(0, colon) + ":" + port, weight);
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("line " + (i + 1) + ": expected \"host:port [weight]\", got \"" + lines.get(i) + "\"");
+            }
+        }
+        return backends;
+    }
+}
@@ -0,0 +1,233 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Warm, reusable connections to one backend for framed (line request -> line response) traffic.
+//Without it every client request pays a TCP handshake to the backend and burns an ephemeral port.
+//
+//How it works:
+    //1. borrow() takes the most recently returned idle connection (LIFO - the warmest one), or opens a new one.
+    //2. Before it is handed out it is validated: not idle longer than idleTimeout, and a non-blocking 1 byte read
+    //   must return 0 (-1 means the backend closed it, data means it is out of sync). Invalid ones are closed and skipped.
+    //3. release() puts it back unless maxIdle connections are already waiting (or the backend is draining);
+    //   discard() closes it after an I/O error.
+    //4. prewarm() opens connections up front so the first requests don't pay the connect either.
+    //5. At most maxTotal connections are borrowed at once. Our backends give every open connection a thread of a fixed pool,
+    //   so one more connection than the backend has threads waits in its accept queue for a greeting that never comes in time -
+    //   which would count as a backend failure. A borrow() over the cap waits up to borrowTimeout for a connection to come back,
+    //   then throws PoolExhaustedException: the backend is busy, not broken, so it does not count against its health.
+    //   A new connection is only opened when no idle one is left, so idle + borrowed stays within maxTotal too.
+    //6. Every read has a deadline (readTimeout, SO_TIMEOUT): a hung backend fails the exchange with a SocketTimeoutException
+    //   instead of holding the pool thread forever - the caller discards the connection and counts it against the backend.
+public class BackendConnectionPool {
+    private final Backend backend;
+    private final int maxIdle;
+    //one permit per borrowed connection (see 5.)
+    private final Semaphore borrowed;
+    private final long borrowTimeoutMillis;
+    private final long idleTimeoutNanos;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    //size() of a ConcurrentLinkedDeque is O(n), so the idle count is kept separately
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    //One backend connection - line oriented reader/writer over a SocketChannel so validation can peek without blocking.
+    //The reader goes through the channel's socket adaptor: unlike Channels.newInputStream it honours SO_TIMEOUT.
+    public static final class PooledConnection {
+        final SocketChannel channel;
+        final BufferedReader reader;
+        final PrintWriter writer;
+        //reused for the validation peek
+        final ByteBuffer peekBuffer = ByteBuffer.allocate(1);
+        long lastUsedNanos;
+
+        PooledConnection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.reader = new BufferedReader(new InputStreamReader(channel.socket().getInputStream()));
+            this.writer = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(channel)), true);
+        }
+
+        //one request line out, one response line back
+        public String exchange(String request) throws IOException {
+            writer.println(request);
+            if (writer.checkError()) {
+                throw new IOException("Backend connection closed while writing");
+            }
+            String response = reader.readLine();
+            if (response == null) {
+                throw new IOException("Backend closed the connection");
+            }
+            return response;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    //every connection borrowed - maxTotal - is busy for longer than the borrow timeout
+    public static final class PoolExhaustedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        PoolExhaustedException(String message) {
+            super(message);
+        }
+    }
+
+    public BackendConnectionPool(Backend backend, int maxIdle, int maxTotal, long borrowTimeoutMillis, long idleTimeoutMillis,
+                                 int connectTimeoutMillis, int readTimeoutMillis) {
+        if (maxIdle > maxTotal) {
+            throw new IllegalArgumentException("maxIdle must not exceed maxTotal");
+        }
+        this.backend = backend;
+        this.maxIdle = maxIdle;
+        this.borrowed = new Semaphore(maxTotal);
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.idleTimeoutNanos = idleTimeoutMillis * 1_000_000L;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    //every connection borrowed must go back through release() or discard()
+    public PooledConnection borrow() throws IOException {
+        try {
+            if (!borrowed.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new PoolExhaustedException("All connections to " + backend + " busy for " + borrowTimeoutMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PoolExhaustedException("Interrupted waiting for a connection to " + backend);
+        }
+        try {
+            PooledConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                idleCount.decrementAndGet();
+                if (isValid(connection)) {
+                    return connection;
+                }
+                connection.close();
+            }
+            return open();
+        } catch (IOException | RuntimeException e) {
+            borrowed.release();
+            throw e;
+        }
+    }
+
+    public void release(PooledConnection connection) {
+        borrowed.release();
+        park(connection);
+    }
+
+    //after an I/O error the connection's state is unknown - never reuse it
+    public void discard(PooledConnection connection) {
+        borrowed.release();
+        connection.close();
+    }
+
+    //back into the idle deque, or closed
+    private void park(PooledConnection connection) {
+        connection.lastUsedNanos = System.nanoTime();
+        if (backend.isDraining()) {
+            //the backend is about to stop - a pooled connection would only be cut under the next request
+            connection.close();
+        } else if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offerFirst(connection);
+        } else {
+            idleCount.decrementAndGet();
+            connection.close();
+        }
+    }
+
+    //opens up to count idle connections now, stops quietly at the first failure (health checking deals with a dead backend)
+    public void prewarm(int count) {
+        for (int i = 0; i < count && idleCount.get() < maxIdle; i++) {
+            try {
+                park(open());
+            } catch (IOException e) {
+                LoadBalancer.LOG.warn(LoadBalancer.ANSI_RED + "Could not pre-warm {}: {}" + LoadBalancer.ANSI_RESET, backend, e.getMessage());
+                return;
+            }
+        }
+    }
+
+    //closes connections idle for longer than idleTimeout - called periodically so a quiet pool gives its sockets back
+    public void evictIdle() {
+        long now = System.nanoTime();
+        //oldest connections sit at the tail (LIFO)
+        PooledConnection connection;
+        while ((connection = idle.peekLast()) != null && now - connection.lastUsedNanos > idleTimeoutNanos) {
+            if (idle.removeLastOccurrence(connection)) {
+                idleCount.decrementAndGet();
+                connection.close();
+            }
+        }
+    }
+
+    //closes every idle connection - a drained backend then sees its keep-alive connections end cleanly between requests
+    public void closeIdle() {
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            connection.close();
+        }
+    }
+
+    private PooledConnection open() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(backend.getAddress(), connectTimeoutMillis);
+            channel.socket().setSoTimeout(readTimeoutMillis);
+            PooledConnection connection = new PooledConnection(channel);
+            //our backends greet every new connection first - consume it so the connection is ready for requests
+            if (connection.reader.readLine() == null) {
+                throw new IOException("Backend closed the connection before greeting");
+            }
+            backend.recordSuccess();
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            backend.recordFailure();
+            throw e;
+        }
+    }
+
+    private boolean isValid(PooledConnection connection) {
+        if (System.nanoTime() - connection.lastUsedNanos > idleTimeoutNanos || !connection.channel.isOpen()) {
+            return false;
+        }
+        try {
+            if (connection.reader.ready()) {
+                //unread bytes in the reader - the stream is out of sync with our request/response pairs
+                return false;
+            }
+            connection.channel.configureBlocking(false);
+            connection.peekBuffer.clear();
+            int peeked = connection.channel.read(connection.peekBuffer);
+            connection.channel.configureBlocking(true);
+            return peeked == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+//The current set of backends, changeable at runtime (config file reload, console commands) without a restart.
+//
+//Copy-on-write: the routing path reads ONE volatile field - an immutable Snapshot of the backends array plus the strategy
+//built for exactly that array - and never takes a lock or sees a half-applied change. A writer copies the list, changes the
+//copy and publishes a new Snapshot; writers are serialized by the registry's lock, which the routing path never touches.
+//A connection that already picked a backend keeps it: removing a backend from the snapshot only stops new traffic to it
+//(LoadBalancer.removeBackend drains it afterwards).
+public class BackendRegistry {
+
+    //Immutable once published - select() always gets the array its strategy was built from
+    public static final class Snapshot {
+        final Backend[] backends;
+        final BalancingStrategy strategy;
+
+        Snapshot(Backend[] backends, BalancingStrategy strategy) {
+            this.backends = backends;
+            this.strategy = strategy;
+        }
+
+        //null when no backend is available (or there are none)
+        Backend select() {
+            return backends.length == 0 ? null : strategy.select(backends);
+        }
+
+        Backend select(long key) {
+            return backends.length == 0 ? null : strategy.select(backends, key);
+        }
+
+        public Backend[] getBackends() {
+            return backends.clone();
+        }
+    }
+
+    private volatile Snapshot snapshot;
+
+    public BackendRegistry(Backend[] backends, BalancingStrategy strategy) {
+        this.snapshot = new Snapshot(backends.clone(), strategy);
+    }
+
+    //the routing hot path - a volatile read
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    //host:port as in the logs and metric labels, null if there is no such backend
+    public Backend find(String address) {
+        for (Backend backend : snapshot.backends) {
+            if (backend.toString().equals(address)) {
+                return backend;
+            }
+        }
+        return null;
+    }
+
+    //Copies the current backends, lets change edit the copy and publishes the result with the strategy rebuilt for it.
+    //Also used with an unchanged list after a weight change, so weighted strategies pick the new weight up.
+    public synchronized Snapshot update(UnaryOperator<List<Backend>> change) {
+        Snapshot current = snapshot;
+        List<Backend> copy = new ArrayList<>(List.of(current.backends));
+        Backend[] backends = change.apply(copy).toArray(new Backend[0]);
+        Snapshot updated = new Snapshot(backends, current.strategy.rebuild(backends));
+        snapshot = updated;
+        return updated;
+    }
+}
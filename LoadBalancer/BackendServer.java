@@ -0,0 +1,143 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+//Keep-alive backend for the load balancer - one class for every backend instance, the port comes from the command line:
+//  java BackendServer 8011
+//  java BackendServer 8012
+public class BackendServer implements Lifecycle {
+    //To colour terminal text
+    public static final String ANSI_RESET = "\u001B[0m";
+    public static final String ANSI_BLACK = "\u001B[30m";
+    public static final String ANSI_RED = "\u001B[31m";
+    public static final String ANSI_GREEN = "\u001B[32m";
+    public static final String ANSI_YELLOW = "\u001B[33m";
+    public static final String ANSI_BLUE = "\u001B[34m";
+    public static final String ANSI_PURPLE = "\u001B[35m";
+    public static final String ANSI_CYAN = "\u001B[36m";
+    public static final String ANSI_WHITE = "\u001B[37m";
+
+    //handler threads only enqueue log records - the console is written by the logger's own thread
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
+
+    // Thread pool to manage a fixed number of worker threads for handling clients
+    private final ConnectionHandler connectionHandler;
+    // Accept loop + graceful stop around the connection handler
+    private final BlockingServer acceptor;
+    // Replies by request line, null = no cache - see setResponseCache()
+    private volatile ResponseCache<String, byte[]> responseCache;
+
+    // Constructor initializes the thread pool with a given size
+    public BackendServer(int poolSize, String name) {
+        this.connectionHandler = new ConnectionHandler(ConnectionHandler.Mode.FIXED_POOL, poolSize, this::handleClient);
+        this.acceptor = new BlockingServer(name, connectionHandler);
+    }
+
+    // A repeated request line is answered with the stored reply bytes - no parsing, formatting or char encoding, see ResponseCache.
+    // Concurrent misses on one line (many load balancer connections asking the same) compute the reply once.
+    // Only "Received number" replies are stored - an invalid line still gets its reply and loses its connection.
+    public void setResponseCache(ResponseCache<String, byte[]> cache) {
+        this.responseCache = cache;
+    }
+
+    // LIFECYCLE - see Lifecycle: start() returns once the port is bound, stop() drains the clients already accepted
+    @Override
+    public void start(int port) throws IOException {
+        acceptor.start(port);
+    }
+
+    @Override
+    public void stop(long drainTimeout, TimeUnit unit) {
+        acceptor.stop(drainTimeout, unit);
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return acceptor.awaitTermination(timeout, unit);
+    }
+
+    // Logic to handle an individual client connection
+    // Keep-alive: answers every line until the client closes, so the load balancer can reuse one backend connection for many requests
+    // Replies are buffered, not flushed per line: while the client's next requests are already here (pipelined) their replies
+    // collect in the buffer and leave in one write when the next readLine() would block - see flushIfNoInput()
+    public void handleClient(Socket clientSocket) {
+        try (OutputStream toClient = new BufferedOutputStream(clientSocket.getOutputStream())) {
+            // Send a greeting message to the connected client
+            toClient.write(("Hello " + clientSocket.getInetAddress() + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            BufferedReader fromClient = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            String line;
+            //null when the client closes - also what the load balancer's health probe does without sending anything
+            //Stopping: the request being answered finishes, then the connection ends instead of waiting for the next one
+            while (flushIfNoInput(toClient, fromClient) && connectionHandler.awaitRequest(clientSocket) && (line = fromClient.readLine()) != null) {
+                connectionHandler.requestArrived(clientSocket);
+                ResponseCache<String, byte[]> cache = responseCache;
+                byte[] reply = cache == null ? encodeReply(line) : cache.get(line, BackendServer::encodeReply);
+                if (reply == null) {
+                    toClient.write(("Invalid number" + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                toClient.write(reply);
+            }
+
+            //End of while loop means end of 1 connection
+            LOG.info(ANSI_RED+"Connection Ended by Client"+ANSI_RESET);
+        } catch (IOException ex) {
+            LOG.error("Client handler failed", ex);
+        }
+    }
+
+    // true, so it can sit in the read loop's condition - flushes unless more input is already buffered or waiting in the socket
+    private static boolean flushIfNoInput(OutputStream toClient, BufferedReader fromClient) throws IOException {
+        if (!fromClient.ready()) {
+            toClient.flush();
+        }
+        return true;
+    }
+
+    // the reply to a valid request line as the bytes println() would send, null for an invalid one (never cached)
+    private static byte[] encodeReply(String line) {
+        int number;
+        try {
+            number = Integer.parseInt(line.trim());
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        LOG.info(ANSI_CYAN+"Received number from Client {}"+ANSI_RESET, number);
+        return ("Received number: " + number + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Main method starts the server and listens for incoming connections
+    // Optional first argument is the port (default 8011) - start one per backend listed in the load balancer's backends.conf
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8011; // Port number where the server will listen
+        int poolSize = 10; // Maximum number of concurrent client handler threads
+        BackendServer server = new BackendServer(poolSize, "Backend:" + port); // Create the server with thread pool
+        long drainSeconds = 10; // on SIGTERM / Ctrl+C: stop accepting, finish the requests in flight, then close
+        long responseCacheBytes = 4L * 1024 * 1024; // replies of repeated requests kept encoded - 0 = no response cache
+        long responseCacheTtlSeconds = 60; // how long a cached reply is served
+        if (responseCacheBytes > 0) {
+            server.setResponseCache(new ResponseCache<>(responseCacheBytes, responseCacheTtlSeconds, TimeUnit.SECONDS,
+                    reply -> reply.length, UnaryOperator.identity()));
+        }
+
+        try {
+            // Listening socket + accept thread - every accepted client is submitted to the thread pool
+            server.start(port);
+            LOG.info("Server is listening on port {}", port);
+            // Drain instead of dying mid-request - drain this backend at the load balancer first for a zero-error restart
+            Lifecycle.stopOnShutdown(server, drainSeconds, TimeUnit.SECONDS);
+            server.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (IOException ex) {
+            LOG.error("Server stopped", ex);
+            server.connectionHandler.shutdown();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
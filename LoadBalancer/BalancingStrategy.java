@@ -0,0 +1,301 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Picks the backend for a new client connection. Implementations must be thread safe without locking:
+//select() runs for every accepted connection, on the accept thread or the NIO loop.
+//Backends that are not isAvailable() (ejected by health checking) are skipped; null means none is available.
+public interface BalancingStrategy {
+
+    Backend select(Backend[] backends);
+
+    //Sticky strategies route on a key (client address, or a key taken from the request - see LoadBalancer.routingKey());
+    //the others ignore it
+    default Backend select(Backend[] backends, long key) {
+        return select(backends);
+    }
+
+    //The strategy for a new backends array (a registry update) - strategies that precompute from the array (weights, ring)
+    //build a fresh one, the others keep their state and return themselves
+    default BalancingStrategy rebuild(Backend[] backends) {
+        return this;
+    }
+
+    //first available backend scanning from a random position - fallback when a strategy's own picks are all unavailable
+    static Backend anyAvailable(Backend[] backends) {
+        int start = ThreadLocalRandom.current().nextInt(backends.length);
+        for (int i = 0; i < backends.length; i++) {
+            Backend candidate = backends[(start + i) % backends.length];
+            if (candidate.isAvailable()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    //"round-robin", "weighted", "least-connections", "peak-ewma", "p2c" or "consistent-hash"
+    static BalancingStrategy byName(String name, Backend[] backends) {
+        switch (name.toLowerCase()) {
+            case "round-robin":
+                return new RoundRobin();
+            case "weighted":
+                return new WeightedRoundRobin(backends);
+            case "least-connections":
+                return new LeastConnections();
+            case "peak-ewma":
+                return new PeakEwma();
+            case "p2c":
+                return new PowerOfTwoChoices();
+            case "consistent-hash":
+                return new ConsistentHash(backends, ConsistentHash.DEFAULT_VIRTUAL_NODES);
+            default:
+                throw new IllegalArgumentException("Unknown balancing strategy " + name);
+        }
+    }
+
+    //Round robin on an atomic counter - replaces the synchronized getNextBackendIndex()
+    final class RoundRobin implements BalancingStrategy {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public Backend select(Backend[] backends) {
+            for (int i = 0; i < backends.length; i++) {
+                //floorMod keeps the index valid when the counter wraps around to negative
+                Backend candidate = backends[Math.floorMod(next.getAndIncrement(), backends.length)];
+                if (candidate.isAvailable()) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+    }
+
+    //Weighted round robin: the weights are expanded once into an interleaved schedule (a backend with weight 3 appears 3 times,
+    //spread out rather than back to back) and an atomic counter walks it. The schedule is fixed, so the backends array passed
+    //to select() must be the one it was built from - BackendRegistry keeps the two together in one snapshot.
+    final class WeightedRoundRobin implements BalancingStrategy {
+        private final int[] schedule;
+        private final AtomicInteger next = new AtomicInteger();
+
+        public WeightedRoundRobin(Backend[] backends) {
+            int total = 0;
+            for (Backend backend : backends) {
+                total += backend.getWeight();
+            }
+            schedule = new int[total];
+            //smooth weighted round robin (as in nginx) run once to produce the order
+            int[] current = new int[backends.length];
+            for (int slot = 0; slot < total; slot++) {
+                int best = 0;
+                for (int i = 0; i < backends.length; i++) {
+                    current[i] += backends[i].getWeight();
+                    if (current[i] > current[best]) {
+                        best = i;
+                    }
+                }
+                current[best] -= total;
+                schedule[slot] = best;
+            }
+        }
+
+        @Override
+        public BalancingStrategy rebuild(Backend[] backends) {
+            return new WeightedRoundRobin(backends);
+        }
+
+        @Override
+        public Backend select(Backend[] backends) {
+            for (int i = 0; i < schedule.length; i++) {
+                Backend candidate = backends[schedule[Math.floorMod(next.getAndIncrement(), schedule.length)]];
+                if (candidate.isAvailable()) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+    }
+
+    //Fewest open proxied connections wins; the scan starts at a random backend so ties don't all land on the first one
+    final class LeastConnections implements BalancingStrategy {
+        @Override
+        public Backend select(Backend[] backends) {
+            int start = ThreadLocalRandom.current().nextInt(backends.length);
+            Backend best = null;
+            for (int i = 0; i < backends.length; i++) {
+                Backend candidate = backends[(start + i) % backends.length];
+                if (!candidate.isHealthy()) {
+                    continue;
+                }
+                if (best == null || candidate.getInFlight() < best.getInFlight()) {
+                    best = candidate;
+                }
+            }
+            //nothing healthy - give a backend whose ejection is over its half-open trial
+            return best != null ? best : anyAvailable(backends);
+        }
+    }
+
+    //Lowest expected wait: peak EWMA latency x (open connections + 1). A backend that slows down is avoided after one slow sample.
+    final class PeakEwma implements BalancingStrategy {
+        @Override
+        public Backend select(Backend[] backends) {
+            int start = ThreadLocalRandom.current().nextInt(backends.length);
+            Backend best = null;
+            double bestCost = Double.MAX_VALUE;
+            for (int i = 0; i < backends.length; i++) {
+                Backend candidate = backends[(start + i) % backends.length];
+                if (!candidate.isHealthy()) {
+                    continue;
+                }
+                double cost = cost(candidate);
+                if (cost < bestCost) {
+                    best = candidate;
+                    bestCost = cost;
+                }
+            }
+            return best != null ? best : anyAvailable(backends);
+        }
+
+        static double cost(Backend backend) {
+            return (backend.getEwmaLatencyNanos() + 1) * (backend.getInFlight() + 1);
+        }
+    }
+
+    //Power of two random choices: look at two random backends only and take the cheaper one (peak EWMA cost).
+    //Nearly as good as scanning all of them, O(1) per pick, and it avoids every balancer herding onto the same "best" backend.
+    final class PowerOfTwoChoices implements BalancingStrategy {
+        @Override
+        public Backend select(Backend[] backends) {
+            if (backends.length == 1) {
+                return backends[0].isAvailable() ? backends[0] : null;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int a = random.nextInt(backends.length);
+            int b = random.nextInt(backends.length - 1);
+            if (b >= a) {
+                b++;
+            }
+            boolean aHealthy = backends[a].isHealthy();
+            boolean bHealthy = backends[b].isHealthy();
+            if (aHealthy && bHealthy) {
+                return PeakEwma.cost(backends[a]) <= PeakEwma.cost(backends[b]) ? backends[a] : backends[b];
+            }
+            if (aHealthy) {
+                return backends[a];
+            }
+            if (bHealthy) {
+                return backends[b];
+            }
+            return anyAvailable(backends);
+        }
+    }
+
+    //CONSISTENT HASHING - sticky routing for backends with per-client caches
+    //Round robin sends a returning client to a random backend, so each backend's cache only sees ~1/N of a client's visits.
+    //Here every backend owns virtualNodes x weight points on a 64 bit hash ring, and a key goes to the owner of the first point
+    //at or after its hash (wrapping around). Many small arcs per backend even out the load, and:
+        //1. adding or removing a backend only moves the keys on its arcs, ~1/N of them - the rest keep their backend (and cache)
+        //2. an unavailable backend's keys walk on to the next point of another backend, spread over all of them,
+        //   and come back when it recovers
+    //The ring is built once into two parallel arrays (sorted points + owner index), so a lookup is one binary search -
+    //no allocation, no lock. As with WeightedRoundRobin, select() must get the backends array the ring was built from.
+    final class ConsistentHash implements BalancingStrategy {
+        static final int DEFAULT_VIRTUAL_NODES = 160;
+
+        private final int virtualNodes;
+        private final long[] points;
+        private final int[] owners;
+
+        public ConsistentHash(Backend[] backends, int virtualNodes) {
+            this.virtualNodes = virtualNodes;
+            int total = 0;
+            for (Backend backend : backends) {
+                total += virtualNodes * backend.getWeight();
+            }
+            long[] hashes = new long[total];
+            int[] order = new int[total];
+            int n = 0;
+            for (int b = 0; b < backends.length; b++) {
+                //a point's position only depends on the backend's address, so the other backends' points stay put
+                //when one is added or removed
+                for (int v = 0; v < virtualNodes * backends[b].getWeight(); v++) {
+                    hashes[n] = hash((backends[b] + "#" + v).getBytes(StandardCharsets.UTF_8));
+                    order[n] = b;
+                    n++;
+                }
+            }
+            //sort the points, carrying the owners along
+            Integer[] index = new Integer[total];
+            for (int i = 0; i < total; i++) {
+                index[i] = i;
+            }
+            Arrays.sort(index, (x, y) -> Long.compare(hashes[x], hashes[y]));
+            points = new long[total];
+            owners = new int[total];
+            for (int i = 0; i < total; i++) {
+                points[i] = hashes[index[i]];
+                owners[i] = order[index[i]];
+            }
+        }
+
+        //a backend added or removed only adds or removes its own points - every other key keeps its backend
+        @Override
+        public BalancingStrategy rebuild(Backend[] backends) {
+            return new ConsistentHash(backends, virtualNodes);
+        }
+
+        //no key to stick to (e.g. a retry after a failed connect) - any point on the ring
+        @Override
+        public Backend select(Backend[] backends) {
+            return select(backends, ThreadLocalRandom.current().nextLong());
+        }
+
+        @Override
+        public Backend select(Backend[] backends, long key) {
+            if (points.length == 0) {
+                return null;
+            }
+            long hash = mix(key);
+            int i = Arrays.binarySearch(points, hash);
+            if (i < 0) {
+                //insertion point = first point above the hash
+                i = -i - 1;
+            }
+            //walk clockwise past the points of unavailable backends
+            for (int step = 0; step < points.length; step++) {
+                Backend candidate = backends[owners[(i + step) % points.length]];
+                if (candidate.isAvailable()) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+
+        //which backend owns the key when everything is available - for tests and debugging
+        int ownerIndex(long key) {
+            int i = Arrays.binarySearch(points, mix(key));
+            return owners[(i < 0 ? -i - 1 : i) % points.length];
+        }
+
+        //FNV-1a 64 + a final mix - only used while building the ring
+        static long hash(byte[] bytes) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : bytes) {
+                h ^= b & 0xff;
+                h *= 0x100000001b3L;
+            }
+            return mix(h);
+        }
+
+        //MurmurHash3's 64 bit finalizer - spreads similar keys (neighbouring addresses, client ids 1, 2, 3) over the whole ring
+        static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
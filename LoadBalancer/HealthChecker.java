@@ -0,0 +1,56 @@
+import java.io.IOException;
+import java.net.Socket;
+
+//Active health checking: one daemon thread opens a TCP connection to every backend each interval.
+//A probe that fails or times out counts as a failure, a probe that connects as a success - the same counters the proxy feeds
+//from real traffic (passive checking), so a dead backend is ejected even when no client happens to be sent to it,
+//and an ejected one is brought back by a probe once its back-off is over.
+//Every round probes the registry's current snapshot, so added backends are checked from the next round on.
+public class HealthChecker implements Runnable {
+    private final BackendRegistry registry;
+    private final long intervalMillis;
+    private final int timeoutMillis;
+
+    public HealthChecker(BackendRegistry registry, long intervalMillis, int timeoutMillis) {
+        this.registry = registry;
+        this.intervalMillis = intervalMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "health-checker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            for (Backend backend : registry.snapshot().backends) {
+                probe(backend);
+                //the same thread gives back pooled connections that sat idle too long
+                BackendConnectionPool pool = backend.getConnectionPool();
+                if (pool != null) {
+                    pool.evictIdle();
+                }
+            }
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void probe(Backend backend) {
+        if (!backend.isProbeDue()) {
+            return;
+        }
+        try (Socket socket = new Socket()) {
+            socket.connect(backend.getAddress(), timeoutMillis);
+            backend.recordSuccess();
+        } catch (IOException e) {
+            backend.recordFailure();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+//Timeouts for the blocking and framed modes. There a thread sits in a blocking read() that never returns if the peer goes
+//silent (or half dead), holding the thread, both sockets and their buffers forever.
+//One "lb-idle-watchdog" thread drives a TimingWheel for every connection - no thread or scheduled task per timeout.
+//The handler threads only store timestamps (touch(), writeStarted()/writeFinished()); a connection's single timer checks the real
+//deadlines when it fires and re-arms for the earliest one. A timed out connection has its sockets closed, which makes the
+//blocked read()/write() throw and ends its handler threads.
+//The wheel is not thread safe - schedule/cancel/expire all run under this watchdog's lock, which is only taken once per
+//connection open/close and per timer firing, never per read.
+public class IdleWatchdog {
+    private final LoadBalancer loadBalancer;
+    private final TimingWheel wheel = new TimingWheel(100, TimeUnit.MILLISECONDS, 512);
+    //0 = off
+    private final long readIdleNanos;
+    private final long writeIdleNanos;
+    private final long maxLifetimeNanos;
+    private volatile boolean started;
+
+    //readIdle: no bytes either way, writeIdle: one write blocked this long (the peer does not read), maxLifetime: connection age
+    public IdleWatchdog(LoadBalancer loadBalancer, long readIdleMillis, long writeIdleMillis, long maxLifetimeMillis) {
+        this.loadBalancer = loadBalancer;
+        this.readIdleNanos = TimeUnit.MILLISECONDS.toNanos(readIdleMillis);
+        this.writeIdleNanos = TimeUnit.MILLISECONDS.toNanos(writeIdleMillis);
+        this.maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(maxLifetimeMillis);
+    }
+
+    //Starts the watchdog thread - once, later calls do nothing
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        Thread thread = new Thread(() -> {
+            while (true) {
+                long sleepMillis;
+                synchronized (this) {
+                    wheel.expire(System.nanoTime());
+                    sleepMillis = wheel.millisToNextTick(System.nanoTime());
+                }
+                try {
+                    //nothing scheduled: check again in a tick, a new watch does not wake us up
+                    Thread.sleep(sleepMillis == 0 ? 100 : sleepMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "lb-idle-watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //Watches one connection made of these sockets (client, or client + backend) until Watch.close()
+    //drainOnLifetime: at maxLifetime just flag it (isExpired()) so the handler finishes the current request and stops,
+    //instead of closing the sockets under it
+    public Watch watch(boolean drainOnLifetime, Socket... sockets) {
+        Watch watch = new Watch(sockets, drainOnLifetime);
+        synchronized (this) {
+            watch.arm(watch.openedNanos);
+        }
+        return watch;
+    }
+
+    public final class Watch {
+        private final Socket[] sockets;
+        private final boolean drainOnLifetime;
+        private final long openedNanos = System.nanoTime();
+        //written by the handler threads, read by the watchdog
+        private volatile long lastActivityNanos = openedNanos;
+        //start of the write in progress towards the backend / towards the client, 0 = none
+        //two fields because in proxy mode each direction has its own thread, and one's progress must not hide the other's stall
+        private volatile long upstreamWritingSinceNanos;
+        private volatile long downstreamWritingSinceNanos;
+        private volatile boolean expired;
+        //guarded by IdleWatchdog.this
+        private TimingWheel.Timeout timer;
+        private boolean closed;
+
+        private Watch(Socket[] sockets, boolean drainOnLifetime) {
+            this.sockets = sockets;
+            this.drainOnLifetime = drainOnLifetime;
+        }
+
+        //bytes were read
+        public void touch() {
+            lastActivityNanos = System.nanoTime();
+        }
+
+        //upstream: the write goes to the backend, else to the client
+        public void writeStarted(boolean upstream) {
+            if (upstream) {
+                upstreamWritingSinceNanos = System.nanoTime();
+            } else {
+                downstreamWritingSinceNanos = System.nanoTime();
+            }
+        }
+
+        public void writeFinished(boolean upstream) {
+            if (upstream) {
+                upstreamWritingSinceNanos = 0;
+            } else {
+                downstreamWritingSinceNanos = 0;
+            }
+            lastActivityNanos = System.nanoTime();
+        }
+
+        //start of the oldest write still in progress, 0 = none
+        private long writingSince() {
+            long upstream = upstreamWritingSinceNanos;
+            long downstream = downstreamWritingSinceNanos;
+            if (upstream == 0 || downstream == 0) {
+                return upstream | downstream;
+            }
+            return Math.min(upstream, downstream);
+        }
+
+        //drainOnLifetime only: maxLifetime has passed - stop after the current request
+        public boolean isExpired() {
+            return expired;
+        }
+
+        //The connection ended - stops watching it (does not close the sockets)
+        public void close() {
+            synchronized (IdleWatchdog.this) {
+                closed = true;
+                if (timer != null) {
+                    timer.cancel();
+                    timer = null;
+                }
+            }
+        }
+
+        //on the watchdog thread, under the lock
+        private void onTimer() {
+            timer = null;
+            if (closed) {
+                return;
+            }
+            long now = System.nanoTime();
+            long writingSince = writingSince();
+            if (writeIdleNanos > 0 && writingSince != 0 && now - writingSince >= writeIdleNanos) {
+                loadBalancer.writeIdleTimeouts.increment();
+                timedOut("write idle", now - writingSince);
+                return;
+            }
+            if (readIdleNanos > 0 && writingSince == 0 && now - lastActivityNanos >= readIdleNanos) {
+                loadBalancer.readIdleTimeouts.increment();
+                timedOut("read idle", now - lastActivityNanos);
+                return;
+            }
+            if (maxLifetimeNanos > 0 && !expired && now - openedNanos >= maxLifetimeNanos) {
+                loadBalancer.lifetimeTimeouts.increment();
+                if (!drainOnLifetime) {
+                    timedOut("max lifetime", now - openedNanos);
+                    return;
+                }
+                expired = true;
+            }
+            arm(now);
+        }
+
+        private void arm(long now) {
+            long next = Long.MAX_VALUE;
+            long writingSince = writingSince();
+            if (writeIdleNanos > 0) {
+                next = Math.min(next, (writingSince != 0 ? writingSince : now) + writeIdleNanos);
+            }
+            if (readIdleNanos > 0) {
+                next = Math.min(next, (writingSince == 0 ? lastActivityNanos : now) + readIdleNanos);
+            }
+            if (maxLifetimeNanos > 0 && !expired) {
+                next = Math.min(next, openedNanos + maxLifetimeNanos);
+            }
+            if (next != Long.MAX_VALUE) {
+                timer = wheel.schedule(this::onTimer, Math.max(0, next - now), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void timedOut(String reason, long afterNanos) {
+            closed = true;
+            LoadBalancer.LOG.info(LoadBalancer.ANSI_RED + "Closing connection: " + reason + " for {} ms" + LoadBalancer.ANSI_RESET, TimeUnit.NANOSECONDS.toMillis(afterNanos));
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+}
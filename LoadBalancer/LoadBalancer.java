@@ -1,12 +1,27 @@
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
-public class LoadBalancer {
+public class LoadBalancer implements Lifecycle {
     //To colour terminal text
     public static final String ANSI_RESET = "\u001B[0m";
     public static final String ANSI_BLACK = "\u001B[30m";
@@ -18,54 +33,619 @@ public class LoadBalancer {
     public static final String ANSI_CYAN = "\u001B[36m";
     public static final String ANSI_WHITE = "\u001B[37m";
 
+    //shared by every LoadBalancer class - a log call only enqueues, the console is written by the logger's own thread
+    static final AsyncLogger LOG = AsyncLogger.getDefault();
 
-    private final String[] backendHosts;
-    private final int[] backendPorts;
-    private int currentIndex = 0;//tracks which backend to select next(round robin)
-    private final ExecutorService threadPool;//a threadPool variable of type ExecutionService
+    static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    //client connections: closed after READ_IDLE with no bytes either way, or a write stuck for WRITE_IDLE (peer not reading),
+    //and after MAX_LIFETIME in any case (0 = never) - see IdleWatchdog and NioProxy
+    static final long READ_IDLE_TIMEOUT_MILLIS = 60000;
+    static final long WRITE_IDLE_TIMEOUT_MILLIS = 30000;
+    static final long MAX_LIFETIME_MILLIS = 0;
+    //active health probe every HEALTH_CHECK_INTERVAL_MILLIS
+    static final long HEALTH_CHECK_INTERVAL_MILLIS = 2000;
+    //how long a removed (or "drain"ed) backend gets to finish the work already on it
+    static final long BACKEND_DRAIN_TIMEOUT_MILLIS = 10000;
+
+    //framed mode backend connection pools
+    static final int POOL_MAX_IDLE = 8;
+    //connections borrowed at once per backend - below BackendServer's 10 handler threads, so every pooled connection gets one
+    //and health probes still find a free thread; beyond it requests wait up to POOL_BORROW_TIMEOUT for a connection back
+    static final int POOL_MAX_TOTAL = 8;
+    static final long POOL_BORROW_TIMEOUT_MILLIS = 1000;
+    static final long POOL_IDLE_TIMEOUT_MILLIS = 30000;
+    static final int POOL_PREWARM = 2;
+    //a pooled backend that takes longer than this to answer a request is treated as failed - the connection is closed
+    static final int POOL_READ_TIMEOUT_MILLIS = 5000;
+
+    //blocking and framed modes: client connections allowed to wait for a pool thread
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final byte[] BUSY_LINE = (OverloadPolicy.BUSY_RESPONSE + "\n").getBytes(StandardCharsets.US_ASCII);
+
+    //the backends + the strategy that decides which one gets the next client (round robin by default) - copy on write,
+    //changed at runtime by addBackend/removeBackend/setBackendWeight/reloadBackends
+    private final BackendRegistry registry;
+    //framed mode: backends added at runtime get a connection pool too
+    private volatile boolean framed;
+    private final ProcessingPool threadPool;//shared queue or work stealing, bounded - see ProcessingPool and OverloadPolicy
+    //framed mode: admission control per request - null = none
+    private volatile ConcurrencyLimiter limiter;
+    //blocking and framed modes: closes idle / stuck connections (the NIO proxy runs its own timers on its selector thread)
+    private final IdleWatchdog idleWatchdog;
+
+    //LIFECYCLE - the listening socket of the blocking/framed modes, or the NIO proxy (see stop())
+    private volatile ServerSocket serverSocket;
+    private volatile NioProxy nioProxy;
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    //blocking and framed modes: client sockets handed to the pool and not finished - force-closed at the drain deadline
+    private final Set<Socket> openClients = ConcurrentHashMap.newKeySet();
+    //framed mode: clients blocked waiting for their next request line - ended at once by stop()
+    private final Set<Socket> idleClients = ConcurrentHashMap.newKeySet();
+
+    //METRICS - shared by all three modes (blocking, NIO, framed); active client connections = accepted - closed
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    final Counter clientsAccepted = metrics.counter("lb_clients_accepted_total", "Client connections accepted");
+    final Counter clientsClosed = metrics.counter("lb_clients_closed_total", "Client connections closed");
+    final Counter bytesUpstream = metrics.counter("lb_bytes_total", "direction=\"upstream\"", "Bytes forwarded, client -> backend and backend -> client");
+    final Counter bytesDownstream = metrics.counter("lb_bytes_total", "direction=\"downstream\"", "Bytes forwarded, client -> backend and backend -> client");
+    final Counter noBackendErrors = metrics.counter("lb_errors_total", "type=\"no_backend\"", "Clients or requests that could not be served, by cause");
+    final Counter backendErrors = metrics.counter("lb_errors_total", "type=\"backend\"", "Clients or requests that could not be served, by cause");
+    final Counter poolExhausted = metrics.counter("lb_pool_exhausted_total", "Framed requests that found every pooled connection of their backend busy");
+    //NIO mode only: time the selector thread spends per wakeup - the proxy is saturated when this approaches the wakeup interval
+    final LatencyHistogram nioLoopBusyTime = metrics.histogram("lb_nio_loop_busy_seconds", "NIO proxy selector time per wakeup, excluding the wait");
+    final Counter rejectedQueueFull = metrics.counter("lb_rejected_total", "reason=\"queue_full\"", "Clients or requests answered with Server busy, by cause");
+    final Counter rejectedLimit = metrics.counter("lb_rejected_total", "reason=\"concurrency_limit\"", "Clients or requests answered with Server busy, by cause");
+    final Counter readIdleTimeouts = metrics.counter("lb_timeouts_total", "reason=\"read_idle\"", "Connections closed (or backend connects abandoned) by a timeout, by kind");
+    final Counter writeIdleTimeouts = metrics.counter("lb_timeouts_total", "reason=\"write_idle\"", "Connections closed (or backend connects abandoned) by a timeout, by kind");
+    final Counter lifetimeTimeouts = metrics.counter("lb_timeouts_total", "reason=\"lifetime\"", "Connections closed (or backend connects abandoned) by a timeout, by kind");
+    final Counter connectTimeouts = metrics.counter("lb_timeouts_total", "reason=\"connect\"", "Connections closed (or backend connects abandoned) by a timeout, by kind");
+    final Counter backendReadTimeouts = metrics.counter("lb_timeouts_total", "reason=\"backend_read\"", "Connections closed (or backend connects abandoned) by a timeout, by kind");
 
     public LoadBalancer(String[] backendHosts, int[] backendPorts, int poolSize) {
-        this.backendHosts = backendHosts;
-        this.backendPorts = backendPorts;
-        this.threadPool = Executors.newFixedThreadPool(poolSize);
+        this(toBackends(backendHosts, backendPorts), new BalancingStrategy.RoundRobin(), poolSize);
+    }
+
+    public LoadBalancer(Backend[] backends, BalancingStrategy strategy, int poolSize) {
+        this(backends, strategy, poolSize, DEFAULT_QUEUE_CAPACITY, OverloadPolicy.FAIL_FAST);
+    }
+
+    //overload: FAIL_FAST answers "Server busy" and closes, CALLER_RUNS makes the accept thread serve the client (and stop accepting)
+    public LoadBalancer(Backend[] backends, BalancingStrategy strategy, int poolSize, int queueCapacity, OverloadPolicy overload) {
+        this(backends, strategy, new ProcessingPool(ProcessingPool.Kind.SHARED_QUEUE, poolSize, queueCapacity, overload));
+    }
+
+    public LoadBalancer(Backend[] backends, BalancingStrategy strategy, ProcessingPool pool) {
+        if (pool.getOverloadPolicy() == OverloadPolicy.PAUSE_READS) {
+            throw new IllegalArgumentException("PAUSE_READS needs a selector - the NIO proxy has no pool, use CALLER_RUNS for the blocking modes");
+        }
+        this.registry = new BackendRegistry(backends, strategy);
+        this.threadPool = pool;
+        this.idleWatchdog = new IdleWatchdog(this, READ_IDLE_TIMEOUT_MILLIS, WRITE_IDLE_TIMEOUT_MILLIS, MAX_LIFETIME_MILLIS);
+        for (Backend backend : backends) {
+            backend.bindMetrics(metrics);
+        }
+        metrics.gauge("lb_clients_active", "Client connections open", () -> clientsAccepted.get() - clientsClosed.get());
+        //lb_pool_* - client connections waiting for / served by a pool thread (blocking and framed modes)
+        pool.bindMetrics(metrics, "lb");
+    }
+
+    private static Backend[] toBackends(String[] backendHosts, int[] backendPorts) {
+        Backend[] backends = new Backend[backendHosts.length];
+        for (int i = 0; i < backends.length; i++) {
+            backends[i] = new Backend(backendHosts[i], backendPorts[i], 1);
+        }
+        return backends;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    //Framed mode admission control: requests over the limit are answered "Server busy" without touching a backend
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    //pool full (FAIL_FAST): one line into the new client's empty send buffer, then close - the accept thread moves on at once
+    private void rejectClient(Socket clientSocket) {
+        rejectedQueueFull.increment();
+        clientsClosed.increment();
+        try (Socket socket = clientSocket) {
+            OutputStream out = socket.getOutputStream();
+            out.write(BUSY_LINE);
+            out.flush();
+        } catch (IOException ignored) {
+            //client already gone
+        }
+    }
+    //Starts the active health probes - passive checks (real connect failures) are always on
+    public void startHealthChecks() {
+        new HealthChecker(registry, HEALTH_CHECK_INTERVAL_MILLIS, CONNECT_TIMEOUT_MILLIS).start();
+    }
+
+    // Select backend server for a new client - lock free: one volatile read of the registry snapshot, then the strategy
+    //reads the per-backend counters. Returns null when every backend is ejected (or there is none).
+    Backend nextBackend() {
+        return registry.snapshot().select();
+    }
+
+    //same, for a client with this routing key - sticky strategies (consistent-hash) send the same key to the same backend
+    Backend nextBackend(long key) {
+        return registry.snapshot().select(key);
+    }
+
+    //ROUTING KEYS - allocation free, computed once per connection
+    //blocking and NIO proxy: the client's address (not the port) - every connection of one client lands on the same backend
+    static long routingKey(InetAddress clientAddress) {
+        return clientAddress.hashCode();
+    }
+
+    //framed mode: the first request line, our protocol's client id - stays the same when the client reconnects from another port
+    //or sits behind a NAT with other clients
+    static long routingKey(String firstRequest) {
+        return firstRequest.hashCode();
+    }
+
+    //NIO mode: a single selector thread proxies every connection (see NioProxy) - returns once the port is bound
+    public void startNio(int listenPort) throws IOException {
+        nioProxy = new NioProxy(this, listenPort);
+        new Thread(nioProxy, "lb-nio-proxy").start();
+    }
+
+    //FRAMED MODE
+    //The load balancer terminates the line protocol itself: it greets the client, then forwards every request line to a backend
+    //picked per request over a pooled keep-alive connection and writes back the backend's response line.
+    //No backend handshake on the request path once the pools are warm.
+    //Returns once the port is bound.
+    public void startFramed(int listenPort) throws IOException {
+        framed = true;
+        for (Backend backend : registry.snapshot().backends) {
+            attachConnectionPool(backend);
+        }
+        idleWatchdog.start();
+        serverSocket = new ServerSocket(listenPort);
+        LOG.info(ANSI_YELLOW+"Load Balancer (framed, pooled backends) is listening on port {}"+ANSI_RESET, listenPort);
+        new Thread(() -> acceptLoop(this::acceptFramed), "lb-acceptor").start();
+    }
+
+    private void acceptFramed(Socket clientSocket) {
+        submit(clientSocket, () -> handleFramedClient(clientSocket));
+    }
+
+    private void handleFramedClient(Socket clientSocket) {
+        //a client over its max lifetime is let go after its current request
+        IdleWatchdog.Watch watch = idleWatchdog.watch(true, clientSocket);
+        try (
+            Socket socket = clientSocket;
+            //no auto flush - see flushIfNoInput()
+            PrintWriter toClient = new PrintWriter(socket.getOutputStream());
+            BufferedReader fromClient = new BufferedReader(new InputStreamReader(socket.getInputStream()))
+        ) {
+            toClient.println("Hello " + socket.getInetAddress());
+            String line;
+            //routing key of this client, from its first request
+            long key = 0;
+            boolean keyed = false;
+            //stopping: the request being answered finishes, then the connection ends instead of waiting for the next one
+            while (!watch.isExpired() && flushIfNoInput(toClient, fromClient, watch) && awaitRequest(socket) && (line = fromClient.readLine()) != null) {
+                idleClients.remove(socket);
+                watch.touch();
+                bytesUpstream.add(line.length() + 1);
+                if (!keyed) {
+                    key = routingKey(line);
+                    keyed = true;
+                }
+                ConcurrencyLimiter limiter = this.limiter;
+                if (limiter != null && !limiter.tryAcquire()) {
+                    rejectedLimit.increment();
+                    toClient.println(OverloadPolicy.BUSY_RESPONSE);
+                    continue;
+                }
+                long startNanos = System.nanoTime();
+                String response = forwardRequest(line, key);
+                if (limiter != null) {
+                    if (response == null) {
+                        limiter.onDropped();
+                    } else {
+                        limiter.onSuccess(startNanos);
+                    }
+                }
+                if (response == null) {
+                    noBackendErrors.increment();
+                    toClient.println("No backend available");
+                    return;
+                }
+                bytesDownstream.add(response.length() + 1);
+                toClient.println(response);
+            }
+        } catch (IOException ignored) {
+            // Connections close naturally when one side ends
+        } finally {
+            watch.close();
+            clientsClosed.increment();
+        }
+    }
+
+    //COALESCED FLUSH (framed mode): replies collect in the PrintWriter's buffer while the client's next requests are already
+    //here, and leave in one write just before the next readLine() would block - a pipelining client gets its replies in one
+    //segment per batch instead of one per line, a client that waits for each reply still gets it at once.
+    //Always true, so it can sit in the read loop's condition.
+    private static boolean flushIfNoInput(PrintWriter toClient, BufferedReader fromClient, IdleWatchdog.Watch watch) throws IOException {
+        if (!fromClient.ready()) {
+            watch.writeStarted(false);
+            toClient.flush();
+            watch.writeFinished(false);
+        }
+        return true;
+    }
+
+    //one request/response over a pooled backend connection - retried once on another backend if the exchange fails
+    //(safe here because the requests are idempotent)
+    private String forwardRequest(String request, long key) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Backend backend = attempt == 0 ? nextBackend(key) : nextBackend();
+            if (backend == null) {
+                return null;
+            }
+            BackendConnectionPool pool = backend.getConnectionPool();
+            BackendConnectionPool.PooledConnection connection = null;
+            backend.connectionStarted();
+            long startNanos = System.nanoTime();
+            try {
+                connection = pool.borrow();
+                String response = connection.exchange(request);
+                pool.release(connection);
+                backend.recordLatency(System.nanoTime() - startNanos);
+                //a reused connection never passes through a connect, so this is what resets the failure count
+                //(and what brings a half-open backend whose trial this was back to healthy)
+                backend.recordSuccess();
+                return response;
+            } catch (BackendConnectionPool.PoolExhaustedException ex) {
+                //busy, not broken - no failure recorded, the retry goes to another backend
+                poolExhausted.increment();
+                LOG.warn(ANSI_RED + "Request to {} not sent: {}" + ANSI_RESET, backend, ex.getMessage());
+            } catch (IOException ex) {
+                backendErrors.increment();
+                if (ex instanceof SocketTimeoutException) {
+                    backendReadTimeouts.increment();
+                }
+                if (connection != null) {
+                    pool.discard(connection);
+                    backend.recordFailure();
+                }
+                LOG.warn(ANSI_RED + "Request to {} failed: {}" + ANSI_RESET, backend, ex.getMessage());
+            } finally {
+                backend.connectionFinished();
+            }
+        }
+        return null;
     }
 
-    // Select backend server in round-robin fashion
-    //synchronized signifies only one thread updates currentIndex at a time
-    private synchronized int getNextBackendIndex() {
-        int index = currentIndex;
-        currentIndex = (currentIndex + 1) % backendPorts.length;
-        return index;
+    //Framed mode, before blocking for the next request line - false once stopping (see ConnectionHandler.awaitRequest)
+    private boolean awaitRequest(Socket clientSocket) {
+        idleClients.add(clientSocket);
+        if (stopping.get()) {
+            idleClients.remove(clientSocket);
+            return false;
+        }
+        return true;
     }
 
-    //listening starts on port: listenPort
+    //listening starts on port: listenPort - returns once the port is bound, the accept loop runs on its own thread
+    @Override
     public void start(int listenPort) throws IOException {
-        //try-with-resources: Ensures serverSocket is automatically closed.
-        try (ServerSocket serverSocket = new ServerSocket(listenPort)) {
-            System.out.println(ANSI_YELLOW+"Load Balancer is listening on port " + listenPort+ANSI_RESET );
-            while (true) {
+        serverSocket = new ServerSocket(listenPort);
+        LOG.info(ANSI_YELLOW+"Load Balancer is listening on port {}"+ANSI_RESET, listenPort);
+        idleWatchdog.start();
+        new Thread(() -> acceptLoop(this::acceptProxied), "lb-acceptor").start();
+    }
+
+    //blocking and framed modes: runs until stop() closes the server socket
+    private void acceptLoop(Consumer<Socket> accepted) {
+        while (!stopping.get()) {
+            Socket clientSocket;
+            try {
                 //waits here until a connection from client is received
-                Socket clientSocket = serverSocket.accept();
-                //getting the current server(by round robin) to which the client request will be re-routed 
-                int backendIndex = getNextBackendIndex();
-                String backendHost = backendHosts[backendIndex];
-                int backendPort = backendPorts[backendIndex];
-                System.out.println("Forwarding client to backend " + backendHost + ":" + backendPort);
-
-                // Handle connection forwarding in the thread pool
-                threadPool.execute(() -> handleConnection(clientSocket, backendHost, backendPort));
+                clientSocket = serverSocket.accept();
+            } catch (IOException ex) {
+                if (!stopping.get()) {
+                    LOG.error("Load Balancer stopped accepting", ex);
+                    stop(0, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            clientsAccepted.increment();
+            accepted.accept(clientSocket);
+        }
+    }
+
+    private void acceptProxied(Socket clientSocket) {
+        //getting the server (picked by the balancing strategy) to which the client request will be re-routed
+        Backend backend = nextBackend(routingKey(clientSocket.getInetAddress()));
+        if (backend == null) {
+            //every backend is ejected - fail fast instead of making the client wait on a dead connect
+            LOG.warn(ANSI_RED + "No healthy backend, closing client" + ANSI_RESET);
+            noBackendErrors.increment();
+            clientsClosed.increment();
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {}
+            return;
+        }
+        LOG.info("Forwarding client to backend {}", backend);
+
+        // Handle connection forwarding in the thread pool
+        submit(clientSocket, () -> handleConnection(clientSocket, backend));
+    }
+
+    //hands the client to the pool, tracked in openClients until its handler ends
+    private void submit(Socket clientSocket, Runnable handler) {
+        openClients.add(clientSocket);
+        try {
+            threadPool.execute(() -> {
+                try {
+                    handler.run();
+                } finally {
+                    openClients.remove(clientSocket);
+                    idleClients.remove(clientSocket);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            openClients.remove(clientSocket);
+            rejectClient(clientSocket);
+        }
+    }
+
+    //GRACEFUL STOP
+    //Stops accepting in every mode, then drains:
+        //1. framed - clients waiting for their next request are closed at once, the others after their current response
+        //2. blocking and NIO proxy - the LB only sees bytes, so a proxied connection runs until client or backend ends it
+    //and closes whatever is still open when drainTimeout is over.
+    //To restart a BACKEND without errors use drainBackend() first - stopping the whole load balancer is for the LB itself.
+    @Override
+    public void stop(long drainTimeout, TimeUnit unit) {
+        if (!stopping.compareAndSet(false, true)) {
+            return;
+        }
+        LOG.info(ANSI_YELLOW + "Load Balancer stopping - draining {} client connection(s) for up to {} ms" + ANSI_RESET,
+                clientsAccepted.get() - clientsClosed.get(), unit.toMillis(drainTimeout));
+        NioProxy proxy = nioProxy;
+        if (proxy != null) {
+            proxy.stop(drainTimeout, unit);
+        }
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException ignored) {}
+        }
+        for (Socket socket : idleClients) {
+            try {
+                socket.shutdownInput();
+            } catch (IOException ignored) {}
+        }
+        threadPool.shutdown();
+        new Thread(() -> {
+            try {
+                boolean drained = proxy != null
+                        ? proxy.awaitTermination(unit.toMillis(drainTimeout) + 1000, TimeUnit.MILLISECONDS)
+                        : awaitClients(unit.toNanos(drainTimeout));
+                if (!drained) {
+                    LOG.warn(ANSI_RED + "Drain timeout over - closing {} client connection(s)" + ANSI_RESET, openClients.size());
+                    for (Socket socket : openClients) {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {}
+                    }
+                    threadPool.shutdownNow();
+                }
+                threadPool.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                for (Backend backend : registry.snapshot().backends) {
+                    if (backend.getConnectionPool() != null) {
+                        backend.getConnectionPool().closeIdle();
+                    }
+                }
+                metrics.stopEndpoint();
+                LOG.info(ANSI_YELLOW + "Load Balancer stopped" + ANSI_RESET);
+                terminated.countDown();
+            }
+        }, "lb-drain").start();
+    }
+
+    private boolean awaitClients(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (!openClients.isEmpty()) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    //BACKEND DRAINING - for a rolling restart or before removing a backend
+    //The backend gets no new clients (blocking/NIO) or requests (framed), its idle pooled connections are closed, and this
+    //waits until the work already on it has finished. Then the backend can be stopped without a single failed request.
+    //Returns false if something is still in flight at the timeout - long-lived proxied connections, which stopping the
+    //backend will cut. The backend stays out of rotation until resumeBackend().
+    public boolean drainBackend(Backend backend, long timeout, TimeUnit unit) throws InterruptedException {
+        backend.setDraining(true);
+        LOG.info(ANSI_YELLOW + "Draining backend {} ({} in flight)" + ANSI_RESET, backend, backend.getInFlight());
+        BackendConnectionPool pool = backend.getConnectionPool();
+        if (pool != null) {
+            pool.closeIdle();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (backend.getInFlight() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                LOG.warn(ANSI_RED + "Backend {} still has {} in flight after the drain timeout" + ANSI_RESET, backend, backend.getInFlight());
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        LOG.info(ANSI_GREEN + "Backend {} drained" + ANSI_RESET, backend);
+        return true;
+    }
+
+    //Puts a drained backend back into rotation (framed mode: with a pre-warmed pool again)
+    public void resumeBackend(Backend backend) {
+        backend.setDraining(false);
+        BackendConnectionPool pool = backend.getConnectionPool();
+        if (pool != null) {
+            pool.prewarm(POOL_PREWARM);
+        }
+        LOG.info(ANSI_GREEN + "Backend {} back in rotation" + ANSI_RESET, backend);
+    }
+
+    //host:port as in the logs and metric labels, null if there is no such backend
+    public Backend findBackend(String address) {
+        return registry.find(address);
+    }
+
+    //DYNAMIC BACKENDS - scale out or in without a restart (backends.conf reload, console commands, or from code)
+    //Writers are serialized by this lock; the routing path never takes it, it only reads the registry's snapshot.
+
+    //Adds a backend (or changes the weight of an existing one). Everything it needs - metrics, framed mode's warm pool - is set up
+    //before the snapshot that contains it is published, so its first client finds it ready.
+    public synchronized void addBackend(String host, int port, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be at least 1");
+        }
+        Backend existing = registry.find(host + ":" + port);
+        if (existing != null) {
+            setBackendWeight(existing, weight);
+            return;
+        }
+        Backend backend = new Backend(host, port, weight);
+        backend.bindMetrics(metrics);
+        if (framed) {
+            attachConnectionPool(backend);
+        }
+        registry.update(backends -> {
+            backends.add(backend);
+            return backends;
+        });
+        LOG.info(ANSI_GREEN + "Backend {} added (weight {})" + ANSI_RESET, backend, weight);
+    }
+
+    //Takes a backend out of the registry: no new traffic from now on, the connections and requests already on it finish
+    //(drained in the background for up to BACKEND_DRAIN_TIMEOUT_MILLIS), then its pool and metrics are dropped.
+    //Returns false if there is no such backend.
+    public synchronized boolean removeBackend(String address) {
+        Backend backend = registry.find(address);
+        if (backend == null) {
+            return false;
+        }
+        registry.update(backends -> {
+            backends.remove(backend);
+            return backends;
+        });
+        LOG.info(ANSI_YELLOW + "Backend {} removed - draining" + ANSI_RESET, backend);
+        Thread drain = new Thread(() -> {
+            try {
+                drainBackend(backend, BACKEND_DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (backend.getConnectionPool() != null) {
+                    backend.getConnectionPool().closeIdle();
+                }
+                //the same address may have been added back meanwhile - its new series share the labels
+                if (registry.find(address) == null) {
+                    metrics.unregister(backend.metricLabels());
+                }
+            }
+        }, "lb-remove-" + address);
+        drain.setDaemon(true);
+        drain.start();
+        return true;
+    }
+
+    //New weight for a backend - weighted strategies are rebuilt in a new snapshot, connections stay where they are
+    public synchronized void setBackendWeight(Backend backend, int weight) {
+        if (backend.getWeight() == weight) {
+            return;
+        }
+        backend.setWeight(weight);
+        registry.update(backends -> backends);
+        LOG.info(ANSI_GREEN + "Backend {} weight {}" + ANSI_RESET, backend, weight);
+    }
+
+    //Makes the registry match the desired "host:port" -> weight set (e.g. a re-read backends.conf): adds the new ones,
+    //re-weights the changed ones, removes (and drains) the ones no longer listed. Unchanged backends keep their state
+    //(health, latency, warm pool) and their connections.
+    public synchronized void reloadBackends(Map<String, Integer> desired) {
+        for (Map.Entry<String, Integer> entry : desired.entrySet()) {
+            String address = entry.getKey();
+            int colon = address.lastIndexOf(':');
+            addBackend(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)), entry.getValue());
+        }
+        for (Backend backend : registry.snapshot().backends) {
+            if (!desired.containsKey(backend.toString())) {
+                removeBackend(backend.toString());
             }
         }
     }
 
+    public BackendRegistry getRegistry() {
+        return registry;
+    }
+
+    //framed mode: warm keep-alive connections to the backend
+    private void attachConnectionPool(Backend backend) {
+        BackendConnectionPool pool = new BackendConnectionPool(backend, POOL_MAX_IDLE, POOL_MAX_TOTAL, POOL_BORROW_TIMEOUT_MILLIS,
+                POOL_IDLE_TIMEOUT_MILLIS, CONNECT_TIMEOUT_MILLIS, POOL_READ_TIMEOUT_MILLIS);
+        backend.setConnectionPool(pool);
+        pool.prewarm(POOL_PREWARM);
+    }
+
     //Handles connecting the client to the backend server and piping data between them.
-    private void handleConnection(Socket clientSocket, String backendHost, int backendPort) {
+    //The backend's in-flight counter covers the whole proxied connection, its latency is the time until the backend's first byte.
+    //A failed or timed out connect counts against the backend's health and the client is retried once on another backend.
+    private void handleConnection(Socket clientSocket, Backend firstChoice) {
+        Backend backend = firstChoice;
+        Socket backendSocket = null;
+        long startNanos = 0;
+        for (int attempt = 0; attempt < 2 && backend != null; attempt++) {
+            startNanos = System.nanoTime();
+            try {
+                backendSocket = connect(backend);
+                break;
+            } catch (IOException ex) {
+                backendErrors.increment();
+                backend.recordFailure();
+                LOG.warn(ANSI_RED + "Backend {} unavailable: {}" + ANSI_RESET, backend, ex.getMessage());
+                backend = attempt == 0 ? nextBackend() : null;
+            }
+        }
+        if (backendSocket == null) {
+            clientsClosed.increment();
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {}
+            return;
+        }
+        backend.recordSuccess();
+        backend.connectionStarted();
+
+        final Backend target = backend;
+        final long connectStartNanos = startNanos;
+        //idle in both directions, a stuck write or too old -> both sockets are closed, which unblocks the two forwarding threads
+        IdleWatchdog.Watch watch = idleWatchdog.watch(false, clientSocket, backendSocket);
         //try-with-resources: Ensures backend socket closes when done.
         //this will be treated as client socket by backend both servers. 1 socket and 2 threads used here
-        try (Socket backendSocket = new Socket(backendHost, backendPort)) {
+        try (Socket connectedBackend = backendSocket) {
             // Create threads to forward data in both directions
-            Thread clientToBackend = new Thread(() -> forwardData(clientSocket, backendSocket));
-            Thread backendToClient = new Thread(() -> forwardData(backendSocket, clientSocket));
+            Thread clientToBackend = new Thread(() -> forwardData(clientSocket, connectedBackend, bytesUpstream, null, 0, watch));
+            Thread backendToClient = new Thread(() -> forwardData(connectedBackend, clientSocket, bytesDownstream, target, connectStartNanos, watch));
 
             clientToBackend.start();
             backendToClient.start();
@@ -74,17 +654,37 @@ public class LoadBalancer {
             clientToBackend.join();
             backendToClient.join();
         } catch (Exception ex) {
-            ex.printStackTrace();
+            LOG.error("Proxied connection to {} failed", target, ex);
         } finally {
+            watch.close();
+            target.connectionFinished();
+            clientsClosed.increment();
             try {
                 clientSocket.close();
             } catch (IOException ignored) {}
         }
     }
 
+    //a connect that takes longer than CONNECT_TIMEOUT_MILLIS counts as a failure
+    private static Socket connect(Backend backend) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(backend.getAddress(), CONNECT_TIMEOUT_MILLIS);
+            return socket;
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
     // Copies data from inputSocket to outputSocket
-    //Reads data from in into buffer. bytesRead: Number of bytes read. Writes those bytes to out. Flushes output stream to ensure data is sent immediately.
-    private void forwardData(Socket inputSocket, Socket outputSocket) {
+    //Reads data from in into buffer. bytesRead: Number of bytes read. Writes those bytes to out - one write per read.
+    //No flush(): a socket's OutputStream is unbuffered, every write() already is the send() syscall. Already coalesced by the read:
+    //it returns everything that arrived (up to the buffer size), so pipelined requests/replies go on in one write, not one each.
+    //bytes: counter of this direction; latencyOf: when not null, the time from startNanos to the first byte read is recorded as that backend's latency
+    //watch: told about every read and write, so the watchdog can tell an idle or stuck connection from a busy one
+    private void forwardData(Socket inputSocket, Socket outputSocket, Counter bytes, Backend latencyOf, long startNanos, IdleWatchdog.Watch watch) {
+        boolean upstream = bytes == bytesUpstream;
         try (
             InputStream in = inputSocket.getInputStream();
             OutputStream out = outputSocket.getOutputStream()
@@ -93,20 +693,138 @@ public class LoadBalancer {
             int bytesRead;
             //Loop continues until input is closed (read() returns -1).
             while ((bytesRead = in.read(buffer)) != -1) {
+                watch.touch();
+                if (latencyOf != null) {
+                    latencyOf.recordLatency(System.nanoTime() - startNanos);
+                    latencyOf = null;
+                }
+                watch.writeStarted(upstream);
                 out.write(buffer, 0, bytesRead);
-                out.flush();
+                watch.writeFinished(upstream);
+                bytes.add(bytesRead);
             }
         } catch (IOException ignored) {
             // Connections close naturally when one side ends
         }
     }
 
-    public static void main(String[] args) throws IOException {
-        String[] backendHosts = {"localhost", "localhost"};
-        int[] backendPorts = {8011, 8012};
-        int poolSize = 20;
+    //Optional first argument "nio" runs the selector based proxy instead of the thread per direction one,
+    //"framed" terminates the line protocol and reuses pooled backend connections per request,
+    //optional second argument picks the balancing strategy (round-robin, weighted, least-connections, peak-ewma, p2c, consistent-hash),
+    //optional third argument adds an adaptive concurrency limit to framed mode: aimd or gradient (default none),
+    //optional fourth argument picks the processing pool: shared (default) or work-stealing
+    //Backends come from backends.conf in the working directory when it exists ("host:port [weight]" per line, re-read when it
+    //changes - see BackendConfigWatcher), else localhost:8011 and localhost:8012.
+    //While running, "drain host:port" / "resume host:port" on stdin take a backend out of rotation and back,
+    //"add host:port [weight]" / "remove host:port" / "weight host:port N" change the backends (see startConsole)
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path backendsFile = Paths.get("backends.conf");
+        Backend[] backends = {
+            new Backend("localhost", 8011, 1),
+            new Backend("localhost", 8012, 1)
+        };
+        if (Files.exists(backendsFile)) {
+            Map<String, Integer> configured = BackendConfigWatcher.load(backendsFile);
+            backends = new Backend[configured.size()];
+            int i = 0;
+            for (Map.Entry<String, Integer> entry : configured.entrySet()) {
+                String address = entry.getKey();
+                int colon = address.lastIndexOf(':');
+                backends[i++] = new Backend(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)), entry.getValue());
+            }
+        }
+        int poolSize = 20; //starting size - the auto tuner moves it between minThreads and maxThreads
+        int minThreads = 4;
+        int maxThreads = 256; //every proxied connection holds a thread, so allow far more than the core count
+        int queueCapacity = 200; //clients waiting for a pool thread before "Server busy" (blocking and framed modes)
+        int initialLimit = 20; //starting point of the framed mode concurrency limit
+        int metricsPort = 9010; //plain text metrics at http://localhost:9010/metrics
+        long drainSeconds = 10; //on SIGTERM / Ctrl+C, and per "drain" command: how long in-flight work gets to finish
+        BalancingStrategy strategy = BalancingStrategy.byName(args.length > 1 ? args[1] : "round-robin", backends);
+
+        ProcessingPool.Kind poolKind = ProcessingPool.Kind.byName(args.length > 3 ? args[3] : "shared");
+        ProcessingPool pool = new ProcessingPool(poolKind, poolSize, queueCapacity, OverloadPolicy.FAIL_FAST);
+        LoadBalancer lb = new LoadBalancer(backends, strategy, pool);
+        if (args.length > 2 && !args[2].equalsIgnoreCase("none")) {
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter(LimitAlgorithm.byName(args[2]), initialLimit);
+            limiter.bindMetrics(lb.getMetrics(), "lb");
+            lb.setConcurrencyLimiter(limiter);
+        }
+        lb.getMetrics().registerJmx("webserver:type=LoadBalancer");
+        lb.getMetrics().startEndpoint(metricsPort);
+        lb.startHealthChecks();
+        if (args.length > 0 && args[0].equalsIgnoreCase("nio")) {
+            lb.startNio(8010);
+        } else {
+            new PoolAutoTuner(pool, minThreads, maxThreads, 1000).start();
+            if (args.length > 0 && args[0].equalsIgnoreCase("framed")) {
+                lb.startFramed(8010);
+            } else {
+                lb.start(8010);
+            }
+        }
+        new BackendConfigWatcher(backendsFile, lb, 1000).start();
+        startConsole(lb, drainSeconds);
+        Lifecycle.stopOnShutdown(lb, drainSeconds, TimeUnit.SECONDS);
+        lb.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
 
-        LoadBalancer lb = new LoadBalancer(backendHosts, backendPorts, poolSize);
-        lb.start(8010);
+    //ROLLING RESTART of a backend, one at a time:
+        //1. "drain localhost:8011" - no new traffic to it, waits until what is in flight finished
+        //2. stop the backend (SIGTERM - it drains too), deploy, start it again
+        //3. "resume localhost:8011" - back in rotation
+    //SCALING without a restart:
+        //"add localhost:8013 2" - new backend (weight optional, default 1), gets traffic as soon as it is in the registry
+        //"weight localhost:8013 1" - new weight
+        //"remove localhost:8013" - no new traffic, what is in flight finishes (BACKEND_DRAIN_TIMEOUT_MILLIS), then it is gone
+    //Console changes are not written to backends.conf - the next change of the file replaces them.
+    private static void startConsole(LoadBalancer lb, long drainSeconds) {
+        String usage = "Usage: drain host:port | resume host:port | add host:port [weight] | remove host:port | weight host:port N";
+        Thread console = new Thread(() -> {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] command = line.trim().split("\\s+");
+                    try {
+                        String action = command[0].toLowerCase();
+                        if (action.equals("add") && (command.length == 2 || command.length == 3)) {
+                            int colon = command[1].lastIndexOf(':');
+                            int weight = command.length == 3 ? Integer.parseInt(command[2]) : 1;
+                            lb.addBackend(command[1].substring(0, colon), Integer.parseInt(command[1].substring(colon + 1)), weight);
+                            continue;
+                        }
+                        if (action.equals("remove") && command.length == 2) {
+                            if (!lb.removeBackend(command[1])) {
+                                LOG.warn("No backend {}", command[1]);
+                            }
+                            continue;
+                        }
+                        Backend backend = command.length >= 2 ? lb.findBackend(command[1]) : null;
+                        if (backend == null) {
+                            LOG.warn(usage);
+                        } else if (action.equals("drain") && command.length == 2) {
+                            lb.drainBackend(backend, drainSeconds, TimeUnit.SECONDS);
+                        } else if (action.equals("resume") && command.length == 2) {
+                            lb.resumeBackend(backend);
+                        } else if (action.equals("weight") && command.length == 3) {
+                            lb.setBackendWeight(backend, Integer.parseInt(command[2]));
+                        } else {
+                            LOG.warn(usage);
+                        }
+                    } catch (RuntimeException ex) {
+                        //bad port or weight
+                        LOG.warn(usage);
+                    }
+                }
+            } catch (IOException ignored) {
+                //no console (stdin closed)
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "lb-console");
+        console.setDaemon(true);
+        console.start();
     }
 }
+
@@ -0,0 +1,491 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+//NIO proxy mode of the load balancer - one selector thread shuttles bytes between every client and its backend.
+//
+//Compared to the blocking mode (2 platform threads + an 8 KB byte[] per proxied connection):
+    //1. No threads per connection - a connection is just two SocketChannels registered with the selector.
+    //2. Bytes are read into ONE direct buffer shared by all connections and written straight out again.
+    //   Only when the destination can't take everything does the leftover get parked in a per-direction buffer
+    //   (taken from a free list) and reading from the source pauses until it drains.
+    //3. Half-close is passed through: when one side stops sending (read() == -1) we shutdownOutput() the other side
+    //   and keep forwarding in the opposite direction until it also ends.
+    //4. Timeouts run on the same thread: one TimingWheel timer per session covers the backend connect, idle in both directions,
+    //   parked bytes the destination does not take, and the max lifetime (LoadBalancer.*_TIMEOUT_MILLIS).
+    //5. stop() closes the listening channel and lets the open sessions run until their peers end them or the drain timeout
+    //   is over - the proxy sees bytes, not requests, so it has no request boundary to stop at.
+public class NioProxy implements Runnable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    //spare buffers kept for parking partial writes - beyond this they are left to the GC
+    private static final int MAX_SPARE_BUFFERS = 1024;
+
+    private final LoadBalancer loadBalancer;
+    private final int listenPort;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ByteBuffer transferBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ArrayDeque<ByteBuffer> spareBuffers = new ArrayDeque<>();
+    //only touched by the selector thread
+    private final TimingWheel timers = new TimingWheel(100, TimeUnit.MILLISECONDS, 512);
+    private final long connectTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(LoadBalancer.CONNECT_TIMEOUT_MILLIS);
+    private final long readIdleNanos = TimeUnit.MILLISECONDS.toNanos(LoadBalancer.READ_IDLE_TIMEOUT_MILLIS);
+    private final long writeIdleNanos = TimeUnit.MILLISECONDS.toNanos(LoadBalancer.WRITE_IDLE_TIMEOUT_MILLIS);
+    private final long maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(LoadBalancer.MAX_LIFETIME_MILLIS);
+
+    //GRACEFUL STOP - requested from any thread by stop(), carried out by the selector thread
+    private volatile boolean stopRequested;
+    private volatile long forceCloseAtNanos;
+    private boolean draining;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    //binds the port right away, so a failure shows up before the selector thread is started
+    public NioProxy(LoadBalancer loadBalancer, int listenPort) throws IOException {
+        this.loadBalancer = loadBalancer;
+        this.listenPort = listenPort;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress(listenPort));
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+    }
+
+    //Stops accepting, closes the sessions still open once drainTimeout is over - safe from any thread, returns at once
+    public void stop(long drainTimeout, TimeUnit unit) {
+        forceCloseAtNanos = System.nanoTime() + unit.toNanos(drainTimeout);
+        stopRequested = true;
+        selector.wakeup();
+    }
+
+    //true once the selector thread ended (after stop(), with no session left)
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    //One direction of a proxied connection (client -> backend or backend -> client)
+    private static final class Flow {
+        final SocketChannel from;
+        final SocketChannel to;
+        //bytes read from 'from' that 'to' did not accept yet - null when nothing is pending
+        ByteBuffer pending;
+        //'from' reached end of stream
+        boolean eof;
+        //'to' has been shut down for output
+        boolean done;
+
+        Flow(SocketChannel from, SocketChannel to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    //Both directions plus the selection keys of the two channels; attached to both keys
+    private final class Session {
+        final SocketChannel client;
+        //backend channel and flows are replaced if the first backend's connect fails and another one is tried
+        SocketChannel backend;
+        Flow upstream;   //client -> backend
+        Flow downstream; //backend -> client
+        //counters of the chosen backend: in flight while connected, latency = connect start to first byte back
+        Backend target;
+        long startNanos;
+        int connectAttempts;
+        boolean firstByteSeen;
+        SelectionKey clientKey;
+        SelectionKey backendKey;
+        boolean connected;
+        boolean closed;
+        //TIMEOUTS - plain timestamps, checked when the session's timer fires (see onTimer())
+        final long openedNanos = System.nanoTime();
+        long lastActivityNanos = openedNanos;
+        //last time parked bytes shrank (or got parked) - write idle = they sit there longer than WRITE_IDLE
+        long lastWriteProgressNanos;
+        TimingWheel.Timeout timer;
+
+        Session(SocketChannel client) {
+            this.client = client;
+        }
+
+        boolean hasPending() {
+            return connected && (upstream.pending != null || downstream.pending != null);
+        }
+
+        //recomputes what each channel waits for: read while its flow is open and not backed up, write while the other flow has pending bytes
+        void updateInterest() {
+            if (closed || !connected) {
+                return;
+            }
+            setInterest(clientKey, interestFor(upstream, downstream));
+            setInterest(backendKey, interestFor(downstream, upstream));
+        }
+
+        private int interestFor(Flow outgoing, Flow incoming) {
+            int ops = 0;
+            if (!outgoing.eof && outgoing.pending == null) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (incoming.pending != null) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            return ops;
+        }
+
+        private void setInterest(SelectionKey key, int ops) {
+            if (key.isValid() && key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            LoadBalancer.LOG.info(LoadBalancer.ANSI_YELLOW + "Load Balancer (NIO proxy) is listening on port {}" + LoadBalancer.ANSI_RESET, listenPort);
+
+            while (true) {
+                long timeout = timers.millisToNextTick(System.nanoTime());
+                if (stopRequested) {
+                    if (!draining) {
+                        draining = true;
+                        //closing the channel cancels its key - new connects are refused from here on
+                        serverChannel.close();
+                    }
+                    if (System.nanoTime() - forceCloseAtNanos >= 0) {
+                        closeAll();
+                    }
+                    //cancelled keys only leave keys() on the next select - poll so the loop notices it is empty
+                    if (selector.keys().isEmpty()) {
+                        break;
+                    }
+                    timeout = timeout == 0 ? 100 : Math.min(timeout, 100);
+                }
+                //wakes up for the next timer tick at the latest
+                selector.select(timeout);
+                long busyStart = System.nanoTime();
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptAll();
+                        continue;
+                    }
+                    Session session = (Session) key.attachment();
+                    try {
+                        handle(session, key);
+                    } catch (IOException e) {
+                        //reset by either side - tear down both
+                        close(session);
+                    }
+                }
+                timers.expire(System.nanoTime());
+                loadBalancer.nioLoopBusyTime.recordNanos(System.nanoTime() - busyStart);
+            }
+        } catch (IOException e) {
+            LoadBalancer.LOG.error("NIO proxy stopped", e);
+        } finally {
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException ignored) {}
+            terminated.countDown();
+        }
+    }
+
+    //the drain timeout is over - every session still open is closed
+    private void closeAll() {
+        int closed = 0;
+        for (SelectionKey key : selector.keys()) {
+            Session session = (Session) key.attachment();
+            //each session is attached to two keys - count it once
+            if (session != null && !session.closed) {
+                close(session);
+                closed++;
+            }
+        }
+        if (closed > 0) {
+            LoadBalancer.LOG.warn(LoadBalancer.ANSI_RED + "Drain timeout over - closing {} client connection(s)" + LoadBalancer.ANSI_RESET, closed);
+        }
+    }
+
+    private void acceptAll() throws IOException {
+        SocketChannel client;
+        while ((client = serverChannel.accept()) != null) {
+            client.configureBlocking(false);
+            loadBalancer.clientsAccepted.increment();
+            //getting the server (picked by the balancing strategy) to which the client request will be re-routed
+            //getRemoteAddress() returns the channel's stored address - no allocation per connection
+            Backend target = loadBalancer.nextBackend(LoadBalancer.routingKey(((InetSocketAddress) client.getRemoteAddress()).getAddress()));
+            if (target == null) {
+                //every backend is ejected - fail fast instead of making the client wait on a dead connect
+                LoadBalancer.LOG.warn(LoadBalancer.ANSI_RED + "No healthy backend, closing client" + LoadBalancer.ANSI_RESET);
+                loadBalancer.noBackendErrors.increment();
+                loadBalancer.clientsClosed.increment();
+                client.close();
+                continue;
+            }
+            Session session = new Session(client);
+            //client is registered with no interest until the backend connection is up
+            session.clientKey = client.register(selector, 0, session);
+            connectBackend(session, target);
+            if (!session.closed) {
+                armTimer(session, session.openedNanos);
+            }
+        }
+    }
+
+    //non-blocking connect: finished in handle() when the backend channel becomes connectable
+    private void connectBackend(Session session, Backend target) {
+        session.target = target;
+        session.connectAttempts++;
+        session.startNanos = System.nanoTime();
+        try {
+            SocketChannel backend = SocketChannel.open();
+            session.backend = backend;
+            backend.configureBlocking(false);
+            if (backend.connect(target.getAddress())) {
+                session.backendKey = backend.register(selector, 0, session);
+                connected(session);
+            } else {
+                session.backendKey = backend.register(selector, SelectionKey.OP_CONNECT, session);
+            }
+        } catch (IOException e) {
+            backendFailed(session, e);
+        }
+    }
+
+    //passive health check: the failure counts against the backend, the client is retried once on another backend
+    private void backendFailed(Session session, IOException e) {
+        loadBalancer.backendErrors.increment();
+        session.target.recordFailure();
+        LoadBalancer.LOG.warn(LoadBalancer.ANSI_RED + "Backend {} unavailable: {}" + LoadBalancer.ANSI_RESET, session.target, e.getMessage());
+        if (session.backend != null) {
+            try {
+                session.backend.close();
+            } catch (IOException ignored) {}
+        }
+        Backend retry = session.connectAttempts < 2 ? loadBalancer.nextBackend() : null;
+        if (retry != null) {
+            connectBackend(session, retry);
+        } else {
+            close(session);
+        }
+    }
+
+    private void handle(Session session, SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            try {
+                if (session.backend.finishConnect()) {
+                    connected(session);
+                }
+            } catch (IOException e) {
+                backendFailed(session, e);
+            }
+            return;
+        }
+        boolean isClient = key == session.clientKey;
+        Flow outgoing = isClient ? session.upstream : session.downstream;
+        Flow incoming = isClient ? session.downstream : session.upstream;
+        if (key.isWritable() && flushPending(incoming)) {
+            session.lastWriteProgressNanos = System.nanoTime();
+            session.lastActivityNanos = session.lastWriteProgressNanos;
+        }
+        if (key.isValid() && key.isReadable()) {
+            boolean hadPending = session.hasPending();
+            int bytesRead = transfer(outgoing);
+            if (!hadPending && outgoing.pending != null) {
+                //the write idle clock starts when bytes get parked
+                session.lastWriteProgressNanos = System.nanoTime();
+            }
+            if (bytesRead > 0) {
+                (isClient ? loadBalancer.bytesUpstream : loadBalancer.bytesDownstream).add(bytesRead);
+                session.lastActivityNanos = System.nanoTime();
+            }
+            if (!isClient && bytesRead > 0 && !session.firstByteSeen) {
+                session.firstByteSeen = true;
+                session.target.recordLatency(System.nanoTime() - session.startNanos);
+            }
+        }
+        finishIfDone(session);
+        session.updateInterest();
+    }
+
+    private void connected(Session session) {
+        session.target.recordSuccess();
+        session.target.connectionStarted();
+        session.connected = true;
+        session.upstream = new Flow(session.client, session.backend);
+        session.downstream = new Flow(session.backend, session.client);
+        session.updateInterest();
+    }
+
+    //read once from flow.from into the shared buffer and write it straight to flow.to - returns the bytes read
+    private int transfer(Flow flow) throws IOException {
+        transferBuffer.clear();
+        int bytesRead = flow.from.read(transferBuffer);
+        if (bytesRead == -1) {
+            flow.eof = true;
+            return bytesRead;
+        }
+        if (bytesRead == 0) {
+            return bytesRead;
+        }
+        transferBuffer.flip();
+        flow.to.write(transferBuffer);
+        if (transferBuffer.hasRemaining()) {
+            //destination is full - park the rest, stop reading this flow until it drains (OP_WRITE on the destination)
+            ByteBuffer pending = spareBuffers.isEmpty() ? ByteBuffer.allocateDirect(BUFFER_SIZE) : spareBuffers.poll();
+            pending.clear();
+            pending.put(transferBuffer);
+            pending.flip();
+            flow.pending = pending;
+        }
+        return bytesRead;
+    }
+
+    //returns true if any parked bytes were written
+    private boolean flushPending(Flow flow) throws IOException {
+        if (flow.pending == null) {
+            return false;
+        }
+        int written = flow.to.write(flow.pending);
+        if (!flow.pending.hasRemaining()) {
+            recycle(flow.pending);
+            flow.pending = null;
+        }
+        return written > 0;
+    }
+
+    //propagate half-close and close the session once both directions have ended
+    private void finishIfDone(Session session) throws IOException {
+        finishFlow(session.upstream);
+        finishFlow(session.downstream);
+        if (session.upstream.done && session.downstream.done) {
+            close(session);
+        }
+    }
+
+    private void finishFlow(Flow flow) throws IOException {
+        if (flow.eof && flow.pending == null && !flow.done) {
+            flow.done = true;
+            flow.to.shutdownOutput();
+        }
+    }
+
+    //TIMEOUTS
+    //Runs on the selector thread when a session's timer fires: acts on the first deadline that really passed, else re-arms
+    private void onTimer(Session session) {
+        session.timer = null;
+        if (session.closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (!session.connected) {
+            if (now - session.startNanos >= connectTimeoutNanos) {
+                loadBalancer.connectTimeouts.increment();
+                //counts against the backend and retries once elsewhere, like a refused connect
+                backendFailed(session, new SocketTimeoutException("connect timed out"));
+                if (session.closed) {
+                    return;
+                }
+            }
+        } else if (writeIdleNanos > 0 && session.hasPending() && now - session.lastWriteProgressNanos >= writeIdleNanos) {
+            loadBalancer.writeIdleTimeouts.increment();
+            timedOut(session, "write idle", now - session.lastWriteProgressNanos);
+            return;
+        } else if (readIdleNanos > 0 && !session.hasPending() && now - session.lastActivityNanos >= readIdleNanos) {
+            loadBalancer.readIdleTimeouts.increment();
+            timedOut(session, "read idle", now - session.lastActivityNanos);
+            return;
+        }
+        if (maxLifetimeNanos > 0 && now - session.openedNanos >= maxLifetimeNanos) {
+            //a byte pipe has no request boundary to stop at - just close
+            loadBalancer.lifetimeTimeouts.increment();
+            timedOut(session, "max lifetime", now - session.openedNanos);
+            return;
+        }
+        armTimer(session, now);
+    }
+
+    //arms the session's timer for the earliest deadline that can still pass
+    private void armTimer(Session session, long now) {
+        long next = Long.MAX_VALUE;
+        if (!session.connected) {
+            next = session.startNanos + connectTimeoutNanos;
+        } else {
+            boolean pending = session.hasPending();
+            if (writeIdleNanos > 0) {
+                next = Math.min(next, (pending ? session.lastWriteProgressNanos : now) + writeIdleNanos);
+            }
+            if (readIdleNanos > 0) {
+                next = Math.min(next, (pending ? now : session.lastActivityNanos) + readIdleNanos);
+            }
+        }
+        if (maxLifetimeNanos > 0) {
+            next = Math.min(next, session.openedNanos + maxLifetimeNanos);
+        }
+        if (next != Long.MAX_VALUE) {
+            session.timer = timers.schedule(() -> onTimer(session), Math.max(0, next - now), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void timedOut(Session session, String reason, long afterNanos) {
+        LoadBalancer.LOG.info(LoadBalancer.ANSI_RED + "Closing connection: " + reason + " for {} ms" + LoadBalancer.ANSI_RESET, TimeUnit.NANOSECONDS.toMillis(afterNanos));
+        close(session);
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        if (spareBuffers.size() < MAX_SPARE_BUFFERS) {
+            spareBuffers.add(buffer);
+        }
+    }
+
+    private void close(Session session) {
+        if (session.closed) {
+            return;
+        }
+        session.closed = true;
+        loadBalancer.clientsClosed.increment();
+        if (session.timer != null) {
+            session.timer.cancel();
+            session.timer = null;
+        }
+        if (session.connected) {
+            session.target.connectionFinished();
+            if (session.upstream.pending != null) {
+                recycle(session.upstream.pending);
+                session.upstream.pending = null;
+            }
+            if (session.downstream.pending != null) {
+                recycle(session.downstream.pending);
+                session.downstream.pending = null;
+            }
+        }
+        try {
+            session.client.close();
+        } catch (IOException ignored) {}
+        if (session.backend != null) {
+            try {
+                session.backend.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
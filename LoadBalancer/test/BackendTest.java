@@ -0,0 +1,29 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//Peak EWMA latency of a Backend - the cost PeakEwma and PowerOfTwoChoices pick by
+class BackendTest {
+    private static final long MILLIS = 1_000_000L;
+    private static final long SECONDS = 1_000_000_000L;
+
+    @Test
+    void slowSampleReplacesTheAverageAtOnce() {
+        Backend backend = new Backend("127.0.0.1", 1, 1);
+        backend.recordLatency(10 * MILLIS);
+        backend.recordLatency(SECONDS);
+        assertTrue(backend.getEwmaLatencyNanos() > 900 * MILLIS);
+    }
+
+    //a backend that lost every pick after one slow sample gets no traffic, so no new sample - its cost must still come down
+    @Test
+    void slowBackendRecoversWithoutTraffic() {
+        Backend backend = new Backend("127.0.0.1", 1, 1);
+        backend.recordLatency(SECONDS);
+        long now = System.nanoTime();
+        double peak = backend.getEwmaLatencyNanos(now);
+        assertTrue(backend.getEwmaLatencyNanos(now + 5 * SECONDS) < peak / 2);
+        //a minute later it is cheaper than a backend answering in 1 ms, so it is picked again
+        assertTrue(backend.getEwmaLatencyNanos(now + 60 * SECONDS) < MILLIS);
+    }
+}
@@ -0,0 +1,50 @@
+//Requests written on one connection and not answered yet, oldest first. Replies come back in request order,
+//so every reply line simply completes the head. Fixed capacity (the pipeline depth) - a ring of primitives, nothing boxed.
+//Synchronized because the virtual-thread engine writes and reads a connection on two different threads.
+public final class InFlightQueue {
+    private final long[] requests;
+    private final long[] sentNanos;
+    private int head;
+    private int size;
+
+    public InFlightQueue(int capacity) {
+        this.requests = new long[capacity];
+        this.sentNanos = new long[capacity];
+    }
+
+    public synchronized void add(long k, long sent) {
+        if (size == requests.length) {
+            throw new IllegalStateException("More than " + requests.length + " requests in flight");
+        }
+        int tail = (head + size) % requests.length;
+        requests[tail] = k;
+        sentNanos[tail] = sent;
+        size++;
+    }
+
+    //request number of the oldest entry - only valid while !isEmpty()
+    public synchronized long peekRequest() {
+        return requests[head];
+    }
+
+    public synchronized long peekSentNanos() {
+        return sentNanos[head];
+    }
+
+    public synchronized void remove() {
+        head = (head + 1) % requests.length;
+        size--;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size() == requests.length;
+    }
+}
@@ -0,0 +1,11 @@
+import java.io.IOException;
+
+//How the LoadGenerator's schedule is turned into traffic. Both engines send request k no earlier than
+//LoadGenerator.intendedTime(k) and measure its latency from that time, so the schedule alone decides the offered load.
+public interface LoadEngine {
+    //Opens the keep-alive connections and reads their greetings - called before the clock starts, so setup is not measured
+    void connect() throws IOException;
+
+    //Sends every scheduled request and waits for the replies (at most until LoadGenerator.deadline()), returns the merged results
+    LoadGenerator.Results run() throws IOException, InterruptedException;
+}
@@ -0,0 +1,242 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+
+//Open-loop load generator for every server in this repo (newline framed: the request is a number, the reply one line).
+//
+//Why not MultiThreaded/Client? It is closed-loop: each thread sends one request and waits for the reply before anything else
+//happens. When the server stalls, the client simply stops sending, so the stall shows up as ONE slow request instead of
+//all the requests that should have been sent meanwhile (coordinated omission) - the percentiles look far better than reality.
+//
+//Here requests follow a fixed schedule instead: request k is due at start + k / rate, whether or not earlier ones were answered.
+    //1. Corrected latency = reply time - time the request was DUE. A request that waited for a free connection/pipeline slot
+    //   because the server was slow is charged for that wait, exactly like a real user arriving at that moment would be.
+    //2. Uncorrected latency = reply time - time the request was actually written - what a closed-loop client would report.
+    //   A large gap between the two means the server (not the network) could not keep up with the rate.
+//Latencies go into HdrHistograms (constant memory, ~0.1% precision, no allocation while recording).
+//
+//Usage: java -jar LoadGenerator/target/load-generator.jar --port 8010 --rate 2000 --duration 30 --connections 16
+//Options (all optional):
+    //--host localhost  --port 8010
+    //--rate 1000          requests per second (the schedule)
+    //--duration 30        seconds measured, after --warmup 5 seconds whose results are dropped
+    //--connections 16     connections in use at the same time
+    //--keep-alive true    false = one request per connection (connect, send, read the reply, close) like the blocking servers expect
+    //--pipeline 1         requests in flight per keep-alive connection (only NonBlockingThreadPool answers pipelined requests)
+    //--engine nio         nio = one selector thread for all connections, virtual = blocking sockets on virtual threads (JDK 21+)
+    //--greeting 1         lines the server sends on accept before any reply ("Hello ...") - skipped. NonBlockingThreadPool and the
+    //                     LoadBalancer greet first; SingleThreaded/MultiThreaded/ThreadPool send exactly one line per connection,
+    //                     so run those with --keep-alive false --greeting 0 (that line is the reply)
+    //--payload 1          the request line
+    //--hgrm file          also write the full corrected percentile distribution (HdrHistogram .hgrm format, in ms) for plotting
+public class LoadGenerator {
+    public static final String ANSI_RESET = "\u001B[0m";
+    public static final String ANSI_RED = "\u001B[31m";
+    public static final String ANSI_YELLOW = "\u001B[33m";
+    public static final String ANSI_CYAN = "\u001B[36m";
+
+    //latencies are recorded in microseconds, anything above an hour is clamped
+    static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+    //requests still unanswered this long after the last one was due are counted as errors
+    static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    final InetSocketAddress address;
+    final int rate;
+    final int connections;
+    final boolean keepAlive;
+    final int pipelineDepth;
+    final int greetingLines;
+    //the request line including the '\n' framing
+    final byte[] request;
+    private final long warmupRequests;
+    private final long totalRequests;
+    //set once the connections are up, the schedule counts from here
+    private volatile long startNanos;
+
+    public LoadGenerator(InetSocketAddress address, int rate, int durationSeconds, int warmupSeconds, int connections,
+                         boolean keepAlive, int pipelineDepth, int greetingLines, String payload) {
+        if (rate < 1 || durationSeconds < 1 || warmupSeconds < 0 || connections < 1 || pipelineDepth < 1 || greetingLines < 0) {
+            throw new IllegalArgumentException("rate, duration, connections and pipeline must be at least 1, warmup and greeting at least 0");
+        }
+        if (!keepAlive && pipelineDepth > 1) {
+            throw new IllegalArgumentException("pipelining needs keep-alive connections");
+        }
+        this.address = address;
+        this.rate = rate;
+        this.connections = connections;
+        this.keepAlive = keepAlive;
+        this.pipelineDepth = pipelineDepth;
+        this.greetingLines = greetingLines;
+        this.request = (payload + "\n").getBytes(StandardCharsets.US_ASCII);
+        this.warmupRequests = (long) rate * warmupSeconds;
+        this.totalRequests = warmupRequests + (long) rate * durationSeconds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String host = options.getOrDefault("host", "localhost");
+        int port = Integer.parseInt(options.getOrDefault("port", "8010"));
+        int rate = Integer.parseInt(options.getOrDefault("rate", "1000"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        int connections = Integer.parseInt(options.getOrDefault("connections", "16"));
+        boolean keepAlive = Boolean.parseBoolean(options.getOrDefault("keep-alive", "true"));
+        int pipeline = Integer.parseInt(options.getOrDefault("pipeline", "1"));
+        int greeting = Integer.parseInt(options.getOrDefault("greeting", "1"));
+        String payload = options.getOrDefault("payload", "1");
+        String engineName = options.getOrDefault("engine", "nio");
+
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress(host, port), rate, duration, warmup, connections,
+                keepAlive, pipeline, greeting, payload);
+        LoadEngine engine;
+        switch (engineName) {
+            case "nio":
+                engine = new NioLoadEngine(generator);
+                break;
+            case "virtual":
+                engine = new VirtualThreadLoadEngine(generator);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine " + engineName + " (expected nio or virtual)");
+        }
+
+        System.out.println(ANSI_YELLOW + "Target " + rate + " req/s for " + duration + " s (+" + warmup + " s warmup) against " + host + ":" + port
+                + " - " + connections + " connections, keep-alive " + keepAlive + ", pipeline " + pipeline + ", engine " + engineName + ANSI_RESET);
+        Results results = generator.run(engine);
+        results.print(System.out, duration);
+        if (options.containsKey("hgrm")) {
+            try (PrintStream out = new PrintStream(new FileOutputStream(options.get("hgrm")))) {
+                //microseconds in the histogram, scaled so the file reads in milliseconds
+                results.corrected.outputPercentileDistribution(out, 1000.0);
+            }
+        }
+    }
+
+    //--name value pairs
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --name value pairs, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    public Results run(LoadEngine engine) throws IOException, InterruptedException {
+        engine.connect();
+        startNanos = System.nanoTime();
+        return engine.run();
+    }
+
+    public long totalRequests() {
+        return totalRequests;
+    }
+
+    //when request k is due - never depends on when earlier requests were answered (that is what makes it open-loop)
+    public long intendedTime(long k) {
+        return startNanos + (long) (k * 1_000_000_000.0 / rate);
+    }
+
+    //after the last request was due plus DRAIN_TIMEOUT_NANOS nothing more is waited for
+    public long deadline() {
+        return intendedTime(totalRequests - 1) + DRAIN_TIMEOUT_NANOS;
+    }
+
+    boolean isMeasured(long k) {
+        return k >= warmupRequests;
+    }
+
+    //sleeps until the given System.nanoTime() - parkNanos, so a virtual thread unmounts instead of blocking its carrier
+    static void parkUntil(long deadlineNanos) {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    //replies are newline framed, so only the '\n' bytes matter - nothing is decoded and nothing allocated
+    static int countNewlines(byte[] bytes, int length) {
+        int lines = 0;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    //Latencies and counters of one engine thread (or connection) - not thread-safe, merged with add() at the end
+    public static final class Results {
+        final Histogram corrected = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+        final Histogram uncorrected = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+        long completed;
+        long errors;
+        //nanoTime of the last reply, for the achieved throughput
+        long lastReplyNanos;
+        private final LoadGenerator generator;
+
+        Results(LoadGenerator generator) {
+            this.generator = generator;
+        }
+
+        //request k was due at intendedTime(k), written at sentNanos and answered at replyNanos
+        void record(long k, long sentNanos, long replyNanos) {
+            lastReplyNanos = Math.max(lastReplyNanos, replyNanos);
+            if (!generator.isMeasured(k)) {
+                return;
+            }
+            completed++;
+            corrected.recordValue(toMicros(replyNanos - generator.intendedTime(k)));
+            uncorrected.recordValue(toMicros(replyNanos - sentNanos));
+        }
+
+        void recordError(long k) {
+            if (generator.isMeasured(k)) {
+                errors++;
+            }
+        }
+
+        void add(Results other) {
+            corrected.add(other.corrected);
+            uncorrected.add(other.uncorrected);
+            completed += other.completed;
+            errors += other.errors;
+            lastReplyNanos = Math.max(lastReplyNanos, other.lastReplyNanos);
+        }
+
+        private static long toMicros(long nanos) {
+            return Math.min(Math.max(nanos / 1000, 0), HIGHEST_TRACKABLE_MICROS);
+        }
+
+        void print(PrintStream out, int durationSeconds) {
+            //measured window: from the first measured request's due time to the last reply (or the planned end, if that is later)
+            long windowStart = generator.intendedTime(generator.warmupRequests);
+            long windowNanos = Math.max(lastReplyNanos - windowStart, TimeUnit.SECONDS.toNanos(durationSeconds));
+            out.printf("%sRequests: %d ok, %d errors - throughput %.1f req/s (target %d req/s)%s%n", ANSI_CYAN,
+                    completed, errors, completed * 1e9 / windowNanos, generator.rate, ANSI_RESET);
+            out.printf("%-12s %10s %10s %10s %10s %10s %10s%n", "latency ms", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+            printRow(out, "corrected", corrected);
+            printRow(out, "uncorrected", uncorrected);
+            if (errors > 0) {
+                out.println(ANSI_RED + errors + " requests failed or timed out" + ANSI_RESET);
+            }
+        }
+
+        private static void printRow(PrintStream out, String label, Histogram histogram) {
+            out.printf("%-12s %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f%n", label,
+                    histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getValueAtPercentile(99.99) / 1000.0, histogram.getMaxValue() / 1000.0);
+        }
+    }
+}
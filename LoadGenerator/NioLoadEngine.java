@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+//One selector thread drives every connection - the generator itself never becomes the bottleneck with thousands of connections,
+//and no thread has to wake up per request.
+//
+//Loop:
+    //1. Every request that is due by now is handed to the next connection with a free pipeline slot (round robin).
+    //   Due requests that find no free slot just wait - their latency already counts from the time they were due.
+    //2. select() until the next request is due (or a reply arrives), then count the '\n' in whatever was read:
+    //   every line completes the oldest request in flight on that connection.
+    //3. Without keep-alive a connection is opened per request and closed after its reply line, so the connect is part of the latency.
+public class NioLoadEngine implements LoadEngine {
+    private final LoadGenerator generator;
+    private final Selector selector;
+    private final Slot[] slots;
+    private final LoadGenerator.Results results;
+    //replies are only scanned for '\n', so one buffer serves every connection
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    //next request of the schedule to be sent
+    private long nextRequest;
+    //round-robin position for picking a slot
+    private int nextSlot;
+    //requests written (or waiting for a connect) and not yet answered, over all slots
+    private long inFlight;
+
+    public NioLoadEngine(LoadGenerator generator) throws IOException {
+        this.generator = generator;
+        this.selector = Selector.open();
+        this.results = new LoadGenerator.Results(generator);
+        this.slots = new Slot[generator.connections];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    //One connection position - the channel is replaced when it fails, or after every reply without keep-alive
+    private final class Slot {
+        SocketChannel channel;
+        SelectionKey key;
+        boolean connected;
+        //greeting lines still to be skipped on the current channel
+        int greetingLeft;
+        final InFlightQueue inFlight = new InFlightQueue(generator.pipelineDepth);
+        //request bytes not yet accepted by the socket
+        final ByteBuffer outbound = ByteBuffer.allocate(generator.request.length * generator.pipelineDepth);
+
+        boolean hasCapacity() {
+            return !inFlight.isFull();
+        }
+
+        void open() throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            //otherwise Nagle holds a pipelined request back until the previous one is acknowledged
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            connected = channel.connect(generator.address);
+            key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            greetingLeft = generator.greetingLines;
+        }
+
+        //queued first, so a failing connect still finds the request in flight and fail() counts it
+        void send(long k, long now) throws IOException {
+            inFlight.add(k, now);
+            NioLoadEngine.this.inFlight++;
+            outbound.put(generator.request);
+            if (channel == null) {
+                open();
+            }
+            if (connected) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            outbound.flip();
+            channel.write(outbound);
+            boolean pending = outbound.hasRemaining();
+            outbound.compact();
+            key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        void finishConnect() throws IOException {
+            channel.finishConnect();
+            connected = true;
+            flush();
+        }
+
+        void read(long now) throws IOException {
+            int bytesRead;
+            while ((bytesRead = channel.read(readBuffer.clear())) > 0) {
+                int lines = LoadGenerator.countNewlines(readBuffer.array(), bytesRead);
+                for (int i = 0; i < lines; i++) {
+                    if (greetingLeft > 0) {
+                        greetingLeft--;
+                    } else if (!inFlight.isEmpty()) {
+                        results.record(inFlight.peekRequest(), inFlight.peekSentNanos(), now);
+                        inFlight.remove();
+                        NioLoadEngine.this.inFlight--;
+                    }
+                }
+                if (!generator.keepAlive && inFlight.isEmpty()) {
+                    //one request per connection - done with this one
+                    closeChannel();
+                    return;
+                }
+            }
+            if (bytesRead == -1) {
+                throw new IOException("Connection closed by server");
+            }
+        }
+
+        //the connection broke: everything in flight on it is lost, the next send opens a new one
+        void fail() {
+            while (!inFlight.isEmpty()) {
+                results.recordError(inFlight.peekRequest());
+                inFlight.remove();
+                NioLoadEngine.this.inFlight--;
+            }
+            closeChannel();
+        }
+
+        void closeChannel() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // nothing left to read from it anyway
+            }
+            channel = null;
+            key = null;
+            connected = false;
+            outbound.clear();
+        }
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (!generator.keepAlive) {
+            return;
+        }
+        for (Slot slot : slots) {
+            slot.open();
+        }
+        //wait for every connect and greeting, so none of it is measured
+        while (!allReady()) {
+            selector.select(1000);
+            Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+            while (iter.hasNext()) {
+                SelectionKey key = iter.next();
+                iter.remove();
+                Slot slot = (Slot) key.attachment();
+                if (key.isConnectable()) {
+                    slot.finishConnect();
+                } else if (key.isReadable()) {
+                    slot.read(System.nanoTime());
+                }
+            }
+        }
+    }
+
+    private boolean allReady() {
+        for (Slot slot : slots) {
+            if (!slot.connected || slot.greetingLeft > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public LoadGenerator.Results run() throws IOException {
+        long total = generator.totalRequests();
+        long deadline = generator.deadline();
+        while (nextRequest < total || inFlight > 0) {
+            long now = System.nanoTime();
+            if (now > deadline) {
+                break;
+            }
+            sendDue(now);
+
+            //sleep until the next request is due, or until a reply comes in
+            long wait = nextRequest < total ? generator.intendedTime(nextRequest) - now : deadline - now;
+            if (wait <= 0) {
+                //a request is due but every slot is busy - only a reply can free one, no point spinning
+                wait = deadline - now;
+            }
+            if (wait < 1_000_000) {
+                //under a millisecond - select() can't wait that precisely, so poll
+                selector.selectNow();
+            } else {
+                selector.select(wait / 1_000_000);
+            }
+            now = System.nanoTime();
+            Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+            while (iter.hasNext()) {
+                SelectionKey key = iter.next();
+                iter.remove();
+                Slot slot = (Slot) key.attachment();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isConnectable()) {
+                        slot.finishConnect();
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        slot.flush();
+                    }
+                    if (key.isReadable()) {
+                        slot.read(now);
+                    }
+                } catch (IOException e) {
+                    slot.fail();
+                }
+            }
+        }
+
+        //whatever is still unanswered (or was never sent) at the deadline counts as failed
+        for (Slot slot : slots) {
+            slot.fail();
+        }
+        for (long k = nextRequest; k < total; k++) {
+            results.recordError(k);
+        }
+        selector.close();
+        return results;
+    }
+
+    private void sendDue(long now) {
+        while (nextRequest < generator.totalRequests() && generator.intendedTime(nextRequest) <= now) {
+            Slot slot = freeSlot();
+            if (slot == null) {
+                //every connection is busy - the request stays due and its wait is measured
+                return;
+            }
+            try {
+                slot.send(nextRequest, now);
+            } catch (IOException e) {
+                slot.fail();
+            }
+            nextRequest++;
+        }
+    }
+
+    private Slot freeSlot() {
+        for (int i = 0; i < slots.length; i++) {
+            Slot slot = slots[nextSlot];
+            nextSlot = (nextSlot + 1) % slots.length;
+            if (slot.hasCapacity()) {
+                return slot;
+            }
+        }
+        return null;
+    }
+}
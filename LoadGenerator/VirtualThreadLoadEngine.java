@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Plain blocking sockets, one virtual thread per connection (two with keep-alive: a writer and a reader, so requests can be
+//pipelined while replies are still coming back). Blocking calls unmount the virtual thread, so thousands of connections are cheap.
+//Needs JDK 21+ - on older JDKs ConnectionHandler's factory throws UnsupportedOperationException.
+//
+//Every writer claims the next request number from a shared counter, waits until that request is due and sends it.
+//If all connections are busy the claim happens late, but the latency is still measured from the due time.
+public class VirtualThreadLoadEngine implements LoadEngine {
+    private final LoadGenerator generator;
+    //next request of the schedule to be claimed by a writer
+    private final AtomicLong nextRequest = new AtomicLong();
+    private final ExecutorService executor;
+    private final Socket[] sockets;
+    private final InFlightQueue[] inFlights;
+    //one per connection, only touched by that connection's reader (or its single thread without keep-alive)
+    private final LoadGenerator.Results[] results;
+
+    public VirtualThreadLoadEngine(LoadGenerator generator) {
+        this.generator = generator;
+        //created up front, so a JDK without virtual threads fails before any connection is opened
+        this.executor = ConnectionHandler.newVirtualThreadPerTaskExecutor();
+        this.sockets = new Socket[generator.connections];
+        this.inFlights = new InFlightQueue[generator.connections];
+        this.results = new LoadGenerator.Results[generator.connections];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = new LoadGenerator.Results(generator);
+            inFlights[i] = new InFlightQueue(generator.pipelineDepth);
+        }
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (!generator.keepAlive) {
+            return;
+        }
+        byte[] buffer = new byte[1024];
+        for (int i = 0; i < sockets.length; i++) {
+            sockets[i] = new Socket();
+            //otherwise Nagle holds a pipelined request back until the previous one is acknowledged
+            sockets[i].setTcpNoDelay(true);
+            sockets[i].connect(generator.address);
+            skipLines(sockets[i].getInputStream(), buffer, generator.greetingLines);
+        }
+    }
+
+    @Override
+    public LoadGenerator.Results run() throws InterruptedException {
+        for (int i = 0; i < sockets.length; i++) {
+            int connection = i;
+            if (generator.keepAlive) {
+                InFlightQueue inFlight = inFlights[i];
+                Semaphore window = new Semaphore(generator.pipelineDepth);
+                executor.execute(() -> writeLoop(connection, inFlight, window));
+                executor.execute(() -> readLoop(connection, inFlight, window));
+            } else {
+                executor.execute(() -> requestPerConnectionLoop(connection));
+            }
+        }
+        executor.shutdown();
+        long waitNanos = generator.deadline() - System.nanoTime();
+        if (!executor.awaitTermination(Math.max(waitNanos, 0) + TimeUnit.SECONDS.toNanos(1), TimeUnit.NANOSECONDS)) {
+            //stuck in a connect or read past the deadline - closing the sockets wakes them up
+            for (Socket socket : sockets) {
+                closeQuietly(socket);
+            }
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+
+        LoadGenerator.Results merged = new LoadGenerator.Results(generator);
+        for (int i = 0; i < results.length; i++) {
+            //a writer can still add a request after its reader gave up on a broken connection
+            InFlightQueue inFlight = inFlights[i];
+            while (!inFlight.isEmpty()) {
+                results[i].recordError(inFlight.peekRequest());
+                inFlight.remove();
+            }
+            merged.add(results[i]);
+        }
+        //requests never claimed by any writer (every connection failed) are failures too
+        for (long k = nextRequest.get(); k < generator.totalRequests(); k++) {
+            merged.recordError(k);
+        }
+        return merged;
+    }
+
+    //claims the next request, or -1 once the schedule is done - the counter keeps growing past the end, which is harmless
+    private long claim() {
+        long k = nextRequest.getAndIncrement();
+        return k < generator.totalRequests() ? k : -1;
+    }
+
+    private void writeLoop(int connection, InFlightQueue inFlight, Semaphore window) {
+        Socket socket = sockets[connection];
+        try {
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                //a pipeline slot first, then a request - so a full connection does not sit on a claimed request
+                window.acquire();
+                long k = claim();
+                if (k < 0) {
+                    break;
+                }
+                LoadGenerator.parkUntil(generator.intendedTime(k));
+                inFlight.add(k, System.nanoTime());
+                out.write(generator.request);
+                out.flush();
+            }
+            //every request is sent - close once the replies are in (or the deadline passed), that ends the reader
+            window.release();
+            window.tryAcquire(generator.pipelineDepth, Math.max(generator.deadline() - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (IOException | InterruptedException e) {
+            // the reader counts whatever was in flight as failed
+        }
+        closeQuietly(socket);
+    }
+
+    private void readLoop(int connection, InFlightQueue inFlight, Semaphore window) {
+        LoadGenerator.Results connectionResults = results[connection];
+        byte[] buffer = new byte[16 * 1024];
+        try {
+            InputStream in = sockets[connection].getInputStream();
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                long now = System.nanoTime();
+                int lines = LoadGenerator.countNewlines(buffer, bytesRead);
+                for (int i = 0; i < lines && !inFlight.isEmpty(); i++) {
+                    connectionResults.record(inFlight.peekRequest(), inFlight.peekSentNanos(), now);
+                    inFlight.remove();
+                    window.release();
+                }
+            }
+        } catch (IOException e) {
+            // closed by the writer when done, or reset by the server
+        }
+        while (!inFlight.isEmpty()) {
+            connectionResults.recordError(inFlight.peekRequest());
+            inFlight.remove();
+        }
+        //a writer still waiting for a slot must not hang on a dead connection
+        closeQuietly(sockets[connection]);
+        window.release(generator.pipelineDepth);
+    }
+
+    //no keep-alive: connect, skip the greeting, send, read the reply, close - once per request
+    private void requestPerConnectionLoop(int connection) {
+        LoadGenerator.Results connectionResults = results[connection];
+        byte[] buffer = new byte[1024];
+        long k;
+        while ((k = claim()) >= 0) {
+            LoadGenerator.parkUntil(generator.intendedTime(k));
+            long sent = System.nanoTime();
+            try (Socket socket = new Socket()) {
+                //published so run() can close it if it outlives the deadline
+                sockets[connection] = socket;
+                socket.connect(generator.address);
+                socket.getOutputStream().write(generator.request);
+                skipLines(socket.getInputStream(), buffer, generator.greetingLines + 1);
+                connectionResults.record(k, sent, System.nanoTime());
+            } catch (IOException e) {
+                connectionResults.recordError(k);
+            }
+        }
+    }
+
+    //reads until the given number of '\n' went by
+    private static void skipLines(InputStream in, byte[] buffer, int lines) throws IOException {
+        while (lines > 0) {
+            int bytesRead = in.read(buffer);
+            if (bytesRead == -1) {
+                throw new IOException("Connection closed by server");
+            }
+            lines -= LoadGenerator.countNewlines(buffer, bytesRead);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Ignore cleanup errors
+        }
+    }
+}
@@ -2,8 +2,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 public class Server {
@@ -18,6 +18,8 @@ public class Server {
     public static final String ANSI_CYAN = "\u001B[36m";
     public static final String ANSI_WHITE = "\u001B[37m";
 
+    //handler threads only enqueue log records - the console is written by the logger's own thread
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
 
     //This is a handler that just takes a Client Socket and greets it and closes the connection
     //Consumer<Socket> is a functional interface from java.util.function, it represents an operation that takes a Socket and does something with it, but returns no value.
@@ -30,10 +32,9 @@ public class Server {
                 toSocket.println("Hello " + clientSocket.getInetAddress());
 
                 //End of while loop means end of 1 connection
-                System.out.println();
-                System.out.println(ANSI_RED+"Connection Ended by Client "+(number)+ANSI_RESET);
+                LOG.info(ANSI_RED+"Connection Ended by Client {}"+ANSI_RESET, number);
             } catch (IOException ex) {
-                ex.printStackTrace();
+                LOG.error("Client handler failed", ex);
             }
         };
     }
@@ -52,31 +53,44 @@ public class Server {
     // }
     
 
+    //Optional first argument picks the execution mode: PLATFORM_PER_CONNECTION (default), FIXED_POOL or VIRTUAL_PER_CONNECTION
+    //Optional second argument adds an adaptive concurrency limit: aimd or gradient (default none) - a thread per connection
+    //has no queue to bound, so the limit is what keeps a spike from starting thousands of threads
     public static void main(String[] args) {
         int port = 8010;
+        int poolSize = 10; //only used by FIXED_POOL
+        int queueCapacity = 100; //only used by FIXED_POOL - full queue answers "Server busy"
+        int initialLimit = 50; //starting point of the adaptive concurrency limit
         Server server = new Server();
+        ConnectionHandler.Mode mode = ConnectionHandler.modeFromArgs(args, ConnectionHandler.Mode.PLATFORM_PER_CONNECTION);
+        //the same getConsumer() logic runs under whichever strategy was picked
+        ConnectionHandler connectionHandler = new ConnectionHandler(mode, poolSize, queueCapacity, OverloadPolicy.FAIL_FAST, server.getConsumer());
+        if (args.length > 1 && !args[1].equalsIgnoreCase("none")) {
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter(LimitAlgorithm.byName(args[1]), initialLimit);
+            limiter.bindMetrics(connectionHandler.getMetrics(), "blocking");
+            connectionHandler.setConcurrencyLimiter(limiter);
+        }
+        int metricsPort = 9010; //plain text metrics at http://localhost:9010/metrics
+        long drainSeconds = 10; //on SIGTERM / Ctrl+C: stop accepting, give accepted clients this long, then close them
+        //accept thread: every accepted client is handed to the connection handler, which creates a new thread for it
+        //(or hands it to the pool / a virtual thread) - by calling getConsumer() we got the handler logic it runs
+        BlockingServer acceptor = new BlockingServer("MultiThreaded", connectionHandler);
         
         try {
-            //Created a new Server Socket with only port
-            ServerSocket serverSocket = new ServerSocket(port);
-            //Server Closes in 7 Seconds if no clients connect
-            serverSocket.setSoTimeout(20000);
-
-            System.out.println(ANSI_YELLOW+"Server is listening on port " + port+ANSI_RESET);
-            System.out.println();
+            connectionHandler.getMetrics().registerJmx("webserver:type=MultiThreaded");
+            connectionHandler.getMetrics().startEndpoint(metricsPort);
+            //Created a new Server Socket with only port - no accept timeout any more, the server runs until it is stopped
+            acceptor.start(port);
 
-            while (true) {
-                //Server Waits here till it recieve a connection from client
-                Socket clientSocket = serverSocket.accept();
-                
-                
-                // Create and start a new thread for each client request
-                //by calling getConsumer() we get an object/handler which can handle (perform a certain task) a client socket
-                Thread thread = new Thread(() -> server.getConsumer().accept(clientSocket));
-                thread.start();
-            }
+            LOG.info(ANSI_YELLOW+"Server is listening on port {} ({})"+ANSI_RESET, port, mode);
+            Lifecycle.stopOnShutdown(acceptor, drainSeconds, TimeUnit.SECONDS);
+            acceptor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
         } catch (IOException ex) {
-            ex.printStackTrace();
+            LOG.error("Server stopped", ex);
+            connectionHandler.shutdown();
+            connectionHandler.getMetrics().stopEndpoint();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
     
@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+//The boss reactor - it only waits for OP_ACCEPT and hands every new SocketChannel to one of the I/O event loops (round robin).
+//With SO_REUSEPORT several Acceptors can each own a ServerSocketChannel bound to the same port and the kernel spreads new connections across them.
+public class Acceptor implements Runnable {
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] eventLoops;
+    private final Selector selector;
+    //only touched by this acceptor's thread, so a plain int is enough
+    private int next;
+    private volatile boolean running = true;
+
+    public Acceptor(ServerSocketChannel serverChannel, EventLoop[] eventLoops, int firstLoop) throws IOException {
+        this.serverChannel = serverChannel;
+        this.eventLoops = eventLoops;
+        this.next = firstLoop;
+        this.selector = Selector.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    //Graceful stop, step 1: closes the listening socket so new clients are refused - safe from any thread
+    public void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {}
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        acceptAll();
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    Server.LOG.warn(Server.ANSI_RED + "Acceptor error: {}" + Server.ANSI_RESET, e.getMessage());
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    //drain the whole accept backlog in one wakeup - accept() returns null once it is empty
+    private void acceptAll() throws IOException {
+        SocketChannel clientChannel;
+        while ((clientChannel = serverChannel.accept()) != null) {
+            clientChannel.configureBlocking(false);
+            EventLoop loop = eventLoops[next];
+            next = (next + 1) % eventLoops.length;
+            loop.register(clientChannel);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+//One client of the AsyncServer. There is no selector and no loop: the connection STARTS a read and returns, the kernel
+//completes it, and a thread of the channel group runs the CompletionHandler - which decodes the frames, answers them and
+//starts the next read. The "loop" of a connection is this chain of callbacks.
+//
+//OWNERSHIP instead of a loop thread
+    //1. at most one read is outstanding (the API forbids two) - the read chain alone touches the inbound buffer and the decoder
+    //2. at most one write is outstanding - replies queued meanwhile wait in outbound and all go out in the next (gathering) write
+    //3. a read completion and a write completion of the same connection can run at the same time on two group threads,
+    //   so the state they share (queue, flags) is guarded by this connection's monitor - held briefly, never during I/O
+//Unlike a selector a pending read needs its buffer up front, so every connection holds one pooled buffer for its lifetime.
+final class AsyncConnection {
+    //buffers handed to one gathering write - more queued replies simply wait for the next one
+    private static final int MAX_GATHER = 16;
+
+    //read chain states
+    private static final int READ_PENDING = 0;
+    private static final int READ_PROCESSING = 1;
+    private static final int READ_PAUSED = 2;
+    private static final int READ_STOPPED = 3;
+
+    //one handler instance for every connection - the connection travels as the attachment, nothing is allocated per operation
+    private static final CompletionHandler<Integer, AsyncConnection> READ = new CompletionHandler<>() {
+        @Override
+        public void completed(Integer bytes, AsyncConnection connection) {
+            connection.onRead(bytes);
+        }
+
+        @Override
+        public void failed(Throwable e, AsyncConnection connection) {
+            connection.onReadFailed(e);
+        }
+    };
+
+    private static final CompletionHandler<Long, AsyncConnection> WRITE = new CompletionHandler<>() {
+        @Override
+        public void completed(Long bytes, AsyncConnection connection) {
+            connection.onWritten(bytes);
+        }
+
+        @Override
+        public void failed(Throwable e, AsyncConnection connection) {
+            connection.onWriteFailed(e);
+        }
+    };
+
+    final AsynchronousSocketChannel channel;
+    private final AsyncServer server;
+    private final BufferPool bufferPool;
+    private final FrameDecoder decoder;
+    private final FrameDecoder.FrameSink sink = this::onFrame;
+    //owned by the read chain - acquired by start(), so a connection closed before it ever reads holds no buffer
+    private ByteBuffer inbound;
+
+    //guarded by this
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    //the buffers of the write in flight - [batchStart, batchEnd) still has bytes to send
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+    private int batchStart;
+    private int batchEnd;
+    private boolean writing;
+    //while the frames of one read are answered their replies only queue up - they leave together after it (see FlushPolicy.PER_LOOP)
+    private boolean holdWrites;
+    private long queuedBytes;
+    private int readState = READ_STOPPED;
+    //a reply ended the conversation (invalid request) - no more reads or requests, close once it is written
+    private boolean closeAfterFlush;
+    private boolean draining;
+    private boolean closed;
+
+    AsyncConnection(AsynchronousSocketChannel channel, AsyncServer server) {
+        this.channel = channel;
+        this.server = server;
+        this.bufferPool = server.getBufferPool();
+        this.decoder = server.newFrameDecoder();
+    }
+
+    //starts the read chain - called once, right after the greeting was queued
+    void start() {
+        synchronized (this) {
+            if (closed || draining || closeAfterFlush) {
+                return;
+            }
+            inbound = bufferPool.acquire(Connection.READ_BUFFER_SIZE);
+            readState = READ_PENDING;
+        }
+        read();
+    }
+
+    private void read() {
+        channel.read(inbound, server.getReadIdleTimeoutMillis(), TimeUnit.MILLISECONDS, this, READ);
+    }
+
+    private void onRead(int bytes) {
+        synchronized (this) {
+            if (closed) {
+                releaseInbound();
+                return;
+            }
+            readState = READ_PROCESSING;
+        }
+        if (bytes < 0) {
+            //the client closed its side - what it sent before was answered already
+            readStopped();
+            return;
+        }
+        server.bytesRead.add(bytes);
+        inbound.flip();
+        synchronized (this) {
+            holdWrites = true;
+        }
+        try {
+            //every complete frame is answered right here, on this group thread - the frame is a view of inbound
+            decoder.decode(inbound, sink);
+        } catch (IOException e) {
+            server.decodeErrors.increment();
+            Server.LOG.warn(Server.ANSI_RED + "Closing connection: {}" + Server.ANSI_RESET, e.getMessage());
+            synchronized (this) {
+                holdWrites = false;
+            }
+            readStopped();
+            close();
+            return;
+        }
+        releaseWrites();
+        inbound.compact();
+        if (!inbound.hasRemaining()) {
+            //a frame longer than the buffer - the decoder's maximum bounds how far this grows
+            ByteBuffer bigger = bufferPool.acquire(inbound.capacity() * 2);
+            inbound.flip();
+            bigger.put(inbound);
+            bufferPool.release(inbound);
+            inbound = bigger;
+        }
+        synchronized (this) {
+            if (closed || draining || closeAfterFlush) {
+                readStopped();
+                return;
+            }
+            if (queuedBytes > server.getHighWatermark()) {
+                //the client does not take its replies - stop reading until the queue drains (onWritten resumes)
+                readState = READ_PAUSED;
+                return;
+            }
+            readState = READ_PENDING;
+        }
+        read();
+    }
+
+    private void onReadFailed(Throwable e) {
+        if (e instanceof InterruptedByTimeoutException) {
+            server.readIdleTimeouts.increment();
+        } else if (!(e instanceof AsynchronousCloseException)) {
+            server.readErrors.increment();
+            Server.LOG.warn(Server.ANSI_RED + "Read failed: {}" + Server.ANSI_RESET, e.getMessage());
+        }
+        synchronized (this) {
+            readState = READ_PROCESSING;
+        }
+        readStopped();
+        close();
+    }
+
+    //the read chain ends here - the inbound buffer goes back, the connection closes once its replies are out
+    private void readStopped() {
+        synchronized (this) {
+            releaseInbound();
+            readState = READ_STOPPED;
+            if (!writing) {
+                close();
+            } else {
+                closeAfterFlush = true;
+            }
+        }
+    }
+
+    //called by the decoder for every complete frame, on the read chain
+    private void onFrame(ByteBuffer frame) {
+        synchronized (this) {
+            if (closeAfterFlush || closed) {
+                return;
+            }
+        }
+        server.handle(this, frame);
+    }
+
+    //queues a reply (a pooled buffer, released once written) - safe from any thread
+    void write(ByteBuffer reply) {
+        synchronized (this) {
+            if (closed) {
+                bufferPool.release(reply);
+                return;
+            }
+            outbound.add(reply);
+            queuedBytes += reply.remaining();
+            if (writing || holdWrites) {
+                return;
+            }
+            writing = true;
+            fillBatch();
+        }
+        flush();
+    }
+
+    //after a read's frames were answered: one gathering write for all of their replies
+    private void releaseWrites() {
+        synchronized (this) {
+            holdWrites = false;
+            if (writing || closed || outbound.isEmpty()) {
+                return;
+            }
+            writing = true;
+            fillBatch();
+        }
+        flush();
+    }
+
+    //queues a last reply - no more requests are read or answered, the connection closes once it is written
+    void writeAndClose(ByteBuffer reply) {
+        synchronized (this) {
+            closeAfterFlush = true;
+        }
+        write(reply);
+    }
+
+    //GATHERING WRITE: every reply queued since the last write goes out in ONE write(ByteBuffer[]) - one syscall for
+    //a whole batch of pipelined replies, without copying them into one buffer first
+    private void flush() {
+        server.writeCalls.increment();
+        channel.write(batch, batchStart, batchEnd - batchStart, server.getWriteIdleTimeoutMillis(), TimeUnit.MILLISECONDS, this, WRITE);
+    }
+
+    //under the monitor, with no write in flight
+    private void fillBatch() {
+        batchStart = 0;
+        batchEnd = 0;
+        ByteBuffer next;
+        while (batchEnd < MAX_GATHER && (next = outbound.poll()) != null) {
+            batch[batchEnd++] = next;
+        }
+    }
+
+    private void onWritten(long bytes) {
+        server.bytesWritten.add(bytes);
+        boolean resumeRead = false;
+        boolean flushMore;
+        synchronized (this) {
+            queuedBytes -= bytes;
+            //the fully written buffers go back to the pool, a partly written one stays first in line
+            while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                bufferPool.release(batch[batchStart]);
+                batch[batchStart++] = null;
+            }
+            if (closed) {
+                releaseBatch();
+                writing = false;
+                return;
+            }
+            if (batchStart == batchEnd) {
+                fillBatch();
+                if (batchEnd == 0) {
+                    writing = false;
+                    if ((closeAfterFlush || draining) && readState != READ_PROCESSING) {
+                        close();
+                        return;
+                    }
+                }
+            }
+            flushMore = writing;
+            if (readState == READ_PAUSED && queuedBytes <= server.getLowWatermark()) {
+                readState = READ_PENDING;
+                resumeRead = true;
+            }
+        }
+        if (flushMore) {
+            flush();
+        }
+        if (resumeRead) {
+            read();
+        }
+    }
+
+    private void onWriteFailed(Throwable e) {
+        if (e instanceof InterruptedByTimeoutException) {
+            server.writeIdleTimeouts.increment();
+        } else if (!(e instanceof AsynchronousCloseException)) {
+            server.writeErrors.increment();
+            Server.LOG.warn(Server.ANSI_RED + "Write failed: {}" + Server.ANSI_RESET, e.getMessage());
+        }
+        synchronized (this) {
+            releaseBatch();
+            writing = false;
+            close();
+        }
+    }
+
+    //Graceful stop: no more reads - an idle connection closes now, a busy one once the replies to what it read are written
+    void drain() {
+        synchronized (this) {
+            draining = true;
+            if (readState == READ_PAUSED) {
+                releaseInbound();
+                readState = READ_STOPPED;
+            }
+            if (!writing && readState != READ_PROCESSING) {
+                //a pending read fails with AsynchronousCloseException and releases its buffer
+                close();
+            }
+        }
+    }
+
+    //Closes the channel - outstanding operations fail (on a group thread) and release their own buffers
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (readState == READ_PAUSED) {
+            releaseInbound();
+            readState = READ_STOPPED;
+        }
+        ByteBuffer queued;
+        while ((queued = outbound.poll()) != null) {
+            bufferPool.release(queued);
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        server.onClosed(this);
+    }
+
+    private void releaseInbound() {
+        if (inbound != null) {
+            bufferPool.release(inbound);
+            inbound = null;
+        }
+    }
+
+    private void releaseBatch() {
+        for (; batchStart < batchEnd; batchStart++) {
+            bufferPool.release(batch[batchStart]);
+            batch[batchStart] = null;
+        }
+    }
+}
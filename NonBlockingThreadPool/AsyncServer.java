@@ -0,0 +1,334 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+//NIO.2 - the same number server as Server, but COMPLETION based instead of readiness based:
+    //Server (reactor): a selector says "this socket is readable", the event loop then does the read itself
+    //AsyncServer (proactor): we say "read into this buffer", the OS does it and a CompletionHandler is called with the result
+//  java -cp ... AsyncServer          # channel group of one thread per core
+//  java -cp ... AsyncServer 4        # channel group of 4 threads
+//  java -cp ... AsyncServer cached   # channel group on a cached thread pool (grows with blocked handlers)
+//
+//AsynchronousChannelGroup - the threads that run the completion handlers of every channel in the group.
+//On Linux the JDK implements it with epoll underneath: a fixed group's threads take turns waiting on epoll and then run the
+//handler of whatever completed, so it is close to Server's event loops - except that any group thread can serve any connection
+//(no connection -> thread affinity), so per-connection state needs a monitor (see AsyncConnection).
+//
+//Same wire protocol, framing (LineFrameDecoder / LineFrameEncoder), pooled direct buffers (BufferPool) and reply as Server -
+//processMessage() is Server's handler, run inline on the group thread - so the two engines can be benchmarked side by side.
+public class AsyncServer implements Lifecycle {
+    private final int groupThreads;
+    //set: the group runs on this executor instead of a fixed pool of groupThreads
+    private final ExecutorService executor;
+    private final BufferPool bufferPool = new BufferPool(false);
+    private Supplier<FrameDecoder> decoderFactory = () -> new LineFrameDecoder(Server.DEFAULT_MAX_FRAME_LENGTH);
+    private FrameEncoder frameEncoder = new LineFrameEncoder();
+    //per-connection outbound queue limits: stop reading from a client above high, resume below low
+    private int lowWatermark = 32 * 1024;
+    private int highWatermark = 64 * 1024;
+    //timeouts of every read / write, 0 = none - the channel enforces them, no timing wheel needed
+    private long readIdleTimeoutMillis = 60_000;
+    private long writeIdleTimeoutMillis = 30_000;
+
+    //LIFECYCLE - set by start(), see stop()
+    private AsynchronousChannelGroup group;
+    private AsynchronousServerSocketChannel serverChannel;
+    private final Set<AsyncConnection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private final Object drained = new Object();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    //METRICS - same meaning as Server's nio_* ones
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    final Counter connectionsAccepted = metrics.counter("async_connections_accepted_total", "Connections accepted");
+    final Counter connectionsClosed = metrics.counter("async_connections_closed_total", "Connections closed (by either side)");
+    final Counter bytesRead = metrics.counter("async_bytes_read_total", "Bytes read from clients");
+    final Counter bytesWritten = metrics.counter("async_bytes_written_total", "Bytes written to clients");
+    final Counter writeCalls = metrics.counter("async_writes_total", "Gathering writes started - compare with requests for replies per write");
+    final Counter requests = metrics.counter("async_requests_total", "Requests answered");
+    final Counter readErrors = metrics.counter("async_errors_total", "type=\"read\"", "Errors by type");
+    final Counter writeErrors = metrics.counter("async_errors_total", "type=\"write\"", "Errors by type");
+    final Counter decodeErrors = metrics.counter("async_errors_total", "type=\"decode\"", "Errors by type");
+    final Counter invalidRequests = metrics.counter("async_errors_total", "type=\"invalid_request\"", "Errors by type");
+    final Counter readIdleTimeouts = metrics.counter("async_timeouts_total", "reason=\"read_idle\"", "Connections closed by a timeout, by kind");
+    final Counter writeIdleTimeouts = metrics.counter("async_timeouts_total", "reason=\"write_idle\"", "Connections closed by a timeout, by kind");
+    final LatencyHistogram requestTime = metrics.histogram("async_request_seconds", "Handling time per request");
+
+    //a channel group of groupThreads fixed threads
+    public AsyncServer(int groupThreads) {
+        this(groupThreads, null);
+    }
+
+    //a channel group on the given executor (e.g. a cached pool - threads are added when handlers block)
+    public AsyncServer(ExecutorService executor) {
+        this(0, executor);
+    }
+
+    private AsyncServer(int groupThreads, ExecutorService executor) {
+        this.groupThreads = groupThreads;
+        this.executor = executor;
+        metrics.gauge("async_connections_active", "Open connections", () -> connectionsAccepted.get() - connectionsClosed.get());
+        metrics.gauge("async_buffers_outstanding", "Pooled buffers currently lent out", bufferPool::outstanding);
+    }
+
+    //Optional first argument sizes the channel group: a thread count (default one per core) or cached
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = 8010;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int metricsPort = 9010; // plain text metrics at http://localhost:9010/metrics
+        long readIdleMillis = 60_000; // close clients silent this long
+        long writeIdleMillis = 30_000; // close clients that stop reading their replies this long
+        long drainSeconds = 10; // on SIGTERM / Ctrl+C: stop accepting, answer the requests already read, then close
+        AsyncServer server;
+        if (args.length > 0 && args[0].equalsIgnoreCase("cached")) {
+            server = new AsyncServer(Executors.newCachedThreadPool(threadFactory()));
+        } else {
+            server = new AsyncServer(args.length > 0 ? Integer.parseInt(args[0]) : cores);
+        }
+        server.setIdleTimeouts(readIdleMillis, writeIdleMillis);
+        server.getMetrics().registerJmx("webserver:type=AsyncServer");
+        server.getMetrics().startEndpoint(metricsPort);
+        server.start(port);
+        Lifecycle.stopOnShutdown(server, drainSeconds, TimeUnit.SECONDS);
+        server.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    private static ThreadFactory threadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return task -> new Thread(task, "async-group-" + count.getAndIncrement());
+    }
+
+    //Must be called before start()
+    public void setWriteWatermarks(int lowWatermark, int highWatermark) {
+        if (lowWatermark < 0 || highWatermark < lowWatermark) {
+            throw new IllegalArgumentException("expected 0 <= lowWatermark <= highWatermark");
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    //Must be called before start() - 0 turns a timeout off
+    //readIdle: a read that gets nothing this long, writeIdle: a write the client does not take this long
+    public void setIdleTimeouts(long readIdleMillis, long writeIdleMillis) {
+        if (readIdleMillis < 0 || writeIdleMillis < 0) {
+            throw new IllegalArgumentException("timeouts must not be negative");
+        }
+        this.readIdleTimeoutMillis = readIdleMillis;
+        this.writeIdleTimeoutMillis = writeIdleMillis;
+    }
+
+    //Must be called before start() - see Server.setFraming()
+    public void setFraming(Supplier<FrameDecoder> decoderFactory, FrameEncoder frameEncoder) {
+        this.decoderFactory = decoderFactory;
+        this.frameEncoder = frameEncoder;
+    }
+
+    FrameDecoder newFrameDecoder() {
+        return decoderFactory.get();
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    long getReadIdleTimeoutMillis() {
+        return readIdleTimeoutMillis;
+    }
+
+    long getWriteIdleTimeoutMillis() {
+        return writeIdleTimeoutMillis;
+    }
+
+    int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    int getHighWatermark() {
+        return highWatermark;
+    }
+
+    //Returns once the port is bound - accepting, reading and writing all happen on the group's threads
+    @Override
+    public void start(int port) throws IOException {
+        group = executor != null
+                ? AsynchronousChannelGroup.withCachedThreadPool(executor, 1)
+                : AsynchronousChannelGroup.withFixedThreadPool(groupThreads, threadFactory());
+        serverChannel = AsynchronousServerSocketChannel.open(group);
+        serverChannel.bind(new InetSocketAddress(port));
+        Server.LOG.info(Server.ANSI_YELLOW + "Async (NIO.2) server listening on port " + port + " ("
+                + (executor != null ? "cached" : groupThreads + " thread") + " channel group)" + Server.ANSI_RESET);
+        serverChannel.accept(null, acceptHandler);
+    }
+
+    //ACCEPT - one accept outstanding at a time: the handler starts the next one before it deals with the new client
+    private final CompletionHandler<AsynchronousSocketChannel, Void> acceptHandler = new CompletionHandler<>() {
+        @Override
+        public void completed(AsynchronousSocketChannel channel, Void attachment) {
+            if (!stopping.get()) {
+                serverChannel.accept(null, this);
+            }
+            onAccepted(channel);
+        }
+
+        @Override
+        public void failed(Throwable e, Void attachment) {
+            //closed by stop() - nothing more to accept
+            if (serverChannel.isOpen()) {
+                Server.LOG.warn(Server.ANSI_RED + "Accept failed: {}" + Server.ANSI_RESET, e.getMessage());
+                serverChannel.accept(null, this);
+            }
+        }
+    };
+
+    private void onAccepted(AsynchronousSocketChannel channel) {
+        connectionsAccepted.increment();
+        AsyncConnection connection = new AsyncConnection(channel, this);
+        connections.add(connection);
+        if (stopping.get()) {
+            //accepted just before the listening socket closed
+            connection.close();
+            return;
+        }
+        try {
+            //replies are batched per read already (AsyncConnection) - Nagle would only delay them further
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Server.LOG.info(Server.ANSI_CYAN + "Accepted connection from {}" + Server.ANSI_RESET, channel.getRemoteAddress());
+            //Send a greeting message to client immediately - like Server, before anything is read
+            connection.write(encodeAscii("Hello " + channel.getRemoteAddress()));
+        } catch (IOException e) {
+            connection.close();
+            return;
+        }
+        connection.start();
+    }
+
+    //called by AsyncConnection.close(), exactly once per connection
+    void onClosed(AsyncConnection connection) {
+        connections.remove(connection);
+        connectionsClosed.increment();
+        if (stopping.get() && connections.isEmpty()) {
+            synchronized (drained) {
+                drained.notifyAll();
+            }
+        }
+    }
+
+    //called on the read chain for every complete frame - the frame is a view of the connection's read buffer
+    void handle(AsyncConnection connection, ByteBuffer frame) {
+        long startNanos = System.nanoTime();
+        processMessage(connection, frame);
+        requestTime.recordNanos(System.nanoTime() - startNanos);
+    }
+
+    //Server.processMessage() for an AsyncConnection - the frame is not released, it belongs to the connection's read buffer
+    private void processMessage(AsyncConnection connection, ByteBuffer message) {
+        int number;
+        try {
+            number = Server.parseNumber(message);
+        } catch (NumberFormatException e) {
+            invalidRequests.increment();
+            connection.writeAndClose(encodeAscii(INVALID_NUMBER));
+            return;
+        }
+        Server.LOG.info(Server.ANSI_RED + "Received number from Client {}" + Server.ANSI_RESET, number);
+        int payloadLength = RECEIVED_NUMBER.length() + Server.digitCount(number);
+        ByteBuffer response = bufferPool.acquire(frameEncoder.encodedLength(payloadLength));
+        frameEncoder.writeHeader(response, payloadLength);
+        Server.putAscii(response, RECEIVED_NUMBER);
+        Server.putInt(response, number);
+        frameEncoder.writeTrailer(response);
+        response.flip();
+        connection.write(response);
+        requests.increment();
+    }
+
+    private static final String RECEIVED_NUMBER = "Received number: ";
+    private static final String INVALID_NUMBER = "Invalid number";
+
+    private ByteBuffer encodeAscii(String payload) {
+        ByteBuffer buffer = bufferPool.acquire(frameEncoder.encodedLength(payload.length()));
+        frameEncoder.writeHeader(buffer, payload.length());
+        Server.putAscii(buffer, payload);
+        frameEncoder.writeTrailer(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    //GRACEFUL STOP - as in Server:
+        //1. the listening channel is closed - new connects are refused
+        //2. every connection drains: no more reads, it closes once the replies to what it read are written (idle ones at once)
+        //3. at the deadline whatever is left is closed, then the group's threads are shut down
+    @Override
+    public void stop(long drainTimeout, TimeUnit unit) {
+        if (group == null || !stopping.compareAndSet(false, true)) {
+            return;
+        }
+        Server.LOG.info(Server.ANSI_YELLOW + "Async server stopping - draining {} connection(s) for up to {} ms" + Server.ANSI_RESET,
+                connections.size(), unit.toMillis(drainTimeout));
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        for (AsyncConnection connection : connections) {
+            connection.drain();
+        }
+        new Thread(() -> {
+            try {
+                if (!awaitDrained(unit.toNanos(drainTimeout))) {
+                    Server.LOG.warn(Server.ANSI_RED + "Drain timeout over - closing {} connection(s)" + Server.ANSI_RESET, connections.size());
+                    for (AsyncConnection connection : connections) {
+                        connection.close();
+                    }
+                }
+                group.shutdownNow();
+                group.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (IOException e) {
+                Server.LOG.warn(Server.ANSI_RED + "Channel group shutdown failed: {}" + Server.ANSI_RESET, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                metrics.stopEndpoint();
+                Server.LOG.info(Server.ANSI_YELLOW + "Async server stopped" + Server.ANSI_RESET);
+                terminated.countDown();
+            }
+        }, "async-drain").start();
+    }
+
+    private boolean awaitDrained(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        synchronized (drained) {
+            while (!connections.isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(drained, remaining);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+}
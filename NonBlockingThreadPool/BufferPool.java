@@ -0,0 +1,152 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+//A pool of direct ByteBuffers, so the read/write hot path stops allocating a new buffer per connection and per response.
+//Why direct? A heap buffer passed to channel.read()/write() is copied through a temporary direct buffer by the JDK anyway.
+//
+//How it works:
+    //1. Buffers come in a few fixed size classes - a request is rounded up to the smallest class that fits.
+    //2. Every thread keeps a small cache per size class (no locking at all when a thread releases what it acquired, e.g. an EventLoop).
+    //3. When a thread's cache is full/empty it spills to/refills from a bounded shared queue (buffers released on another thread, e.g. pool -> loop).
+    //4. A buffer is only lent out while it is in use - whoever acquires it must release it exactly once.
+public class BufferPool {
+    static final int[] SIZE_CLASSES = {256, 1024, 4096, 16384, 65536};
+    private static final int LOCAL_CACHE_SIZE = 64;
+    private static final int SHARED_QUEUE_SIZE = 1024;
+
+    //ArrayBlockingQueue rather than ConcurrentLinkedQueue: offer() must not allocate a node per buffer
+    private final ArrayBlockingQueue<ByteBuffer>[] shared;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> localCache;
+
+    //LEAK DETECTION
+    //When enabled, every lent buffer is remembered together with a stack trace of who acquired it.
+    //leaks() then shows buffers that were never released, and releasing a buffer twice throws.
+    //It allocates on every acquire, so it is meant for tests and debugging only.
+    private final Map<ByteBuffer, Throwable> leased;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(boolean leakDetection) {
+        shared = new ArrayBlockingQueue[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            shared[i] = new ArrayBlockingQueue<>(SHARED_QUEUE_SIZE);
+        }
+        localCache = ThreadLocal.withInitial(() -> {
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[SIZE_CLASSES.length];
+            for (int i = 0; i < caches.length; i++) {
+                caches[i] = new ArrayDeque<>(LOCAL_CACHE_SIZE);
+            }
+            return caches;
+        });
+        leased = leakDetection ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+    }
+
+    //Returns a cleared direct buffer with capacity >= minCapacity
+    public ByteBuffer acquire(int minCapacity) {
+        acquired.increment();
+        int sizeClass = sizeClassOf(minCapacity);
+        ByteBuffer buffer;
+        if (sizeClass < 0) {
+            //bigger than the largest class - not pooled, release() will just drop it
+            allocated.increment();
+            buffer = ByteBuffer.allocateDirect(minCapacity);
+        } else {
+            buffer = localCache.get()[sizeClass].pollLast();
+            if (buffer != null) {
+                localHits.increment();
+            } else if ((buffer = shared[sizeClass].poll()) != null) {
+                sharedHits.increment();
+            } else {
+                allocated.increment();
+                buffer = ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+            }
+            buffer.clear();
+        }
+        if (leased != null) {
+            leased.put(buffer, new Throwable("Buffer acquired here and never released"));
+        }
+        return buffer;
+    }
+
+    //Gives the buffer back - it must not be touched by the caller afterwards.
+    //Buffers that did not come from a pool (heap buffers, wrapped arrays, read-only views such as the mapped files of
+    //MappedFileCache - direct too, but never pooled) are ignored, so callers don't need to tell them apart.
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.isReadOnly()) {
+            return;
+        }
+        if (leased != null && leased.remove(buffer) == null) {
+            throw new IllegalStateException("Buffer released twice or not acquired from this pool");
+        }
+        released.increment();
+        int sizeClass = exactSizeClassOf(buffer.capacity());
+        if (sizeClass < 0) {
+            dropped.increment();
+            return;
+        }
+        ArrayDeque<ByteBuffer> local = localCache.get()[sizeClass];
+        if (local.size() < LOCAL_CACHE_SIZE) {
+            local.addLast(buffer);
+        } else if (!shared[sizeClass].offer(buffer)) {
+            //pool is full - let the GC reclaim it, memory held by the pool stays bounded
+            dropped.increment();
+        }
+    }
+
+    //Buffers currently lent out (acquired - released)
+    public long outstanding() {
+        return acquired.sum() - released.sum();
+    }
+
+    //Acquire sites of buffers that were never released - empty unless leak detection is on
+    public Throwable[] leaks() {
+        if (leased == null) {
+            return new Throwable[0];
+        }
+        synchronized (leased) {
+            return leased.values().toArray(new Throwable[0]);
+        }
+    }
+
+    //fraction of acquires served without allocating
+    public double hitRate() {
+        long total = acquired.sum();
+        return total == 0 ? 1.0 : (double) (localHits.sum() + sharedHits.sum()) / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BufferPool[acquired=%d, localHits=%d, sharedHits=%d, allocated=%d, released=%d, dropped=%d, outstanding=%d, hitRate=%.3f]",
+                acquired.sum(), localHits.sum(), sharedHits.sum(), allocated.sum(), released.sum(), dropped.sum(),
+                outstanding(), hitRate());
+    }
+
+    private static int sizeClassOf(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int exactSizeClassOf(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity == SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,596 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+//Per-client state, attached to the client's SelectionKey.
+//Everything except write()/writeAndClose()/close()/requestDone() must only be called on the owning EventLoop thread.
+//Those can be called from any thread (e.g. the thread pool) - they just hop onto the loop.
+public class Connection implements FrameDecoder.FrameSink {
+    //size of the pooled buffer a read is done into
+    static final int READ_BUFFER_SIZE = 1024;
+    //decoded requests waiting for the handler - above this many we stop reading from a pipelining client
+    static final int MAX_PIPELINED_REQUESTS = 64;
+
+    final SocketChannel channel;
+    final EventLoop loop;
+    final SelectionKey key;
+    private final Server server;
+    //read and queued buffers come from this pool and go back to it once consumed/written
+    private final BufferPool bufferPool;
+
+    //INBOUND
+    //Bytes of a frame that has not fully arrived yet. Only held between reads while a partial frame is pending,
+    //an idle connection with nothing half-read holds no buffer.
+    private ByteBuffer inbound;
+    private final FrameDecoder decoder;
+    //PIPELINING
+    //A client may send many requests without waiting for replies. They are handed to the thread pool one at a time,
+    //so replies go out in the same order the requests came in.
+    private final ArrayDeque<ByteBuffer> requests = new ArrayDeque<>();
+    private boolean processing;
+    //inside dispatchNext() - an inline handler calling requestDone() must not recurse into it, the running loop picks up the next request
+    private boolean dispatching;
+    //PAUSE_READS: the pool had no room for the request at the head of the line - no reads, no dispatch until the server resumes us
+    private boolean dispatchPaused;
+    //client shut down its sending side - answer what already arrived, then close
+    private boolean inputClosed;
+    //the decoder gave up on the input (HTTP: a 4xx response) - written after the replies to the requests before it, then close
+    private ByteBuffer errorReply;
+
+    //OUTBOUND QUEUE
+    //A non-blocking write() only copies as many bytes as fit in the socket send buffer and returns.
+    //The rest stays queued here and is flushed by the selector when the socket reports OP_WRITE.
+    //Entries are ByteBuffers or FileRegions (sent with sendfile, see writeFile()).
+    private final ArrayDeque<Object> outbound = new ArrayDeque<>();
+    private long pendingBytes;
+    //above highWatermark queued bytes we stop reading from the peer (it is not consuming our responses),
+    //once the queue drains below lowWatermark we start reading again
+    private final int highWatermark;
+    private final int lowWatermark;
+    private boolean writePaused;
+    private boolean pipelinePaused;
+    private boolean closeAfterFlush;
+    private boolean closed;
+    //FLUSH POLICY (see FlushPolicy) - queued replies not written yet, waiting for the loop's end-of-iteration flush
+    private boolean flushScheduled;
+    private long firstUnflushedNanos;
+
+    //TIMEOUTS (see Server.setIdleTimeouts)
+    //One timer on the loop's TimingWheel per connection. Reads and writes only store a timestamp - the timer checks the real
+    //deadlines when it fires and re-arms itself for the earliest one, so a busy connection never touches the wheel.
+    private final long openedNanos;
+    //last byte read or written
+    private long lastActivityNanos;
+    //last time the outbound queue shrank (or became non-empty) - write idle = queued bytes the peer does not take
+    private long lastWriteProgressNanos;
+    private TimingWheel.Timeout idleTimer;
+
+    Connection(SocketChannel channel, EventLoop loop, SelectionKey key, Server server) {
+        this.channel = channel;
+        this.loop = loop;
+        this.key = key;
+        this.server = server;
+        this.bufferPool = server.getBufferPool();
+        this.decoder = server.newFrameDecoder();
+        this.lowWatermark = server.getLowWatermark();
+        this.highWatermark = server.getHighWatermark();
+        server.connectionsAccepted.increment();
+        this.openedNanos = System.nanoTime();
+        this.lastActivityNanos = openedNanos;
+        this.lastWriteProgressNanos = openedNanos;
+        armIdleTimer(openedNanos);
+    }
+
+    //Queues the buffer for writing - safe from any thread. The connection now owns the buffer and releases it once written.
+    public void write(ByteBuffer buffer) {
+        if (loop.inEventLoop()) {
+            enqueue(buffer, false);
+        } else {
+            loop.execute(() -> enqueue(buffer, false));
+        }
+    }
+
+    //Queues the buffer and closes the connection once everything queued so far has been written - safe from any thread
+    public void writeAndClose(ByteBuffer buffer) {
+        if (loop.inEventLoop()) {
+            enqueue(buffer, true);
+        } else {
+            loop.execute(() -> enqueue(buffer, true));
+        }
+    }
+
+    //Queues a file range - sent straight from the page cache with transferTo(), in order with the buffers around it.
+    //Safe from any thread; the connection now owns the region and closes its file once sent.
+    public void writeFile(FileRegion region) {
+        if (loop.inEventLoop()) {
+            enqueue(region, false);
+        } else {
+            loop.execute(() -> enqueue(region, false));
+        }
+    }
+
+    //Queues the file range and closes the connection once everything queued so far has been written - safe from any thread
+    public void writeFileAndClose(FileRegion region) {
+        if (loop.inEventLoop()) {
+            enqueue(region, true);
+        } else {
+            loop.execute(() -> enqueue(region, true));
+        }
+    }
+
+    //Closes immediately and drops anything still queued - safe from any thread
+    public void close() {
+        if (loop.inEventLoop()) {
+            closeNow();
+        } else {
+            loop.execute(this::closeNow);
+        }
+    }
+
+    //Called by the handler after it queued its reply - the next pipelined request (if any) is dispatched. Safe from any thread.
+    public void requestDone() {
+        if (loop.inEventLoop()) {
+            dispatchNext();
+        } else {
+            loop.execute(this::dispatchNext);
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    //channel ready to read data from client
+    void read() {
+        ByteBuffer buffer = inbound;
+        if (buffer == null) {
+            //borrowed only for this read unless a partial frame is left over
+            buffer = bufferPool.acquire(READ_BUFFER_SIZE);
+        } else if (!buffer.hasRemaining()) {
+            //a single frame is bigger than the buffer - move it to the next size class (the decoder enforces the max frame size)
+            buffer = grow(buffer);
+        }
+        inbound = buffer;
+
+        int bytesRead;
+        try {
+            //if bytesRead=0, no data
+            //if bytesRead=-1, client gracefully closed the connection
+            bytesRead = channel.read(buffer);
+        } catch (IOException e) {
+            server.readErrors.increment();
+            Server.LOG.warn(Server.ANSI_RED + "Error reading from client: {}" + Server.ANSI_RESET, e.getMessage());
+            closeNow();
+            return;
+        }
+        if (bytesRead == -1) {
+            Server.LOG.info(Server.ANSI_RED + "Connection closed by client" + Server.ANSI_RESET);
+            inputClosed = true;
+            //the key stays readable at EOF - without dropping OP_READ every select() would return here again (and log again)
+            //while a request is still in the pool or parked
+            updateReadInterest();
+            if (!processing && !dispatchPaused) {
+                closeWhenFlushed();
+            }
+            return;
+        }
+
+        server.bytesRead.add(bytesRead);
+        if (bytesRead > 0) {
+            lastActivityNanos = System.nanoTime();
+        }
+        //flip() resets position to the beginning and sets the limit to where the data ends
+        buffer.flip();
+        try {
+            //zero or more complete frames come back through onFrame(), the rest of the bytes stay in the buffer
+            decoder.decode(buffer, this);
+        } catch (IOException e) {
+            server.decodeErrors.increment();
+            Server.LOG.warn(Server.ANSI_RED + "Closing connection: {}" + Server.ANSI_RESET, e.getMessage());
+            errorReply = server.decodeErrorReply(e);
+            if (errorReply == null) {
+                closeNow();
+                return;
+            }
+            //nothing after the bad request can be framed - answer what came before it, then the error, then close
+            inputClosed = true;
+            updateReadInterest();
+            if (!processing && !dispatchPaused) {
+                closeWhenFlushed();
+            }
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        //move the incomplete frame (if any) to the front, ready for the next read
+        buffer.compact();
+        if (buffer.position() == 0) {
+            bufferPool.release(buffer);
+            inbound = null;
+        }
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame) {
+        if (closed || closeAfterFlush) {
+            return;
+        }
+        server.onFrame(this, frame);
+    }
+
+    //Called by the server on the loop thread with a request that outlives the read (it owns the buffer)
+    void enqueueRequest(ByteBuffer request) {
+        requests.add(request);
+        if (requests.size() >= MAX_PIPELINED_REQUESTS && !pipelinePaused) {
+            pipelinePaused = true;
+            updateReadInterest();
+        }
+        if (!processing && !dispatchPaused) {
+            dispatchNext();
+        }
+    }
+
+    //Called by the server from dispatch() when the pool is full under PAUSE_READS - the request goes back to the head of the line
+    //and the client is not read from until resumeDispatch(), so its TCP window fills up and it slows down
+    void pauseDispatch(ByteBuffer request) {
+        requests.addFirst(request);
+        processing = false;
+        dispatchPaused = true;
+        updateReadInterest();
+    }
+
+    //Called by the server when a pool slot became free - safe from any thread
+    void resumeDispatch() {
+        if (loop.inEventLoop()) {
+            resumeNow();
+        } else {
+            loop.execute(this::resumeNow);
+        }
+    }
+
+    private void resumeNow() {
+        if (!dispatchPaused) {
+            return;
+        }
+        dispatchPaused = false;
+        if (closed) {
+            server.resumePausedConnection();
+            return;
+        }
+        updateReadInterest();
+        if (!processing) {
+            dispatchNext();
+        }
+    }
+
+    //Hands the next request(s) to the server. A non-blocking handler finishes inside dispatch() and calls requestDone() there,
+    //so this keeps going until the line is empty, a request went to the pool, or dispatch got paused.
+    private void dispatchNext() {
+        processing = false;
+        if (dispatching) {
+            return;
+        }
+        dispatching = true;
+        try {
+            while (!processing && !dispatchPaused && !closed) {
+                ByteBuffer next = requests.poll();
+                if (next == null) {
+                    if (inputClosed) {
+                        closeWhenFlushed();
+                        return;
+                    }
+                    break;
+                }
+                processing = true;
+                server.dispatch(this, next);
+            }
+        } finally {
+            dispatching = false;
+        }
+        if (closed) {
+            return;
+        }
+        if (pipelinePaused && requests.size() < MAX_PIPELINED_REQUESTS / 2) {
+            pipelinePaused = false;
+            updateReadInterest();
+        }
+    }
+
+    private void closeWhenFlushed() {
+        if (errorReply != null) {
+            ByteBuffer reply = errorReply;
+            errorReply = null;
+            enqueue(reply, true);
+            return;
+        }
+        closeAfterFlush = true;
+        updateReadInterest();
+        if (outbound.isEmpty()) {
+            closeNow();
+        }
+    }
+
+    private ByteBuffer grow(ByteBuffer buffer) {
+        ByteBuffer bigger = bufferPool.acquire(buffer.capacity() * 2);
+        buffer.flip();
+        bigger.put(buffer);
+        bufferPool.release(buffer);
+        return bigger;
+    }
+
+    //item: a ByteBuffer or a FileRegion
+    private void enqueue(Object item, boolean closeWhenDone) {
+        if (closed || closeAfterFlush) {
+            discard(item);
+            return;
+        }
+        if (outbound.isEmpty()) {
+            //the write idle clock starts when something is queued
+            lastWriteProgressNanos = System.nanoTime();
+        }
+        outbound.add(item);
+        pendingBytes += item instanceof FileRegion ? ((FileRegion) item).remaining() : ((ByteBuffer) item).remaining();
+        if (closeWhenDone) {
+            closeAfterFlush = true;
+            //nothing more will be answered, so stop reading
+            updateReadInterest();
+        }
+        //if OP_WRITE is already set the socket is full - the selector will flush when it drains
+        if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            if (pendingBytes > highWatermark && !writePaused) {
+                writePaused = true;
+                updateReadInterest();
+            }
+            return;
+        }
+        FlushPolicy policy = server.getFlushPolicy();
+        if (policy == FlushPolicy.IMMEDIATE || (policy == FlushPolicy.THRESHOLD && pendingBytes >= server.getFlushThresholdBytes())) {
+            flushScheduled = false;
+            flush();
+        } else if (!flushScheduled) {
+            //more replies may follow in this iteration - the loop writes them all at once at its end (flushIfDue)
+            flushScheduled = true;
+            firstUnflushedNanos = System.nanoTime();
+            loop.scheduleFlush(this);
+        }
+    }
+
+    //Called by the loop at the end of every iteration while this connection has replies waiting for the flush policy.
+    //Returns false to be asked again next iteration (THRESHOLD: not enough bytes yet and the delay not over).
+    boolean flushIfDue(long now) {
+        if (closed || !flushScheduled) {
+            flushScheduled = false;
+            return true;
+        }
+        if (server.getFlushPolicy() == FlushPolicy.THRESHOLD && now < flushDeadline() && pendingBytes < server.getFlushThresholdBytes()) {
+            return false;
+        }
+        flushScheduled = false;
+        if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+            flush();
+        }
+        return true;
+    }
+
+    //THRESHOLD: when the oldest unflushed reply has waited long enough
+    long flushDeadline() {
+        return firstUnflushedNanos + server.getMaxFlushDelayNanos();
+    }
+
+    //Writes as much of the outbound queue as the socket accepts - called by the flush policy and on OP_WRITE.
+    //GATHERING WRITE: the buffers at the head of the queue go out in one write(ByteBuffer[]) - one syscall for all the queued
+    //replies, without first copying them into one big buffer. A FileRegion is sent on its own (transferTo).
+    void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            Object head;
+            boolean progress = false;
+            while ((head = outbound.peek()) != null) {
+                long written;
+                boolean done = true;
+                if (head instanceof FileRegion) {
+                    FileRegion region = (FileRegion) head;
+                    written = region.transferTo(channel);
+                    server.bytesSentfile.add(written);
+                    if (region.remaining() == 0) {
+                        discard(outbound.poll());
+                    } else {
+                        done = false;
+                    }
+                } else {
+                    ByteBuffer[] gather = loop.gatherBuffers();
+                    int count = 0;
+                    for (Object item : outbound) {
+                        if (count == gather.length || !(item instanceof ByteBuffer)) {
+                            break;
+                        }
+                        gather[count++] = (ByteBuffer) item;
+                    }
+                    written = count == 1 ? channel.write(gather[0]) : channel.write(gather, 0, count);
+                    for (int i = 0; i < count; i++) {
+                        if (done && !gather[i].hasRemaining()) {
+                            discard(outbound.poll());
+                        } else {
+                            done = false;
+                        }
+                        gather[i] = null;
+                    }
+                }
+                server.writeCalls.increment();
+                pendingBytes -= written;
+                server.bytesWritten.add(written);
+                progress |= written > 0;
+                if (!done) {
+                    //socket send buffer is full - wait for OP_WRITE instead of spinning
+                    break;
+                }
+            }
+            if (progress) {
+                lastActivityNanos = System.nanoTime();
+                lastWriteProgressNanos = lastActivityNanos;
+            }
+        } catch (IOException e) {
+            server.writeErrors.increment();
+            Server.LOG.warn(Server.ANSI_RED + "Error writing to client: {}" + Server.ANSI_RESET, e.getMessage());
+            closeNow();
+            return;
+        }
+
+        if (outbound.isEmpty()) {
+            setInterest(SelectionKey.OP_WRITE, false);
+            if (closeAfterFlush) {
+                closeNow();
+                return;
+            }
+        } else {
+            setInterest(SelectionKey.OP_WRITE, true);
+        }
+
+        if (pendingBytes > highWatermark && !writePaused) {
+            writePaused = true;
+            updateReadInterest();
+        } else if (pendingBytes <= lowWatermark && writePaused) {
+            writePaused = false;
+            updateReadInterest();
+        }
+    }
+
+    //the timer wheel runs every due task in a row - one that throws must not skip the others' timeouts
+    private void runIdleTimer() {
+        try {
+            onIdleTimer();
+        } catch (RuntimeException e) {
+            loop.connectionFailed(this, e);
+        }
+    }
+
+    //Runs on the loop thread when the idle timer fires: acts on the first deadline that really passed, else re-arms
+    private void onIdleTimer() {
+        idleTimer = null;
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        long writeIdle = server.getWriteIdleTimeoutNanos();
+        long readIdle = server.getReadIdleTimeoutNanos();
+        long lifetime = server.getMaxLifetimeNanos();
+        if (writeIdle > 0 && !outbound.isEmpty() && now - lastWriteProgressNanos >= writeIdle) {
+            //the peer stopped reading our replies - likely half dead, its queue would only grow
+            server.writeIdleTimeouts.increment();
+            Server.LOG.info(Server.ANSI_RED + "Closing connection: write idle for {} ms" + Server.ANSI_RESET, TimeUnit.NANOSECONDS.toMillis(now - lastWriteProgressNanos));
+            closeNow();
+            return;
+        }
+        if (readIdle > 0 && owesNothing() && now - lastActivityNanos >= readIdle) {
+            server.readIdleTimeouts.increment();
+            Server.LOG.info(Server.ANSI_RED + "Closing connection: read idle for {} ms" + Server.ANSI_RESET, TimeUnit.NANOSECONDS.toMillis(now - lastActivityNanos));
+            closeNow();
+            return;
+        }
+        if (lifetime > 0 && !inputClosed && now - openedNanos >= lifetime) {
+            //answer what already arrived, then close - the client reconnects (possibly to another server)
+            server.lifetimeTimeouts.increment();
+            drain();
+            if (closed) {
+                return;
+            }
+        }
+        armIdleTimer(now);
+    }
+
+    //Stops reading, answers the requests that already arrived and closes once their replies are written - loop thread only.
+    //Used at max lifetime and by a graceful stop (an idle connection is closed right away).
+    void drain() {
+        if (closed || inputClosed) {
+            return;
+        }
+        inputClosed = true;
+        updateReadInterest();
+        if (!processing && !dispatchPaused) {
+            closeWhenFlushed();
+        }
+    }
+
+    //arms the timer for the earliest deadline that can still pass - states that don't apply yet are re-checked one timeout from now
+    private void armIdleTimer(long now) {
+        long writeIdle = server.getWriteIdleTimeoutNanos();
+        long readIdle = server.getReadIdleTimeoutNanos();
+        long lifetime = server.getMaxLifetimeNanos();
+        long next = Long.MAX_VALUE;
+        if (writeIdle > 0) {
+            next = Math.min(next, (outbound.isEmpty() ? now : lastWriteProgressNanos) + writeIdle);
+        }
+        if (readIdle > 0) {
+            next = Math.min(next, (owesNothing() ? lastActivityNanos : now) + readIdle);
+        }
+        if (lifetime > 0 && !inputClosed) {
+            next = Math.min(next, openedNanos + lifetime);
+        }
+        if (next != Long.MAX_VALUE) {
+            idleTimer = loop.timers().schedule(this::runIdleTimer, Math.max(0, next - now), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    //read idle only counts while the client is waiting on nothing from us - a slow handler is not the client's silence
+    private boolean owesNothing() {
+        return !processing && !dispatchPaused && requests.isEmpty() && outbound.isEmpty() && !inputClosed;
+    }
+
+    //OP_READ is on only while nothing is holding the client back
+    private void updateReadInterest() {
+        setInterest(SelectionKey.OP_READ, !writePaused && !pipelinePaused && !dispatchPaused && !closeAfterFlush && !inputClosed);
+    }
+
+    private void setInterest(int op, boolean on) {
+        if (!key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        int updated = on ? (ops | op) : (ops & ~op);
+        if (updated != ops) {
+            key.interestOps(updated);
+        }
+    }
+
+    private void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        server.connectionsClosed.increment();
+        if (idleTimer != null) {
+            idleTimer.cancel();
+            idleTimer = null;
+        }
+        Object unsent;
+        while ((unsent = outbound.poll()) != null) {
+            discard(unsent);
+        }
+        ByteBuffer queued;
+        while ((queued = requests.poll()) != null) {
+            bufferPool.release(queued);
+        }
+        bufferPool.release(inbound);
+        inbound = null;
+        bufferPool.release(errorReply);
+        errorReply = null;
+        pendingBytes = 0;
+        key.cancel();
+        EventLoop.closeQuietly(channel);
+    }
+
+    //an outbound entry that was sent or will never be - buffers go back to the pool, files are closed
+    private void discard(Object item) {
+        if (item instanceof FileRegion) {
+            ((FileRegion) item).close();
+        } else {
+            bufferPool.release((ByteBuffer) item);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//One I/O reactor (worker) - it owns its own Selector and is the only thread that ever touches the channels registered with it.
+//The Acceptor (boss) never calls register() on this selector directly: register() blocks while another thread sits in select(),
+//so new channels are handed over through the task queue and the selector is woken up to pick them up.
+public class EventLoop implements Runnable {
+    private final Server server;
+    private final Selector selector;
+    //tasks submitted from other threads (acceptor, pool threads) - drained by the loop after every select()
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    //avoids calling selector.wakeup() (a syscall) for every task when one wakeup is already on its way
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile Thread thread;
+    //idle/lifetime timeouts of this loop's connections - only touched by the loop thread, so no locking
+    //100 ms ticks x 512 buckets = one turn every ~51 s, longer timeouts just wait for their turn
+    private final TimingWheel timers = new TimingWheel(100, TimeUnit.MILLISECONDS, 512);
+    //GRACEFUL STOP - set by drain(): every connection is drained, and the loop ends once the last one is closed
+    private boolean draining;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    //FLUSH POLICY - connections with replies queued during this iteration, written at its end (see FlushPolicy)
+    private final ArrayList<Connection> flushQueue = new ArrayList<>();
+    //scratch array for Connection.flush()'s gathering writes - shared, only ever used on this loop's thread
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[64];
+
+    public EventLoop(Server server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    //true when called from this loop's own thread
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    //Runs the task on this loop's thread. From the loop itself it is still queued (runs after the current batch of keys).
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    //loop thread only
+    TimingWheel timers() {
+        return timers;
+    }
+
+    //Called by the Acceptor: the channel is registered for OP_READ on this loop's selector, from this loop's thread
+    public void register(SocketChannel clientChannel) {
+        execute(() -> {
+            Connection connection = null;
+            try {
+                //the flush policy decides when replies go out - Nagle would only hold back what it already batched
+                clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                SelectionKey key = clientChannel.register(selector, SelectionKey.OP_READ);
+                //the Connection (framing + outbound queue) is attached to each client channel's key
+                connection = new Connection(clientChannel, this, key, server);
+                key.attach(connection);
+                server.onAccepted(connection);
+                //accepted just before the acceptor stopped - it gets its greeting, then is closed like the rest
+                if (draining) {
+                    connection.drain();
+                }
+            } catch (IOException e) {
+                if (connection != null) {
+                    //also keeps the accepted/closed counters balanced
+                    connection.close();
+                } else {
+                    closeQuietly(clientChannel);
+                }
+                Server.LOG.warn(Server.ANSI_RED + "Error registering client: {}" + Server.ANSI_RESET, e.getMessage());
+            }
+        });
+    }
+
+    //Graceful stop: stops reading from every connection, answers what already arrived and closes each once its replies are written.
+    //Safe from any thread - awaitTermination() tells when the last connection is gone.
+    public void drain() {
+        execute(() -> {
+            draining = true;
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) {
+                    ((Connection) key.attachment()).drain();
+                }
+            }
+        });
+    }
+
+    //The drain timeout is over - closes whatever is still open. Safe from any thread.
+    public void closeAll() {
+        execute(() -> {
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+        });
+    }
+
+    //loop thread only - the connection queued a reply and waits for the end of the iteration to write it
+    void scheduleFlush(Connection connection) {
+        flushQueue.add(connection);
+    }
+
+    //loop thread only
+    ByteBuffer[] gatherBuffers() {
+        return gatherBuffers;
+    }
+
+    //end of an iteration: every connection with replies queued in it writes them, each with one gathering write -
+    //THRESHOLD connections that are not due yet stay in the queue
+    private void flushPending(long now) {
+        int kept = 0;
+        for (int i = 0; i < flushQueue.size(); i++) {
+            Connection connection = flushQueue.get(i);
+            try {
+                if (!connection.flushIfDue(now)) {
+                    flushQueue.set(kept++, connection);
+                }
+            } catch (RuntimeException e) {
+                connectionFailed(connection, e);
+            }
+        }
+        for (int i = flushQueue.size() - 1; i >= kept; i--) {
+            flushQueue.remove(i);
+        }
+    }
+
+    //THRESHOLD: wake up for the earliest delayed flush - select() counts whole milliseconds, so a shorter delay is rounded
+    //up when nothing else wakes the loop first
+    private long millisToNextFlush(long now) {
+        long deadline = Long.MAX_VALUE;
+        for (int i = 0; i < flushQueue.size(); i++) {
+            deadline = Math.min(deadline, flushQueue.get(i).flushDeadline());
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - now + 999_999));
+    }
+
+    //true once the loop thread ended (after drain(), with no connection left)
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            loop();
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+            terminated.countDown();
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            try {
+                long timeout = timers.millisToNextTick(System.nanoTime());
+                if (!flushQueue.isEmpty()) {
+                    long flushWait = millisToNextFlush(System.nanoTime());
+                    //0 = no timer due, select() would block
+                    timeout = timeout == 0 ? flushWait : Math.min(timeout, flushWait);
+                }
+                if (draining) {
+                    //cancelled keys only leave keys() on the next select - poll so the loop notices it is empty
+                    if (selector.keys().isEmpty() && tasks.isEmpty()) {
+                        return;
+                    }
+                    timeout = timeout == 0 ? 100 : Math.min(timeout, 100);
+                }
+                //blocks until 1 channel is ready, another thread calls wakeup() or the next timer tick is due
+                selector.select(timeout);
+                long busyStart = System.nanoTime();
+                //clear the flag before draining so a task added after this point triggers a fresh wakeup
+                wakeupPending.set(false);
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                Iterator<SelectionKey> iter = selectedKeys.iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        //socket send buffer has room again - push out the queued responses
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (RuntimeException e) {
+                        connectionFailed(connection, e);
+                    }
+                }
+                runTasks();
+                timers.expire(System.nanoTime());
+                flushPending(System.nanoTime());
+                server.loopBusyTime.recordNanos(System.nanoTime() - busyStart);
+            } catch (IOException e) {
+                Server.LOG.warn(Server.ANSI_RED + "Event loop error: {}" + Server.ANSI_RESET, e.getMessage());
+            } catch (RuntimeException e) {
+                //last resort - the loop must outlive a bug, ending it would close every connection on its selector
+                Server.LOG.error(Server.ANSI_RED + "Event loop error" + Server.ANSI_RESET, e);
+            }
+        }
+    }
+
+    //loop thread only: a decoder, handler or timer threw while working on this connection - only that connection is closed,
+    //the loop and its other connections carry on
+    void connectionFailed(Connection connection, RuntimeException e) {
+        Server.LOG.error(Server.ANSI_RED + "Connection failed, closing it" + Server.ANSI_RESET, e);
+        connection.close();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Server.LOG.error(Server.ANSI_RED + "Event loop task failed" + Server.ANSI_RESET, e);
+            }
+        }
+    }
+
+    static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Ignore cleanup errors
+        }
+    }
+}
@@ -0,0 +1,44 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+//A range of a file queued on a Connection instead of a buffer (see Connection.writeFile()).
+//The loop sends it with FileChannel.transferTo(), which on Linux is sendfile(): the kernel copies page cache -> socket directly,
+//the bytes never pass through the JVM heap or a direct buffer. Like a buffer write on a non-blocking socket it may only send
+//part of the range - the rest goes out on the next OP_WRITE.
+//The connection owns the region once queued and closes the file when it is sent (or the connection closes).
+public final class FileRegion {
+    private final FileChannel file;
+    private long position;
+    private long remaining;
+
+    public FileRegion(FileChannel file, long position, long count) {
+        this.file = file;
+        this.position = position;
+        this.remaining = count;
+    }
+
+    long remaining() {
+        return remaining;
+    }
+
+    //bytes sent, 0 when the socket's send buffer is full
+    //transferTo() also returns 0 at the end of the file - if it was truncated after it was opened the range can never be
+    //sent, and waiting for OP_WRITE on a writable socket would spin the loop, so that fails the write instead
+    long transferTo(WritableByteChannel target) throws IOException {
+        long written = file.transferTo(position, remaining, target);
+        if (written == 0 && position >= file.size()) {
+            throw new IOException("File truncated while being sent (" + remaining + " bytes short)");
+        }
+        position += written;
+        remaining -= written;
+        return written;
+    }
+
+    void close() {
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,15 @@
+//When a connection's queued replies are written to the socket (Server.setFlushPolicy).
+//Every write() is a syscall, and with TCP_NODELAY usually a TCP segment of its own - a pipelining client that sends 50 requests
+//in one packet would get 50 tiny segments back. Holding the replies a little lets one gathering write (write(ByteBuffer[]))
+//send all of them:
+    //1. IMMEDIATE - every reply is written as soon as it is queued. Lowest latency per reply, one syscall each.
+    //2. PER_LOOP  - replies queued during one event loop iteration (everything answered from one select() wakeup) are written
+    //               together at the end of it. Adds no waiting - the loop gets there right after the last request it read.
+    //3. THRESHOLD - replies wait until flushThresholdBytes are queued or the oldest waited maxFlushDelay, whichever comes first.
+    //               Fewest syscalls for streams of small replies, at the price of up to maxFlushDelay of latency.
+//A partly written queue (socket send buffer full) is always finished on OP_WRITE, whatever the policy.
+public enum FlushPolicy {
+    IMMEDIATE,
+    PER_LOOP,
+    THRESHOLD
+}
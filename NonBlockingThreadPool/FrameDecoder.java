@@ -0,0 +1,20 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+//FRAMING
+//TCP is a byte stream, not a message stream: one read() can return half a message, or two pipelined messages glued together.
+//A FrameDecoder turns the bytes accumulated for one connection into complete frames (messages).
+//Decoders may keep scan state between calls, so every connection gets its own instance.
+public interface FrameDecoder {
+
+    //Receives each complete frame. The frame is a view of the connection's inbound buffer (position/limit narrowed to the payload,
+    //nothing copied) and is only valid during the call - copy it if it has to outlive the callback.
+    interface FrameSink {
+        void onFrame(ByteBuffer frame);
+    }
+
+    //Decodes every complete frame between in.position() and in.limit(), calling sink once per frame in order.
+    //Returns with in.position() at the start of the first incomplete frame (unchanged if there is none),
+    //the limit is restored. Throws TooLongFrameException when a frame would exceed the decoder's maximum size.
+    void decode(ByteBuffer in, FrameSink sink) throws IOException;
+}
@@ -0,0 +1,28 @@
+import java.nio.ByteBuffer;
+
+//The write side of a framing: whatever has to go before and after a payload so the peer's FrameDecoder can find its boundaries.
+//Split into header/trailer so a response can be encoded straight into its output buffer without building the payload separately first.
+public interface FrameEncoder {
+
+    //bytes writeHeader() will put in front of a payload of this length
+    int headerLength(int payloadLength);
+
+    void writeHeader(ByteBuffer out, int payloadLength);
+
+    //bytes writeTrailer() will put after the payload
+    int trailerLength();
+
+    void writeTrailer(ByteBuffer out);
+
+    //exact size of the framed message
+    default int encodedLength(int payloadLength) {
+        return headerLength(payloadLength) + payloadLength + trailerLength();
+    }
+
+    //Convenience for payloads that already sit in a buffer: header + payload + trailer into out
+    default void encode(ByteBuffer payload, ByteBuffer out) {
+        writeHeader(out, payload.remaining());
+        out.put(payload);
+        writeTrailer(out);
+    }
+}
@@ -0,0 +1,43 @@
+import java.nio.ByteBuffer;
+
+//A request frame's bytes as a cache key (see ResponseCache) - two requests with the same bytes get the same response.
+//view() looks the frame up without copying it: the key points into the request buffer and is reused by the thread's next
+//lookup, so it must never be kept. The cache keeps copy()s instead - its keyCopier is FrameKey::copy.
+public final class FrameKey {
+    private static final ThreadLocal<FrameKey> VIEW = ThreadLocal.withInitial(FrameKey::new);
+
+    private ByteBuffer bytes;
+    private int hash;
+
+    private FrameKey() {
+    }
+
+    //the thread's reusable key for the frame's remaining bytes - the frame's position and limit must not change while it is used
+    public static FrameKey view(ByteBuffer frame) {
+        FrameKey key = VIEW.get();
+        key.bytes = frame;
+        key.hash = frame.hashCode();
+        return key;
+    }
+
+    //a key of its own - the bytes copied into a heap buffer of exactly their size
+    public FrameKey copy() {
+        FrameKey copy = new FrameKey();
+        byte[] data = new byte[bytes.remaining()];
+        bytes.get(bytes.position(), data);
+        copy.bytes = ByteBuffer.wrap(data);
+        copy.hash = hash;
+        return copy;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    //ByteBuffer.equals compares the remaining bytes (vectorized), heap and direct buffers alike
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof FrameKey && ((FrameKey) other).hash == hash && ((FrameKey) other).bytes.equals(bytes);
+    }
+}
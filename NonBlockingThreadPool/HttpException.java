@@ -0,0 +1,14 @@
+import java.io.IOException;
+
+//Thrown by HttpRequestDecoder for a request that cannot be framed - the status is what the client is told before the
+//connection is closed (400 malformed, 413 body too large, 431 head too large, 501 unsupported transfer coding, 505 version)
+public class HttpException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    public HttpException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+}
@@ -0,0 +1,203 @@
+import java.nio.ByteBuffer;
+
+//A parsed view of one request frame from HttpRequestDecoder - offsets into the request buffer, no Strings, no copies.
+//Reusable: wrap() points it at the next request (Server keeps one per thread), so parsing a request allocates nothing.
+//The frame was validated by the decoder, so wrap() only has to find the pieces again.
+public final class HttpRequest {
+    //header fields kept per request - the decoder answers 431 above this
+    static final int MAX_HEADERS = 64;
+    //one reusable view per thread (event loops, and pool threads for blocking handlers)
+    private static final ThreadLocal<HttpRequest> VIEWS = ThreadLocal.withInitial(HttpRequest::new);
+
+    private ByteBuffer buffer;
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private boolean http10;
+    private int headerCount;
+    private final int[] nameStart = new int[MAX_HEADERS];
+    private final int[] nameEnd = new int[MAX_HEADERS];
+    private final int[] valueStart = new int[MAX_HEADERS];
+    private final int[] valueEnd = new int[MAX_HEADERS];
+    private int bodyStart;
+    private int end;
+
+    //The calling thread's view, pointed at the request frame - valid until the thread wraps the next request
+    public static HttpRequest view(ByteBuffer frame) {
+        return VIEWS.get().wrap(frame);
+    }
+
+    //Points this view at a request frame (position = first byte of the request line, limit = end of the body).
+    //The buffer still belongs to the caller, the view is valid until it is released.
+    public HttpRequest wrap(ByteBuffer frame) {
+        buffer = frame;
+        int start = frame.position();
+        end = frame.limit();
+        headerCount = 0;
+        int lineStart = start;
+        boolean requestLine = true;
+        for (int i = start; i < end; i++) {
+            if (frame.get(i) != '\n') {
+                continue;
+            }
+            int lineEnd = i > lineStart && frame.get(i - 1) == '\r' ? i - 1 : i;
+            if (lineEnd == lineStart) {
+                bodyStart = i + 1;
+                break;
+            }
+            if (requestLine) {
+                methodEnd = indexOf(lineStart, lineEnd, ' ');
+                targetStart = methodEnd + 1;
+                targetEnd = indexOf(targetStart, lineEnd, ' ');
+                http10 = frame.get(lineEnd - 1) == '0';
+                requestLine = false;
+            } else {
+                int colon = indexOf(lineStart, lineEnd, ':');
+                nameStart[headerCount] = lineStart;
+                nameEnd[headerCount] = colon;
+                valueStart[headerCount] = skipSpaces(frame, colon + 1, lineEnd);
+                valueEnd[headerCount] = trimSpaces(frame, valueStart[headerCount], lineEnd);
+                headerCount++;
+            }
+            lineStart = i + 1;
+        }
+        return this;
+    }
+
+    public boolean isMethod(String method) {
+        return equals(buffer, buffer.position(), methodEnd, method);
+    }
+
+    //request-target bounds in the buffer, e.g. "/7" or "/?n=7"
+    public int targetStart() {
+        return targetStart;
+    }
+
+    public int targetEnd() {
+        return targetEnd;
+    }
+
+    public boolean isHttp10() {
+        return http10;
+    }
+
+    //index of the first header field with this name (case-insensitive), -1 if there is none - see valueStart()/valueEnd()
+    public int header(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (equalsIgnoreCase(buffer, nameStart[i], nameEnd[i], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //bounds of a header field's value in the buffer, surrounding whitespace excluded
+    public int valueStart(int header) {
+        return valueStart[header];
+    }
+
+    public int valueEnd(int header) {
+        return valueEnd[header];
+    }
+
+    //the buffer the offsets point into
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    //true when any field with this name lists the token, e.g. hasToken("Connection", "close")
+    public boolean hasToken(String name, String token) {
+        for (int i = 0; i < headerCount; i++) {
+            if (!equalsIgnoreCase(buffer, nameStart[i], nameEnd[i], name)) {
+                continue;
+            }
+            //comma separated list
+            int itemStart = valueStart[i];
+            for (int j = valueStart[i]; j <= valueEnd[i]; j++) {
+                if (j == valueEnd[i] || buffer.get(j) == ',') {
+                    int from = skipSpaces(buffer, itemStart, j);
+                    if (equalsIgnoreCase(buffer, from, trimSpaces(buffer, from, j), token)) {
+                        return true;
+                    }
+                    itemStart = j + 1;
+                }
+            }
+        }
+        return false;
+    }
+
+    //PERSISTENT CONNECTIONS - HTTP/1.1 keeps the connection unless the client says "Connection: close",
+    //HTTP/1.0 closes it unless the client asks for "Connection: keep-alive"
+    public boolean isKeepAlive() {
+        return http10 ? hasToken("Connection", "keep-alive") : !hasToken("Connection", "close");
+    }
+
+    public int bodyLength() {
+        return end - bodyStart;
+    }
+
+    //Narrows the request buffer to the body (always decoded - chunked bodies arrive here without their chunk lines)
+    //and returns it. The head cannot be read anymore afterwards, so do this last.
+    public ByteBuffer body() {
+        buffer.position(bodyStart);
+        return buffer;
+    }
+
+    private int indexOf(int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    //ASCII helpers on raw bytes, shared with HttpRequestDecoder
+
+    static boolean equals(ByteBuffer buffer, int start, int end, String text) {
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (buffer.get(start + i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean equalsIgnoreCase(ByteBuffer buffer, int start, int end, String text) {
+        return end - start == text.length() && startsWith(buffer, start, end, text);
+    }
+
+    //case-insensitive for ASCII letters
+    static boolean startsWith(ByteBuffer buffer, int start, int end, String text) {
+        if (end - start < text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (toLower(buffer.get(start + i)) != toLower(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    static int skipSpaces(ByteBuffer buffer, int start, int end) {
+        while (start < end && (buffer.get(start) == ' ' || buffer.get(start) == '\t')) {
+            start++;
+        }
+        return start;
+    }
+
+    static int trimSpaces(ByteBuffer buffer, int start, int end) {
+        while (end > start && (buffer.get(end - 1) == ' ' || buffer.get(end - 1) == '\t')) {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,305 @@
+import java.nio.ByteBuffer;
+
+//HTTP/1.1 requests as frames (RFC 9112), so the rest of the server - copy, pipelining queue, dispatch - works unchanged.
+//A frame is one whole request: the head (request line + header lines + the empty line) immediately followed by the body.
+//The body is framed by Content-Length, by chunked transfer coding, or is empty. Chunked bodies are decoded IN PLACE:
+//each chunk's data is moved down over the chunk-size lines before it, so the frame is still one contiguous view
+//and nothing is allocated. The head keeps its Transfer-Encoding line - HttpRequest ignores it, the body is always decoded.
+//
+//Incremental: a request arriving in many reads is scanned once. All state is kept as offsets from the start of the request,
+//which survive the connection compacting (or growing) its read buffer between reads.
+//Anything that cannot be framed safely throws an HttpException with the status to answer before closing -
+//e.g. both Content-Length and Transfer-Encoding (the request smuggling case), or a head over maxHeadLength.
+//The whole request stays in the read buffer until it is emitted, so its wire size is bounded too: besides the head and the
+//decoded body, the chunk framing (size lines, extensions, CRLFs, trailers) may take at most another maxHeadLength bytes.
+public class HttpRequestDecoder implements FrameDecoder {
+    private static final int HEAD = 0;
+    private static final int BODY = 1;
+    private static final int CHUNK_SIZE = 2;
+    private static final int CHUNK_DATA = 3;
+    private static final int CHUNK_DATA_END = 4;
+    private static final int TRAILERS = 5;
+    //longest chunk-size line or trailer line we wait for
+    private static final int MAX_CHUNK_LINE_LENGTH = 1024;
+
+    private final int maxHeadLength;
+    private final int maxBodyLength;
+
+    //CURRENT REQUEST - offsets relative to its first byte
+    private int state = HEAD;
+    //next byte not looked at yet
+    private int scanned;
+    //start of the head / chunk line being scanned
+    private int lineStart;
+    //head lines seen so far, the request line included
+    private int lines;
+    private int headLength;
+    private long contentLength = -1;
+    private boolean chunked;
+    //end of the body decoded so far (fixed length: end of the whole body)
+    private int bodyEnd;
+    private long chunkRemaining;
+
+    public HttpRequestDecoder(int maxHeadLength, int maxBodyLength) {
+        this.maxHeadLength = maxHeadLength;
+        this.maxBodyLength = maxBodyLength;
+    }
+
+    @Override
+    public void decode(ByteBuffer in, FrameSink sink) throws HttpException {
+        int limit = in.limit();
+        int frameStart = in.position();
+        while (true) {
+            if (state == HEAD) {
+                int i = frameStart + scanned;
+                boolean complete = false;
+                for (; i < limit; i++) {
+                    if (in.get(i) != '\n') {
+                        continue;
+                    }
+                    int start = frameStart + lineStart;
+                    int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+                    if (end == start && lines == 0) {
+                        //empty lines before a request line are allowed (a client's stray CRLF after a body) - skipped
+                        frameStart = i + 1;
+                        lineStart = 0;
+                        continue;
+                    }
+                    lineStart = i + 1 - frameStart;
+                    if (end == start) {
+                        headLength = lineStart;
+                        complete = true;
+                        break;
+                    }
+                    if (lines == 0) {
+                        requestLine(in, start, end);
+                    } else {
+                        headerLine(in, start, end);
+                    }
+                    if (++lines > HttpRequest.MAX_HEADERS + 1) {
+                        throw new HttpException(431, "More than " + HttpRequest.MAX_HEADERS + " header fields");
+                    }
+                }
+                if (!complete) {
+                    scanned = i - frameStart;
+                    if (scanned > maxHeadLength) {
+                        throw new HttpException(431, "Request head exceeds " + maxHeadLength + " bytes");
+                    }
+                    break;
+                }
+                if (headLength > maxHeadLength) {
+                    throw new HttpException(431, "Request head exceeds " + maxHeadLength + " bytes");
+                }
+                if (chunked && contentLength >= 0) {
+                    throw new HttpException(400, "Both Content-Length and Transfer-Encoding");
+                }
+                if (contentLength > maxBodyLength) {
+                    throw new HttpException(413, "Body of " + contentLength + " bytes exceeds " + maxBodyLength);
+                }
+                scanned = headLength;
+                if (chunked) {
+                    state = CHUNK_SIZE;
+                    bodyEnd = headLength;
+                } else {
+                    state = BODY;
+                    bodyEnd = headLength + (int) Math.max(0, contentLength);
+                }
+            } else if (state == BODY) {
+                if (limit - frameStart < bodyEnd) {
+                    scanned = limit - frameStart;
+                    break;
+                }
+                emit(in, sink, frameStart, bodyEnd, limit);
+                frameStart += bodyEnd;
+                reset();
+            } else if (state == CHUNK_DATA) {
+                //move what arrived of this chunk down to the end of the decoded body
+                int from = frameStart + scanned;
+                int n = (int) Math.min(limit - from, chunkRemaining);
+                int to = frameStart + bodyEnd;
+                if (to != from) {
+                    for (int k = 0; k < n; k++) {
+                        in.put(to + k, in.get(from + k));
+                    }
+                }
+                bodyEnd += n;
+                scanned += n;
+                chunkRemaining -= n;
+                if (chunkRemaining > 0) {
+                    break;
+                }
+                state = CHUNK_DATA_END;
+                lineStart = scanned;
+            } else {
+                //CHUNK_SIZE, CHUNK_DATA_END and TRAILERS work on one line at a time
+                int i = frameStart + scanned;
+                while (i < limit && in.get(i) != '\n') {
+                    i++;
+                }
+                if (i == limit) {
+                    scanned = limit - frameStart;
+                    if (scanned - lineStart > MAX_CHUNK_LINE_LENGTH) {
+                        throw new HttpException(400, "Chunk line exceeds " + MAX_CHUNK_LINE_LENGTH + " bytes");
+                    }
+                    checkFraming();
+                    break;
+                }
+                int start = frameStart + lineStart;
+                int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+                scanned = i + 1 - frameStart;
+                lineStart = scanned;
+                checkFraming();
+                if (state == CHUNK_SIZE) {
+                    chunkRemaining = chunkSize(in, start, end);
+                    if (bodyEnd - headLength + chunkRemaining > maxBodyLength) {
+                        throw new HttpException(413, "Chunked body exceeds " + maxBodyLength + " bytes");
+                    }
+                    state = chunkRemaining == 0 ? TRAILERS : CHUNK_DATA;
+                } else if (state == CHUNK_DATA_END) {
+                    if (end != start) {
+                        throw new HttpException(400, "Missing CRLF after chunk data");
+                    }
+                    state = CHUNK_SIZE;
+                } else if (end == start) {
+                    //end of the trailer section - trailer fields themselves are ignored
+                    int consumed = scanned;
+                    emit(in, sink, frameStart, bodyEnd, limit);
+                    frameStart += consumed;
+                    reset();
+                }
+            }
+        }
+        in.limit(limit);
+        in.position(frameStart);
+    }
+
+    //wire bytes after the head that are not body data - everything scanned past the decoded body
+    private void checkFraming() throws HttpException {
+        if (scanned - bodyEnd > maxHeadLength) {
+            throw state == TRAILERS
+                    ? new HttpException(431, "Chunk framing and trailers exceed " + maxHeadLength + " bytes")
+                    : new HttpException(413, "Chunk framing exceeds " + maxHeadLength + " bytes");
+        }
+    }
+
+    private static void emit(ByteBuffer in, FrameSink sink, int frameStart, int frameLength, int limit) {
+        in.limit(frameStart + frameLength);
+        in.position(frameStart);
+        sink.onFrame(in);
+        in.limit(limit);
+    }
+
+    private void reset() {
+        state = HEAD;
+        scanned = 0;
+        lineStart = 0;
+        lines = 0;
+        headLength = 0;
+        contentLength = -1;
+        chunked = false;
+        bodyEnd = 0;
+        chunkRemaining = 0;
+    }
+
+    //method SP request-target SP HTTP/1.x
+    private static void requestLine(ByteBuffer in, int start, int end) throws HttpException {
+        int firstSpace = indexOf(in, start, end, (byte) ' ');
+        int secondSpace = firstSpace < 0 ? -1 : indexOf(in, firstSpace + 1, end, (byte) ' ');
+        if (firstSpace <= start || secondSpace <= firstSpace + 1) {
+            throw new HttpException(400, "Malformed request line");
+        }
+        for (int i = start; i < firstSpace; i++) {
+            if (!isTokenChar(in.get(i))) {
+                throw new HttpException(400, "Malformed method");
+            }
+        }
+        if (!HttpRequest.equalsIgnoreCase(in, secondSpace + 1, end, "HTTP/1.1")
+                && !HttpRequest.equalsIgnoreCase(in, secondSpace + 1, end, "HTTP/1.0")) {
+            throw new HttpException(HttpRequest.startsWith(in, secondSpace + 1, end, "HTTP/") ? 505 : 400, "Unsupported protocol version");
+        }
+    }
+
+    //name ":" OWS value OWS - only the fields that frame the body are interpreted here
+    private void headerLine(ByteBuffer in, int start, int end) throws HttpException {
+        int colon = indexOf(in, start, end, (byte) ':');
+        if (colon <= start) {
+            throw new HttpException(400, "Malformed header field");
+        }
+        for (int i = start; i < colon; i++) {
+            //also rejects obsolete line folding (a line starting with whitespace) and "Name :"
+            if (!isTokenChar(in.get(i))) {
+                throw new HttpException(400, "Malformed header field name");
+            }
+        }
+        int valueStart = HttpRequest.skipSpaces(in, colon + 1, end);
+        int valueEnd = HttpRequest.trimSpaces(in, valueStart, end);
+        if (HttpRequest.equalsIgnoreCase(in, start, colon, "Content-Length")) {
+            long length = 0;
+            if (valueStart == valueEnd || valueEnd - valueStart > 10) {
+                throw new HttpException(400, "Malformed Content-Length");
+            }
+            for (int i = valueStart; i < valueEnd; i++) {
+                int digit = in.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new HttpException(400, "Malformed Content-Length");
+                }
+                length = length * 10 + digit;
+            }
+            if (contentLength >= 0 && contentLength != length) {
+                throw new HttpException(400, "Conflicting Content-Length fields");
+            }
+            contentLength = length;
+        } else if (HttpRequest.equalsIgnoreCase(in, start, colon, "Transfer-Encoding")) {
+            //only plain "chunked" - other codings would need decompressing, which this server does not do
+            if (!HttpRequest.equalsIgnoreCase(in, valueStart, valueEnd, "chunked")) {
+                throw new HttpException(501, "Unsupported Transfer-Encoding");
+            }
+            chunked = true;
+        }
+    }
+
+    //hex digits, optionally followed by ";extensions" (ignored)
+    private static long chunkSize(ByteBuffer in, int start, int end) throws HttpException {
+        long size = 0;
+        int i = start;
+        for (; i < end; i++) {
+            int b = in.get(i);
+            int digit = b >= '0' && b <= '9' ? b - '0' : b >= 'a' && b <= 'f' ? b - 'a' + 10 : b >= 'A' && b <= 'F' ? b - 'A' + 10 : -1;
+            if (digit < 0) {
+                break;
+            }
+            if (i - start >= 8) {
+                throw new HttpException(413, "Chunk too large");
+            }
+            size = size * 16 + digit;
+        }
+        if (i == start || (i < end && in.get(i) != ';' && in.get(i) != ' ' && in.get(i) != '\t')) {
+            throw new HttpException(400, "Malformed chunk size");
+        }
+        return size;
+    }
+
+    private static int indexOf(ByteBuffer in, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (in.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //tchar from RFC 9110 - visible ASCII except separators
+    private static boolean isTokenChar(byte b) {
+        if (b <= ' ' || b >= 127) {
+            return false;
+        }
+        switch (b) {
+            case '"': case '(': case ')': case ',': case '/': case ':': case ';':
+            case '<': case '=': case '>': case '?': case '@': case '[': case '\\':
+            case ']': case '{': case '}':
+                return false;
+            default:
+                return true;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import java.nio.ByteBuffer;
+
+//Writes HTTP/1.1 responses straight into a (pooled) output buffer - status line and header fields byte by byte, no String
+//building, no byte[] copies. The body size is always known up front and sent as Content-Length.
+//Responses with more fields: writeStatusLine(), writeField() / writeContentLength() / writeContentRange(), endHead().
+public final class HttpResponse {
+    //room for the longest head written here - status line, Content-Type, Content-Length, Content-Range, Connection
+    static final int MAX_HEAD_LENGTH = 256;
+
+    private HttpResponse() {
+    }
+
+    //keepAlive false adds "Connection: close" - the caller then closes after the response (connection.writeAndClose())
+    //http10: an HTTP/1.0 client only keeps the connection when told "Connection: keep-alive"
+    static void writeHead(ByteBuffer out, int status, String contentType, int contentLength, boolean keepAlive, boolean http10) {
+        writeStatusLine(out, status);
+        writeField(out, "Content-Type", contentType);
+        writeContentLength(out, contentLength);
+        endHead(out, keepAlive, http10);
+    }
+
+    static void writeStatusLine(ByteBuffer out, int status) {
+        Server.putAscii(out, "HTTP/1.1 ");
+        Server.putInt(out, status);
+        out.put((byte) ' ');
+        Server.putAscii(out, reason(status));
+        Server.putAscii(out, "\r\n");
+    }
+
+    static void writeField(ByteBuffer out, String name, CharSequence value) {
+        Server.putAscii(out, name);
+        Server.putAscii(out, ": ");
+        Server.putAscii(out, value);
+        Server.putAscii(out, "\r\n");
+    }
+
+    static void writeContentLength(ByteBuffer out, long contentLength) {
+        Server.putAscii(out, "Content-Length: ");
+        Server.putLong(out, contentLength);
+        Server.putAscii(out, "\r\n");
+    }
+
+    //Content-Range: bytes first-last/size of a 206, or bytes */size of a 416 (first < 0)
+    static void writeContentRange(ByteBuffer out, long first, long last, long size) {
+        Server.putAscii(out, "Content-Range: bytes ");
+        if (first < 0) {
+            out.put((byte) '*');
+        } else {
+            Server.putLong(out, first);
+            out.put((byte) '-');
+            Server.putLong(out, last);
+        }
+        out.put((byte) '/');
+        Server.putLong(out, size);
+        Server.putAscii(out, "\r\n");
+    }
+
+    //the Connection field (if the client needs one) and the empty line that ends the head
+    static void endHead(ByteBuffer out, boolean keepAlive, boolean http10) {
+        if (!keepAlive) {
+            Server.putAscii(out, "Connection: close\r\n");
+        } else if (http10) {
+            Server.putAscii(out, "Connection: keep-alive\r\n");
+        }
+        Server.putAscii(out, "\r\n");
+    }
+
+    static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 206: return "Partial Content";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 413: return "Content Too Large";
+            case 416: return "Range Not Satisfiable";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            case 505: return "HTTP Version Not Supported";
+            default: return "Unknown";
+        }
+    }
+}
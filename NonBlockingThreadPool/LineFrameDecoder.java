@@ -0,0 +1,40 @@
+import java.nio.ByteBuffer;
+
+//Newline delimited frames ("7\n", "7\r\n") - what PrintWriter.println() on the clients sends.
+//The delimiter (and a '\r' before it) is not part of the frame.
+public class LineFrameDecoder implements FrameDecoder {
+    private final int maxFrameLength;
+    //bytes of the current (incomplete) frame already scanned for '\n' - so a frame arriving in many reads is scanned only once
+    private int scanned;
+
+    public LineFrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public void decode(ByteBuffer in, FrameSink sink) throws TooLongFrameException {
+        int limit = in.limit();
+        int frameStart = in.position();
+        int i = frameStart + scanned;
+        for (; i < limit; i++) {
+            if (in.get(i) != '\n') {
+                continue;
+            }
+            int frameEnd = i > frameStart && in.get(i - 1) == '\r' ? i - 1 : i;
+            if (frameEnd - frameStart > maxFrameLength) {
+                throw new TooLongFrameException("Frame of " + (frameEnd - frameStart) + " bytes exceeds " + maxFrameLength);
+            }
+            in.limit(frameEnd);
+            in.position(frameStart);
+            sink.onFrame(in);
+            in.limit(limit);
+            frameStart = i + 1;
+        }
+        in.position(frameStart);
+        scanned = limit - frameStart;
+        //the '\r' of a "\r\n" can be the last byte of the frame, so allow one extra byte while waiting
+        if (scanned > maxFrameLength + 1) {
+            throw new TooLongFrameException("No delimiter within " + maxFrameLength + " bytes");
+        }
+    }
+}
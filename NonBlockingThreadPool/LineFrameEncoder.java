@@ -0,0 +1,23 @@
+import java.nio.ByteBuffer;
+
+//Writes a payload followed by '\n' - readable by BufferedReader.readLine() on the clients
+public class LineFrameEncoder implements FrameEncoder {
+    @Override
+    public int headerLength(int payloadLength) {
+        return 0;
+    }
+
+    @Override
+    public void writeHeader(ByteBuffer out, int payloadLength) {
+    }
+
+    @Override
+    public int trailerLength() {
+        return 1;
+    }
+
+    @Override
+    public void writeTrailer(ByteBuffer out) {
+        out.put((byte) '\n');
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+//Small hot files, memory-mapped once and then written to sockets straight from the mapping: no read() into a buffer,
+//no copy through the heap - the kernel copies page cache -> socket when the connection writes the (read-only) view.
+//Bigger files are not worth the address space and go out with sendfile instead (StaticFileHandler).
+//
+//Bounded by total mapped bytes, least recently used entry evicted first (LinkedHashMap in access order, one short lock per
+//lookup - the mapping itself is done outside the lock). An entry is only used while the file's modification time, size and
+//file key (inode) match the attributes the caller just read, so an edited or replaced file is re-mapped on its next request.
+//Deploy files by writing a new file and renaming it over the old one: a file truncated in place while it is mapped makes
+//reads of the lost pages fail.
+//An evicted mapping is unmapped by the GC once no connection is still writing from it.
+public class MappedFileCache {
+    private static final class Entry {
+        final MappedByteBuffer buffer;
+        final long lastModifiedNanos;
+        final long size;
+        final Object fileKey;
+
+        Entry(MappedByteBuffer buffer, BasicFileAttributes attributes) {
+            this.buffer = buffer;
+            this.lastModifiedNanos = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            this.size = attributes.size();
+            this.fileKey = attributes.fileKey();
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return lastModifiedNanos == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                    && size == attributes.size() && Objects.equals(fileKey, attributes.fileKey());
+        }
+    }
+
+    private final int maxFileBytes;
+    private final long maxTotalBytes;
+    //access order - iteration starts at the least recently used entry
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    //METRICS - standalone until bindMetrics() puts them into a registry
+    private Counter hits = new Counter();
+    private Counter misses = new Counter();
+
+    public MappedFileCache(int maxFileBytes, long maxTotalBytes) {
+        this.maxFileBytes = maxFileBytes;
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    public void bindMetrics(MetricsRegistry metrics, String prefix) {
+        hits = metrics.counter(prefix + "_file_cache_total", "result=\"hit\"", "Static file lookups in the mapped file cache");
+        misses = metrics.counter(prefix + "_file_cache_total", "result=\"miss\"", "Static file lookups in the mapped file cache");
+        metrics.gauge(prefix + "_file_cache_bytes", "Bytes of files currently mapped by the cache", this::mappedBytes);
+    }
+
+    //files up to this size are served from the cache
+    public boolean accepts(long size) {
+        return size <= maxFileBytes;
+    }
+
+    //A read-only view of the whole file (position 0) - from the cache when the entry still matches the attributes,
+    //else the file is mapped (again) now. The view is the caller's to narrow and hand to Connection.write().
+    public ByteBuffer get(Path file, BasicFileAttributes attributes) throws IOException {
+        synchronized (this) {
+            Entry entry = entries.get(file);
+            if (entry != null && entry.matches(attributes)) {
+                hits.increment();
+                return entry.buffer.duplicate();
+            }
+        }
+        misses.increment();
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            //never beyond the current end - the file may have shrunk since the attributes were read
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(attributes.size(), channel.size()));
+        }
+        if (mapped.capacity() != attributes.size()) {
+            //changed under us - serve this mapping but don't cache it, the next request sees the new attributes
+            return mapped.duplicate();
+        }
+        synchronized (this) {
+            Entry previous = entries.put(file, new Entry(mapped, attributes));
+            if (previous != null) {
+                totalBytes -= previous.size;
+            }
+            totalBytes += mapped.capacity();
+            Iterator<Map.Entry<Path, Entry>> eldest = entries.entrySet().iterator();
+            while (totalBytes > maxTotalBytes && eldest.hasNext()) {
+                totalBytes -= eldest.next().getValue().size;
+                eldest.remove();
+            }
+        }
+        return mapped.duplicate();
+    }
+
+    public synchronized long mappedBytes() {
+        return totalBytes;
+    }
+}
@@ -0,0 +1,34 @@
+import java.nio.ByteBuffer;
+
+//Answers one request of a connection. Where it runs depends on what it declares:
+    //1. non-blocking (default) - inline on the connection's EventLoop thread, right after the frame was decoded.
+    //   No queue hand-off, no context switch, and the request, the reply and the connection state stay in that core's cache.
+    //   It must never block (no I/O, no locks held for long, no sleeping) - every other connection on the loop waits meanwhile.
+    //2. blocking - handed to the server's ProcessingPool. The reply goes back through connection.write(), which hops onto the
+    //   owning loop, so the connection's channel is still only ever touched by one thread.
+//
+//Contract, either way: the handler owns the request buffer and releases it to server.getBufferPool(), queues exactly one reply
+//with connection.write() and then calls connection.requestDone() - or connection.writeAndClose() to answer and hang up.
+public interface RequestHandler {
+
+    void handle(Connection connection, ByteBuffer request);
+
+    default boolean isBlocking() {
+        return false;
+    }
+
+    //Marks a handler as blocking so the server offloads it to the pool, e.g. RequestHandler.blocking(this::queryDatabase)
+    static RequestHandler blocking(RequestHandler handler) {
+        return new RequestHandler() {
+            @Override
+            public void handle(Connection connection, ByteBuffer request) {
+                handler.handle(connection, request);
+            }
+
+            @Override
+            public boolean isBlocking() {
+                return true;
+            }
+        };
+    }
+}
@@ -1,145 +1,814 @@
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.file.Paths;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
-public class Server {
+public class Server implements Lifecycle {
     public static final String ANSI_RESET = "\u001B[0m";
     public static final String ANSI_RED = "\u001B[31m";
     public static final String ANSI_CYAN = "\u001B[36m";
     public static final String ANSI_YELLOW = "\u001B[33m";
+    //shared by the acceptors, event loops and pool threads - a log call only enqueues, so it never stalls a selector loop
+    static final AsyncLogger LOG = AsyncLogger.getDefault();
 
-    //threadPool variable of type ExecutorService
-    private final ExecutorService threadPool;
-    //created a threadpool of fixed size
+    //threadPool variable - shared queue or work stealing, bounded, see ProcessingPool and OverloadPolicy
+    private final ProcessingPool threadPool;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    //what dispatch() does when the pool has no free slot
+    private final OverloadPolicy overload;
+    //PAUSE_READS: connections with a request parked until a pool thread finishes a task - one is resumed per finished task
+    private final Queue<Connection> pausedConnections = new ConcurrentLinkedQueue<>();
+    //admission control on top of the queue bound - null = none
+    private volatile ConcurrencyLimiter limiter;
+    //number of I/O event loops (worker reactors), each with its own Selector and thread
+    private final int ioThreads;
+    //number of accept loops (boss reactors) - more than 1 needs SO_REUSEPORT
+    private final int acceptThreads;
+    //direct buffers for reads and responses (no leak tracking by default - it allocates on every acquire)
+    private final BufferPool bufferPool = new BufferPool(false);
+    //per-connection outbound queue limits: stop reading from a client above high, resume below low
+    private int lowWatermark = 32 * 1024;
+    private int highWatermark = 64 * 1024;
+    //when queued replies are written - see FlushPolicy / setFlushPolicy()
+    private FlushPolicy flushPolicy = FlushPolicy.PER_LOOP;
+    private int flushThresholdBytes = 16 * 1024;
+    private long maxFlushDelayNanos = TimeUnit.MILLISECONDS.toNanos(1);
+    //framing: newline delimited by default, matching println() on the clients
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 8192;
+    private Supplier<FrameDecoder> decoderFactory = () -> new LineFrameDecoder(DEFAULT_MAX_FRAME_LENGTH);
+    private FrameEncoder frameEncoder = new LineFrameEncoder();
+    //HTTP/1.1 instead of the line protocol - see setHttp()
+    private boolean http;
+    public static final int DEFAULT_MAX_HTTP_HEAD_LENGTH = 8192;
+    public static final int DEFAULT_MAX_HTTP_BODY_LENGTH = 65536;
+    //timeouts in nanos, 0 = off - see setIdleTimeouts()
+    private long readIdleTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+    private long writeIdleTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+    private long maxLifetimeNanos;
+    //what answers a request - the number parser by default, cheap enough to run inline on the event loop
+    private volatile RequestHandler handler = this::processMessage;
+    //replies of processMessage / processHttp by request bytes, null = no cache - see setResponseCache()
+    private volatile ResponseCache<FrameKey, ByteBuffer> responseCache;
+    //LIFECYCLE - set by start(), see stop()
+    private EventLoop[] eventLoops;
+    private Acceptor[] acceptLoops;
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    //METRICS
+    //Looked up once here, updated by the event loops and pool threads. Active connections = accepted - closed.
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    final Counter connectionsAccepted = metrics.counter("nio_connections_accepted_total", "Connections accepted");
+    final Counter connectionsClosed = metrics.counter("nio_connections_closed_total", "Connections closed (by either side)");
+    final Counter bytesRead = metrics.counter("nio_bytes_read_total", "Bytes read from clients");
+    final Counter bytesWritten = metrics.counter("nio_bytes_written_total", "Bytes written to clients");
+    final Counter writeCalls = metrics.counter("nio_write_calls_total", "Socket writes (syscalls) - requests / writes = replies per write");
+    final Counter bytesSentfile = metrics.counter("nio_bytes_sendfile_total", "Bytes of those sent straight from files with transferTo (sendfile)");
+    final Counter requests = metrics.counter("nio_requests_total", "Requests answered");
+    final Counter readErrors = metrics.counter("nio_errors_total", "type=\"read\"", "Errors by type");
+    final Counter writeErrors = metrics.counter("nio_errors_total", "type=\"write\"", "Errors by type");
+    final Counter decodeErrors = metrics.counter("nio_errors_total", "type=\"decode\"", "Errors by type");
+    final Counter invalidRequests = metrics.counter("nio_errors_total", "type=\"invalid_request\"", "Errors by type");
+    //time an event loop spends on one batch of ready keys + tasks - close to the interval between selects means the loop is saturated
+    final LatencyHistogram loopBusyTime = metrics.histogram("nio_loop_busy_seconds", "Event loop time per select() wakeup, excluding the wait");
+    //from dispatch until the handler returned - includes the wait in the pool's queue for blocking handlers
+    final LatencyHistogram requestTime = metrics.histogram("nio_request_seconds", "Handling time per request, plus the pool queue wait for blocking handlers");
+    final Counter dispatchedInline = metrics.counter("nio_dispatched_total", "where=\"event_loop\"", "Requests dispatched, by where the handler ran");
+    final Counter dispatchedPool = metrics.counter("nio_dispatched_total", "where=\"pool\"", "Requests dispatched, by where the handler ran");
+    final Counter rejectedQueueFull = metrics.counter("nio_rejected_total", "reason=\"queue_full\"", "Requests answered with Server busy, by cause");
+    final Counter rejectedLimit = metrics.counter("nio_rejected_total", "reason=\"concurrency_limit\"", "Requests answered with Server busy, by cause");
+    final Counter readIdleTimeouts = metrics.counter("nio_timeouts_total", "reason=\"read_idle\"", "Connections closed by a timeout, by kind");
+    final Counter writeIdleTimeouts = metrics.counter("nio_timeouts_total", "reason=\"write_idle\"", "Connections closed by a timeout, by kind");
+    final Counter lifetimeTimeouts = metrics.counter("nio_timeouts_total", "reason=\"lifetime\"", "Connections closed by a timeout, by kind");
+    final Counter dispatchesPaused = metrics.counter("nio_dispatch_paused_total", "Requests parked (reads paused) because the pool was full - PAUSE_READS");
+
+    //created a threadpool of fixed size, one I/O event loop per core and a single acceptor
     public Server(int poolSize) {
-        this.threadPool = Executors.newFixedThreadPool(poolSize);
+        this(poolSize, Runtime.getRuntime().availableProcessors(), 1);
+    }
+
+    public Server(int poolSize, int ioThreads, int acceptThreads) {
+        this(poolSize, ioThreads, acceptThreads, DEFAULT_QUEUE_CAPACITY, OverloadPolicy.FAIL_FAST);
+    }
+
+    //at most queueCapacity requests wait for a pool thread, overload decides about the rest
+    public Server(int poolSize, int ioThreads, int acceptThreads, int queueCapacity, OverloadPolicy overload) {
+        this(new ProcessingPool(ProcessingPool.Kind.SHARED_QUEUE, poolSize, queueCapacity, overload), ioThreads, acceptThreads);
     }
 
-    public static void main(String[] args) throws IOException {
+    //the pool's overload policy also decides what dispatch() does when it is full
+    public Server(ProcessingPool pool, int ioThreads, int acceptThreads) {
+        if (ioThreads < 1 || acceptThreads < 1) {
+            throw new IllegalArgumentException("ioThreads and acceptThreads must be at least 1");
+        }
+        this.threadPool = pool;
+        this.overload = pool.getOverloadPolicy();
+        this.ioThreads = ioThreads;
+        this.acceptThreads = acceptThreads;
+        //a parked connection (PAUSE_READS) is resumed as soon as a slot frees up
+        pool.setSlotFreedListener(this::resumePausedConnection);
+        pool.bindMetrics(metrics, "nio");
+        metrics.gauge("nio_connections_active", "Open connections", () -> connectionsAccepted.get() - connectionsClosed.get());
+        metrics.gauge("nio_buffers_outstanding", "Pooled buffers currently lent out", bufferPool::outstanding);
+        metrics.gauge("nio_paused_connections", "Connections with reads paused until the pool has room - PAUSE_READS", pausedConnections::size);
+    }
+
+    //Optional first argument picks the overload policy: FAIL_FAST (default), CALLER_RUNS or PAUSE_READS
+    //Optional second argument adds an adaptive concurrency limit: aimd or gradient (default none)
+    //Optional third argument picks the processing pool: shared (one queue, default) or work-stealing (per worker deques)
+    //Optional fourth argument picks the protocol: line (default) or http - e.g. curl http://localhost:8010/7
+    //Optional fifth argument (http only) is a document root to serve files from instead - see StaticFileHandler
+    public static void main(String[] args) throws IOException, InterruptedException {
         int port = 8010;
-        int poolSize = 10;
-        Server server = new Server(poolSize);
+        int cores = Runtime.getRuntime().availableProcessors();
+        int poolSize = cores; // starting size - the auto tuner moves it between minThreads and maxThreads
+        int minThreads = Math.max(2, cores / 2);
+        int maxThreads = cores * 8;
+        boolean autoTune = true;
+        boolean blockingHandler = false; // true: treat the number parser as blocking and offload it to the pool (the old behaviour)
+        int ioThreads = cores; // one I/O event loop per core
+        int acceptThreads = 1; // set > 1 to run several accept loops on the same port with SO_REUSEPORT
+        int queueCapacity = 1000; // requests allowed to wait for a pool thread
+        int initialLimit = 20; // starting point of the adaptive concurrency limit
+        int metricsPort = 9010; // plain text metrics at http://localhost:9010/metrics
+        long readIdleMillis = 60_000; // close clients silent this long
+        long writeIdleMillis = 30_000; // close clients that stop reading their replies this long
+        long maxLifetimeMillis = 0; // drain and close connections this old - 0 = never
+        long drainSeconds = 10; // on SIGTERM / Ctrl+C: stop accepting, answer the requests already read, then close
+        int maxCachedFileBytes = 256 * 1024; // static files: up to this size are memory-mapped and cached, bigger ones go out with sendfile
+        long fileCacheBytes = 64L * 1024 * 1024; // static files: total size of the mapped files kept
+        long responseCacheBytes = 16L * 1024 * 1024; // replies of repeated requests kept pre-encoded - 0 = no response cache
+        long responseCacheTtlSeconds = 60; // how long a cached reply is served
+        FlushPolicy flushPolicy = FlushPolicy.PER_LOOP; // IMMEDIATE: one write per reply, PER_LOOP: one per connection and loop iteration
+        int flushThresholdBytes = 16 * 1024; // THRESHOLD: write once this much is queued...
+        long maxFlushDelayMicros = 1000; // ...or the oldest reply waited this long
+        OverloadPolicy overload = args.length > 0 ? OverloadPolicy.valueOf(args[0].toUpperCase()) : OverloadPolicy.FAIL_FAST;
+        ProcessingPool.Kind kind = args.length > 2 ? ProcessingPool.Kind.byName(args[2]) : ProcessingPool.Kind.SHARED_QUEUE;
+        ProcessingPool pool = new ProcessingPool(kind, Math.max(poolSize, minThreads), queueCapacity, overload);
+        Server server = new Server(pool, ioThreads, acceptThreads);
+        server.setIdleTimeouts(readIdleMillis, writeIdleMillis, maxLifetimeMillis);
+        server.setFlushPolicy(flushPolicy, flushThresholdBytes, maxFlushDelayMicros, TimeUnit.MICROSECONDS);
+        if (args.length > 3 && args[3].equalsIgnoreCase("http")) {
+            server.setHttp(DEFAULT_MAX_HTTP_HEAD_LENGTH, DEFAULT_MAX_HTTP_BODY_LENGTH);
+            if (args.length > 4) {
+                MappedFileCache cache = new MappedFileCache(maxCachedFileBytes, fileCacheBytes);
+                server.setRequestHandler(new StaticFileHandler(server, Paths.get(args[4]), cache));
+            }
+        }
+        if (blockingHandler) {
+            server.setRequestHandler(RequestHandler.blocking(server::processMessage));
+        }
+        if (responseCacheBytes > 0) {
+            server.setResponseCache(new ResponseCache<>(responseCacheBytes, responseCacheTtlSeconds, TimeUnit.SECONDS,
+                    ByteBuffer::capacity, FrameKey::copy));
+        }
+        if (autoTune) {
+            new PoolAutoTuner(pool, minThreads, maxThreads, 1000).start();
+        }
+        if (args.length > 1 && !args[1].equalsIgnoreCase("none")) {
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter(LimitAlgorithm.byName(args[1]), initialLimit);
+            limiter.bindMetrics(server.getMetrics(), "nio");
+            server.setConcurrencyLimiter(limiter);
+        }
+        server.getMetrics().registerJmx("webserver:type=NonBlockingThreadPool");
+        server.getMetrics().startEndpoint(metricsPort);
         server.start(port);
+        Lifecycle.stopOnShutdown(server, drainSeconds, TimeUnit.SECONDS);
+        server.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    //BOSS / WORKER REACTORS
+    //A single Selector handling both OP_ACCEPT and OP_READ pegs one core while the others sit idle.
+    //So the work is split:
+        //1. Acceptor (boss) - owns the ServerSocketChannel, only waits for OP_ACCEPT
+        //2. EventLoop (worker) x ioThreads - each owns a Selector and handles OP_READ for the channels handed to it
+    //A connection stays on the same EventLoop for its whole life, so its channel is only ever touched by one I/O thread.
+
+    //SELECTION KEY
+    //A SelectionKey is a token that represents the registration of a channel with a selector.
+    //Components:
+        //1. The SocketChannel or ServerSocketChannel you registered.
+            //✅ key.channel() returns the channel.
+        //2. The Selector that monitors this key.
+            //✅ key.selector() returns the selector.
+        //3. What you want to be notified about (interested operation) - OP_ACCEPT & OP_READ
+            //✅ key.interestOps() returns the interest set.
+        //4. An arbitrary object you attach when registering - buffer here
+            //✅ key.attachment() returns the buffer attached.
+
+    //Must be called before start()
+    public void setWriteWatermarks(int lowWatermark, int highWatermark) {
+        if (lowWatermark < 0 || highWatermark < lowWatermark) {
+            throw new IllegalArgumentException("expected 0 <= lowWatermark <= highWatermark");
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    //Must be called before start() - see FlushPolicy. thresholdBytes and maxDelay only matter for THRESHOLD.
+    public void setFlushPolicy(FlushPolicy policy, int thresholdBytes, long maxDelay, TimeUnit unit) {
+        if (thresholdBytes <= 0 || maxDelay < 0) {
+            throw new IllegalArgumentException("expected thresholdBytes > 0 and maxDelay >= 0");
+        }
+        this.flushPolicy = policy;
+        this.flushThresholdBytes = thresholdBytes;
+        this.maxFlushDelayNanos = unit.toNanos(maxDelay);
+    }
+
+    //Must be called before start() - 0 turns a timeout off
+    //readIdle: nothing read or written while the client owes us a request, writeIdle: queued replies the client does not read,
+    //maxLifetime: connection age after which it is drained and closed (spreads long-lived clients over restarted/added servers)
+    public void setIdleTimeouts(long readIdleMillis, long writeIdleMillis, long maxLifetimeMillis) {
+        if (readIdleMillis < 0 || writeIdleMillis < 0 || maxLifetimeMillis < 0) {
+            throw new IllegalArgumentException("timeouts must not be negative");
+        }
+        this.readIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readIdleMillis);
+        this.writeIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeIdleMillis);
+        this.maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(maxLifetimeMillis);
+    }
+
+    //Must be called before start() - e.g. setFraming(() -> new VarintFrameDecoder(65536), new VarintFrameEncoder())
+    //decoderFactory is called once per connection, decoders keep per-connection state
+    public void setFraming(Supplier<FrameDecoder> decoderFactory, FrameEncoder frameEncoder) {
+        this.decoderFactory = decoderFactory;
+        this.frameEncoder = frameEncoder;
+    }
+
+    //Must be called before start() - speak HTTP/1.1 instead of the line protocol: HttpRequestDecoder frames the requests,
+    //processHttp() answers them, busy and malformed requests get 503 / 4xx responses, no greeting on accept.
+    //Connections are persistent (unless the client says otherwise) and pipelined requests are answered in order,
+    //both by the same Connection machinery the line protocol uses.
+    //A later setRequestHandler() replaces processHttp() - the handler then gets HTTP request frames (see HttpRequest).
+    public void setHttp(int maxHeadLength, int maxBodyLength) {
+        this.decoderFactory = () -> new HttpRequestDecoder(maxHeadLength, maxBodyLength);
+        this.handler = this::processHttp;
+        this.http = true;
+    }
+
+    //Replaces the request handler - see RequestHandler for where it runs and what it must do
+    public void setRequestHandler(RequestHandler handler) {
+        this.handler = handler;
+    }
+
+    //Caches the replies of the built-in handlers (processMessage / processHttp) by the request frame's bytes, see ResponseCache -
+    //a repeated request is answered by writing the stored reply, without parsing, logging or encoding it again.
+    //Only successful replies are stored (HTTP: keep-alive 200s), everything else is answered as before.
+    //A handler set with setRequestHandler() has its own caching to do (StaticFileHandler: MappedFileCache).
+    public void setResponseCache(ResponseCache<FrameKey, ByteBuffer> cache) {
+        cache.bindMetrics(metrics, "nio");
+        this.responseCache = cache;
+    }
+
+    //Admission control for every following request handed to the pool - limiter.bindMetrics() is up to the caller
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    FrameDecoder newFrameDecoder() {
+        return decoderFactory.get();
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    long getReadIdleTimeoutNanos() {
+        return readIdleTimeoutNanos;
     }
 
+    long getWriteIdleTimeoutNanos() {
+        return writeIdleTimeoutNanos;
+    }
+
+    long getMaxLifetimeNanos() {
+        return maxLifetimeNanos;
+    }
+
+    FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    int getFlushThresholdBytes() {
+        return flushThresholdBytes;
+    }
+
+    long getMaxFlushDelayNanos() {
+        return maxFlushDelayNanos;
+    }
+
+    int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    int getHighWatermark() {
+        return highWatermark;
+    }
+
+    //Returns once the port is bound - the accept loops and event loops run on their own threads
+    @Override
     public void start(int port) throws IOException {
-        //Server Socket Channel created - non blocking - and bind to the port 
-        ServerSocketChannel serverChannel = ServerSocketChannel.open();
-        serverChannel.configureBlocking(false);
-        serverChannel.bind(new InetSocketAddress(port));
-
-        //A selector created for server which will constantly track ready channels for either new connection (OP_ACCEPT) or ready to read from client channel/IO operation (OP_READ)
-        Selector selector = Selector.open();
-        //Registering a server channel as OP_ACCEPT 
-        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-        //Upto here selector.selectedKeys() will contain only one SelectionKey instance - <serverChannel, selector, OP_ACCEPT, No Attachment(as it is a new connection operation)>
-
-        System.out.println(ANSI_YELLOW + "Non-blocking server listening on port " + port + ANSI_RESET);
-
-        //SELECTION KEY
-        //A SelectionKey is a token that represents the registration of a channel with a selector.
-        //Components:
-            //1. The SocketChannel or ServerSocketChannel you registered.
-                //✅ key.channel() returns the channel.
-            //2. The Selector that monitors this key.
-                //✅ key.selector() returns the selector.
-            //3. What you want to be notified about (interested operation) - OP_ACCEPT & OP_READ
-                //✅ key.interestOps() returns the interest set.
-            //4. An arbitrary object you attach when registering - buffer here
-                //✅ key.attachment() returns the buffer attached.
-
-        //This while loop constantly checks for ready channels
-        while (true) {
-            //blocks until 1 channel is ready - for first time, it will be the serverChannel which will be selected
-            selector.select();
-            //What does selector.selectedKeys() contain?
-            //👉 It contains all the SelectionKey instances that are ready for some operation.
-            Set<SelectionKey> selectedKeys = selector.selectedKeys();
-            //iterate over this set
-            Iterator<SelectionKey> iter = selectedKeys.iterator();
-
-            while (iter.hasNext()) {
-                //key has 1 event - either accept (make new connection) or read (read data from client)
-                SelectionKey key = iter.next();
-                iter.remove();
-
-                //making new connection
-                if (key.isAcceptable()) {
-                    //new client socket creation
-                    SocketChannel clientChannel = serverChannel.accept();
-                    clientChannel.configureBlocking(false);
-                    //Register for read events(creating more SelectionKey instances), attach a buffer to store incoming data(a separate buffer is added to each such read request).
-                    clientChannel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(1024));
-                    System.out.println(ANSI_CYAN + "Accepted connection from " + clientChannel.getRemoteAddress() + ANSI_RESET);
-
-                    //Send a greeting message to client immediately
-                    ByteBuffer buffer = ByteBuffer.wrap(("Hello " + clientChannel.getRemoteAddress() + "\n").getBytes());
-                    clientChannel.write(buffer);
-
-                } 
-                //channel ready to read data from client
-                else if (key.isReadable()) {
-                    //getting client socket channel from key
-                    SocketChannel clientChannel = (SocketChannel) key.channel();
-                    //getting buffer data
-                    ByteBuffer buffer = (ByteBuffer) key.attachment();
-                    //prepare buffer for new data
-                    buffer.clear();
-
-                    //stores the number of bytes read from the channel to the buffer
-                    int bytesRead;
-                    try {
-                        //from the channel, data is read (put) in the buffer alloted and it returns the number of bytes read
-                        bytesRead = clientChannel.read(buffer);
-                        //if bytesRead=0, no data
-                        //if bytesRead=-1, client gracefully closed the connection
-                        if (bytesRead == -1) {
-                            clientChannel.close();
-                            System.out.println(ANSI_RED + "Connection closed by client" + ANSI_RESET);
-                            continue;
-                        }
-                    } catch (IOException e) {
-                        clientChannel.close();
-                        System.out.println(ANSI_RED + "Error reading from client: " + e.getMessage() + ANSI_RESET);
-                        continue;
+        EventLoop[] eventLoops = new EventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            eventLoops[i] = new EventLoop(this);
+            new Thread(eventLoops[i], "nio-worker-" + i).start();
+        }
+
+        //SO_REUSEPORT lets several sockets bind the same port; the kernel load balances new connections between them
+        boolean reusePort = acceptThreads > 1 && supportsReusePort();
+        int acceptors = reusePort ? acceptThreads : 1;
+        if (acceptThreads > 1 && !reusePort) {
+            LOG.warn(ANSI_RED + "SO_REUSEPORT not supported, falling back to a single acceptor" + ANSI_RESET);
+        }
+
+        Acceptor[] acceptLoops = new Acceptor[acceptors];
+        for (int i = 0; i < acceptors; i++) {
+            //Server Socket Channel created - non blocking - and bind to the port
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            if (reusePort) {
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            serverChannel.bind(new InetSocketAddress(port));
+            //each acceptor starts its round robin at a different loop so they don't all pile onto loop 0
+            acceptLoops[i] = new Acceptor(serverChannel, eventLoops, (i * ioThreads / acceptors) % ioThreads);
+        }
+
+        LOG.info(ANSI_YELLOW + "Non-blocking server listening on port " + port
+                + " (" + acceptors + " acceptor(s), " + ioThreads + " I/O loop(s), " + threadPool.getKind() + " pool, " + overload + ")" + ANSI_RESET);
+
+        this.eventLoops = eventLoops;
+        this.acceptLoops = acceptLoops;
+        for (int i = 0; i < acceptors; i++) {
+            new Thread(acceptLoops[i], "nio-acceptor-" + i).start();
+        }
+    }
+
+    //GRACEFUL STOP
+        //1. the acceptors close their ServerSocketChannels - new connects are refused
+        //2. every event loop drains its connections: reads stop, requests already read are answered, each connection closes
+        //   once its replies are written (idle ones at once) - see Connection.drain()
+        //3. at the deadline the loops close whatever is left, then the pool is shut down
+    //Requests still in the client's socket buffer are not read - a client that pipelines sees its connection close after the
+    //replies to what was read, and resends the rest elsewhere, same as at max lifetime.
+    @Override
+    public void stop(long drainTimeout, TimeUnit unit) {
+        if (eventLoops == null || !stopping.compareAndSet(false, true)) {
+            return;
+        }
+        LOG.info(ANSI_YELLOW + "Non-blocking server stopping - draining {} connection(s) for up to {} ms" + ANSI_RESET,
+                connectionsAccepted.get() - connectionsClosed.get(), unit.toMillis(drainTimeout));
+        for (Acceptor acceptor : acceptLoops) {
+            acceptor.stop();
+        }
+        for (EventLoop loop : eventLoops) {
+            loop.drain();
+        }
+        new Thread(() -> {
+            try {
+                if (!awaitEventLoops(unit.toNanos(drainTimeout))) {
+                    LOG.warn(ANSI_RED + "Drain timeout over - closing {} connection(s)" + ANSI_RESET, connectionsAccepted.get() - connectionsClosed.get());
+                    for (EventLoop loop : eventLoops) {
+                        loop.closeAll();
                     }
+                    awaitEventLoops(TimeUnit.SECONDS.toNanos(1));
+                }
+                threadPool.shutdown();
+                threadPool.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                metrics.stopEndpoint();
+                LOG.info(ANSI_YELLOW + "Non-blocking server stopped" + ANSI_RESET);
+                terminated.countDown();
+            }
+        }, "nio-drain").start();
+    }
+
+    private boolean awaitEventLoops(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        for (EventLoop loop : eventLoops) {
+            if (!loop.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                    //ByteBuffer has a position pointer and a limit.
-                    //When you write data into the buffer (e.g., read()), the position advances.
-                    //Before you can read that data back out, you must reset the position to the beginning and set the limit to where the data ends.
-                    //flip() does exactly that
-                    buffer.flip();
-                    byte[] data = new byte[buffer.remaining()];
-                    buffer.get(data);
-                    String message = new String(data).trim();
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    private static boolean supportsReusePort() throws IOException {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    //called on the connection's EventLoop thread right after it was registered for OP_READ
+    void onAccepted(Connection connection) throws IOException {
+        SocketChannel clientChannel = connection.channel;
+        LOG.info(ANSI_CYAN + "Accepted connection from {}" + ANSI_RESET, clientChannel.getRemoteAddress());
+
+        //Send a greeting message to client immediately - queued, so a partial write is finished on OP_WRITE
+        //(not in HTTP - the client speaks first there)
+        if (!http) {
+            connection.write(encodeAscii("Hello " + clientChannel.getRemoteAddress()));
+        }
+    }
 
-                    threadPool.submit(() -> processMessage(clientChannel, message));
+    //called on the connection's EventLoop thread for every complete frame
+    //the frame is only a view into the connection's read buffer, so it is copied into its own pooled buffer
+    //before it leaves the loop thread - the connection queues it so pipelined requests are answered in order
+    void onFrame(Connection connection, ByteBuffer frame) {
+        ByteBuffer request = bufferPool.acquire(frame.remaining());
+        request.put(frame);
+        request.flip();
+        connection.enqueueRequest(request);
+    }
+
+    //called on the connection's EventLoop thread when a request is next in line
+    //a non-blocking handler runs right here - the loop is already on the right core with the request in cache
+    //a blocking one is handed to the thread pool, which then owns the request buffer and must release it
+    //over the concurrency limit or with the pool full the request is answered "Server busy" right here
+    //(or run right here with CALLER_RUNS, or parked with PAUSE_READS)
+    void dispatch(Connection connection, ByteBuffer request) {
+        long dispatchedNanos = System.nanoTime();
+        RequestHandler handler = this.handler;
+        if (!handler.isBlocking()) {
+            //nothing waits in a queue, so nothing for the limiter or the overload policy to protect
+            dispatchedInline.increment();
+            runRequest(handler, connection, request, dispatchedNanos, null);
+            return;
+        }
+        ConcurrencyLimiter limiter = this.limiter;
+        if (limiter != null && !limiter.tryAcquire()) {
+            rejectedLimit.increment();
+            reject(connection, request);
+            return;
+        }
+        if (threadPool.tryExecute(() -> runRequest(handler, connection, request, dispatchedNanos, limiter))) {
+            dispatchedPool.increment();
+            return;
+        }
+        switch (overload) {
+            case CALLER_RUNS:
+                //the event loop answers the request itself - it reads nothing from any of its connections meanwhile
+                dispatchedInline.increment();
+                runRequest(handler, connection, request, dispatchedNanos, limiter);
+                break;
+            case PAUSE_READS:
+                if (limiter != null) {
+                    limiter.onIgnore();
+                }
+                dispatchesPaused.increment();
+                connection.pauseDispatch(request);
+                pausedConnections.add(connection);
+                //a slot may have been freed between tryExecute() and the add - its resume found nobody parked yet
+                if (threadPool.hasFreeSlot()) {
+                    resumePausedConnection();
+                }
+                break;
+            default:
+                if (limiter != null) {
+                    limiter.onIgnore();
+                }
+                rejectedQueueFull.increment();
+                reject(connection, request);
+        }
+    }
+
+    //runs on a pool thread, or on the event loop for non-blocking handlers and with CALLER_RUNS
+    private void runRequest(RequestHandler handler, Connection connection, ByteBuffer request, long dispatchedNanos, ConcurrencyLimiter limiter) {
+        boolean failed = true;
+        try {
+            handler.handle(connection, request);
+            failed = false;
+            requestTime.recordNanos(System.nanoTime() - dispatchedNanos);
+        } catch (RuntimeException e) {
+            //the handler will never call requestDone() - without the close the connection would wait for it forever
+            //(and inline, the exception would unwind into the event loop)
+            LOG.error(ANSI_RED + "Request handler failed, closing connection" + ANSI_RESET, e);
+            connection.close();
+        } finally {
+            if (limiter != null) {
+                if (failed) {
+                    limiter.onDropped();
+                } else {
+                    limiter.onSuccess(dispatchedNanos);
                 }
             }
         }
     }
 
+    //called by the pool whenever a slot may have freed up, and by a parked connection that was closed meanwhile
+    //(so the slot meant for it goes to the next one)
+    void resumePausedConnection() {
+        Connection paused = pausedConnections.poll();
+        if (paused != null) {
+            paused.resumeDispatch();
+        }
+    }
+
+    //on the loop thread: the fast failure is answered in order with the other replies, and the connection stays usable
+    private void reject(Connection connection, ByteBuffer request) {
+        if (http) {
+            HttpRequest httpRequest = HttpRequest.view(request);
+            boolean keepAlive = httpRequest.isKeepAlive();
+            ByteBuffer response = httpText(503, OverloadPolicy.BUSY_RESPONSE, keepAlive, httpRequest.isHttp10(), httpRequest.isMethod("HEAD"));
+            bufferPool.release(request);
+            if (!keepAlive) {
+                connection.writeAndClose(response);
+                return;
+            }
+            connection.write(response);
+        } else {
+            bufferPool.release(request);
+            connection.write(encodeAscii(OverloadPolicy.BUSY_RESPONSE));
+        }
+        connection.requestDone();
+    }
+
+    //called on the loop thread when the decoder gave up on a connection's input - what to send before closing,
+    //null to close without a word (line and varint framing have no way to say what went wrong)
+    ByteBuffer decodeErrorReply(IOException e) {
+        if (!http) {
+            return null;
+        }
+        int status = e instanceof HttpException ? ((HttpException) e).status : 400;
+        return httpText(status, HttpResponse.reason(status), false, false, false);
+    }
+
     //to process the recieved message from client (here we give a number representing client id - hardcoded as 1 for each)
-    private void processMessage(SocketChannel clientChannel, String message) {
+    //non-blocking - runs inline on the connection's EventLoop (on a pool thread if marked blocking, the reply then hops back)
+    //the connection stays open for the next request - only a malformed request closes it
+    private void processMessage(Connection connection, ByteBuffer message) {
+        ResponseCache<FrameKey, ByteBuffer> cache = responseCache;
+        if (cache != null && replyFromCache(connection, message, cache.get(FrameKey.view(message), key -> cacheableReply(message)))) {
+            return;
+        }
+        int number;
         try {
-            int number = Integer.parseInt(message);
-            System.out.println(ANSI_RED + "Connection Ended by Client " + number + ANSI_RESET);
-            //if successfully number processed, send acknowledgement to client else catch block
-            ByteBuffer response = ByteBuffer.wrap(("Received number: " + number + "\n").getBytes());
-            clientChannel.write(response);
-            clientChannel.close();
-        } catch (NumberFormatException | IOException e) {
-            try {
-                clientChannel.write(ByteBuffer.wrap("Invalid number\n".getBytes()));
-                clientChannel.close();
-            } catch (IOException ex) {
-                // Ignore cleanup errors
+            //parsed straight out of the buffer - no byte[] or String copy of the request
+            number = parseNumber(message);
+        } catch (NumberFormatException e) {
+            invalidRequests.increment();
+            connection.writeAndClose(encodeAscii(INVALID_NUMBER));
+            return;
+        } finally {
+            bufferPool.release(message);
+        }
+        LOG.info(ANSI_RED + "Received number from Client {}" + ANSI_RESET, number);
+        //if successfully number processed, send acknowledgement to client
+        connection.write(numberReply(number));
+        requests.increment();
+        connection.requestDone();
+    }
+
+    //the reply is framed and encoded straight into a pooled buffer instead of String.getBytes() + ByteBuffer.wrap()
+    private ByteBuffer numberReply(int number) {
+        int payloadLength = RECEIVED_NUMBER.length() + digitCount(number);
+        ByteBuffer response = bufferPool.acquire(frameEncoder.encodedLength(payloadLength));
+        frameEncoder.writeHeader(response, payloadLength);
+        putAscii(response, RECEIVED_NUMBER);
+        putInt(response, number);
+        frameEncoder.writeTrailer(response);
+        response.flip();
+        return response;
+    }
+
+    //RESPONSE CACHE (setResponseCache)
+    //The loaders below run on a miss: they compute the reply like the handler would, into a read-only direct buffer of its own
+    //(ResponseCache.freeze), or return null when it must not be cached - the handler then takes its normal path.
+    //They leave the request buffer as they found it, the normal path may still need it.
+
+    //true if the cached reply answered the request - every connection writes its own duplicate() of the one stored buffer
+    //(own position and limit, same memory), so a hit copies no bytes at all; BufferPool.release() ignores it when written
+    private boolean replyFromCache(Connection connection, ByteBuffer message, ByteBuffer cached) {
+        if (cached == null) {
+            return false;
+        }
+        bufferPool.release(message);
+        connection.write(cached.duplicate());
+        requests.increment();
+        connection.requestDone();
+        return true;
+    }
+
+    private ByteBuffer cacheableReply(ByteBuffer message) {
+        int number;
+        try {
+            number = parseNumber(message);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        LOG.info(ANSI_RED + "Received number from Client {}" + ANSI_RESET, number);
+        return freeze(numberReply(number));
+    }
+
+    //only keep-alive replies - a hit never has to close the connection
+    private ByteBuffer cacheableHttpReply(ByteBuffer message) {
+        int position = message.position();
+        try {
+            HttpRequest request = HttpRequest.view(message);
+            boolean headOnly = request.isMethod("HEAD");
+            if (!request.isKeepAlive() || (!headOnly && !request.isMethod("GET") && !request.isMethod("POST"))) {
+                return null;
             }
+            int number = parseHttpNumber(request, message);
+            LOG.info(ANSI_RED + "Received number from Client {}" + ANSI_RESET, number);
+            return freeze(httpNumberReply(number, true, request.isHttp10(), headOnly));
+        } catch (NumberFormatException e) {
+            return null;
+        } finally {
+            //body() moves the position to the body
+            message.position(position);
+        }
+    }
+
+    private ByteBuffer freeze(ByteBuffer pooled) {
+        ByteBuffer frozen = ResponseCache.freeze(pooled);
+        bufferPool.release(pooled);
+        return frozen;
+    }
+
+    //HTTP mode (see setHttp): the number is the body (POST / with body "7") or the last path segment (GET /7), the reply is
+    //the same "Received number: 7" as a text/plain body. A bad number is answered 400 and the connection stays usable -
+    //only a request that cannot be framed closes it (decodeErrorReply). Persistent unless the client asks otherwise.
+    private void processHttp(Connection connection, ByteBuffer message) {
+        ResponseCache<FrameKey, ByteBuffer> cache = responseCache;
+        if (cache != null && replyFromCache(connection, message, cache.get(FrameKey.view(message), key -> cacheableHttpReply(message)))) {
+            return;
+        }
+        HttpRequest request = HttpRequest.view(message);
+        boolean keepAlive = request.isKeepAlive();
+        boolean http10 = request.isHttp10();
+        boolean headOnly = request.isMethod("HEAD");
+        int status = 200;
+        int number = 0;
+        try {
+            if (!headOnly && !request.isMethod("GET") && !request.isMethod("POST")) {
+                status = 501;
+            } else {
+                number = parseHttpNumber(request, message);
+            }
+        } catch (NumberFormatException e) {
+            invalidRequests.increment();
+            status = 400;
+        } finally {
+            bufferPool.release(message);
+        }
+
+        ByteBuffer response;
+        if (status == 200) {
+            LOG.info(ANSI_RED + "Received number from Client {}" + ANSI_RESET, number);
+            response = httpNumberReply(number, keepAlive, http10, headOnly);
+        } else {
+            response = httpText(status, status == 400 ? INVALID_NUMBER : HttpResponse.reason(status), keepAlive, http10, headOnly);
+        }
+        requests.increment();
+        if (!keepAlive) {
+            connection.writeAndClose(response);
+            return;
+        }
+        connection.write(response);
+        connection.requestDone();
+    }
+
+    //the number is the body, or else the last path segment without the query string
+    private static int parseHttpNumber(HttpRequest request, ByteBuffer message) {
+        if (request.bodyLength() > 0) {
+            return parseNumber(request.body());
+        }
+        int end = request.targetStart();
+        while (end < request.targetEnd() && message.get(end) != '?') {
+            end++;
+        }
+        int start = end;
+        while (start > request.targetStart() && message.get(start - 1) != '/') {
+            start--;
+        }
+        return parseNumber(message, start, end);
+    }
+
+    private ByteBuffer httpNumberReply(int number, boolean keepAlive, boolean http10, boolean headOnly) {
+        int payloadLength = RECEIVED_NUMBER.length() + digitCount(number);
+        ByteBuffer response = bufferPool.acquire(HttpResponse.MAX_HEAD_LENGTH + payloadLength);
+        HttpResponse.writeHead(response, 200, TEXT_PLAIN, payloadLength, keepAlive, http10);
+        if (!headOnly) {
+            putAscii(response, RECEIVED_NUMBER);
+            putInt(response, number);
+        }
+        response.flip();
+        return response;
+    }
+
+    //a complete text/plain response in a pooled buffer, ready to write
+    ByteBuffer httpText(int status, String text, boolean keepAlive, boolean http10, boolean headOnly) {
+        ByteBuffer response = bufferPool.acquire(HttpResponse.MAX_HEAD_LENGTH + text.length());
+        HttpResponse.writeHead(response, status, TEXT_PLAIN, text.length(), keepAlive, http10);
+        if (!headOnly) {
+            putAscii(response, text);
+        }
+        response.flip();
+        return response;
+    }
+
+    private static final String RECEIVED_NUMBER = "Received number: ";
+    private static final String INVALID_NUMBER = "Invalid number";
+    private static final String TEXT_PLAIN = "text/plain";
+
+    //one framed ASCII message in a pooled buffer, ready to write
+    private ByteBuffer encodeAscii(String payload) {
+        ByteBuffer buffer = bufferPool.acquire(frameEncoder.encodedLength(payload.length()));
+        frameEncoder.writeHeader(buffer, payload.length());
+        putAscii(buffer, payload);
+        frameEncoder.writeTrailer(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    //Integer.parseInt(new String(data).trim()) without the copies: skips surrounding whitespace, optional '-', digits only
+    static int parseNumber(ByteBuffer buffer) {
+        return parseNumber(buffer, buffer.position(), buffer.limit());
+    }
+
+    //same on the bytes [start, end) - position and limit are not used
+    static int parseNumber(ByteBuffer buffer, int start, int end) {
+        while (start < end && buffer.get(start) <= ' ') {
+            start++;
+        }
+        while (end > start && buffer.get(end - 1) <= ' ') {
+            end--;
+        }
+        boolean negative = start < end && buffer.get(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end) {
+            throw new NumberFormatException("empty message");
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("not a number");
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw new NumberFormatException("out of range");
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("out of range");
+        }
+        return (int) value;
+    }
+
+    static void putAscii(ByteBuffer buffer, CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    static int digitCount(int value) {
+        long v = Math.abs((long) value);
+        int digits = value < 0 ? 2 : 1;
+        while (v >= 10) {
+            v /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    //writes the decimal digits of value without going through Integer.toString()
+    static void putInt(ByteBuffer buffer, int value) {
+        putLong(buffer, value);
+    }
+
+    //same for a long (sizes, offsets) - up to 10^18, where divisor * 10 would overflow
+    static void putLong(ByteBuffer buffer, long value) {
+        long v = value;
+        if (v < 0) {
+            buffer.put((byte) '-');
+            v = -v;
+        }
+        long divisor = 1;
+        while (divisor * 10 <= v) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + (v / divisor) % 10));
         }
     }
 }
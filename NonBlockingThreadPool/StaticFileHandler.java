@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+//Serves files under a document root over HTTP (Server.setHttp() + setRequestHandler(new StaticFileHandler(...))).
+//GET /css/site.css -> <root>/css/site.css, a directory -> its index.html. GET and HEAD only.
+//
+//ZERO COPY - the file's bytes never pass through the JVM heap:
+    //1. small files (MappedFileCache.accepts) - memory-mapped once, cached, and each response writes a read-only view of the mapping
+    //2. bigger files - queued as a FileRegion, which the event loop sends with FileChannel.transferTo() (sendfile)
+//Range requests ("Range: bytes=0-99", "bytes=100-", "bytes=-100") get a 206 with just that range - the view is narrowed or the
+//region starts at the offset, nothing else changes. Several ranges in one request are answered with the whole file (200),
+//as HTTP allows; a range past the end gets a 416.
+//
+//Blocking: stat, open and map are file system calls, so the handler runs on the pool - the sending happens on the event loop.
+public class StaticFileHandler implements RequestHandler {
+    private final Server server;
+    private final BufferPool bufferPool;
+    private final Path root;
+    private final MappedFileCache cache;
+
+    public StaticFileHandler(Server server, Path root, MappedFileCache cache) {
+        this.server = server;
+        this.bufferPool = server.getBufferPool();
+        this.root = root.toAbsolutePath().normalize();
+        this.cache = cache;
+        cache.bindMetrics(server.getMetrics(), "nio");
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return true;
+    }
+
+    @Override
+    public void handle(Connection connection, ByteBuffer message) {
+        HttpRequest request = HttpRequest.view(message);
+        boolean keepAlive = request.isKeepAlive();
+        boolean http10 = request.isHttp10();
+        boolean headOnly = request.isMethod("HEAD");
+        int status = 200;
+        ByteBuffer mapped = null;
+        FileChannel file = null;
+        long size = 0;
+        long first = 0;
+        long last = -1;
+        String contentType = null;
+        try {
+            if (!headOnly && !request.isMethod("GET")) {
+                status = 501;
+            } else {
+                Path path = resolve(request);
+                BasicFileAttributes attributes = path == null ? null : Files.readAttributes(path, BasicFileAttributes.class);
+                if (attributes != null && attributes.isDirectory()) {
+                    path = path.resolve("index.html");
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                }
+                if (attributes == null || !attributes.isRegularFile()) {
+                    status = 404;
+                } else {
+                    contentType = contentType(path.getFileName().toString());
+                    //the size comes from what is actually sent - the file may change between the stat and here
+                    if (cache.accepts(attributes.size())) {
+                        mapped = cache.get(path, attributes);
+                        size = mapped.capacity();
+                    } else {
+                        file = FileChannel.open(path, StandardOpenOption.READ);
+                        size = file.size();
+                    }
+                    last = size - 1;
+                    int range = request.header("Range");
+                    //If-Range would need validators (ETag / Last-Modified) - without them the safe answer is the whole file
+                    if (range >= 0 && request.header("If-Range") < 0) {
+                        long[] bounds = parseRange(message, request.valueStart(range), request.valueEnd(range), size);
+                        if (bounds == UNSATISFIABLE) {
+                            status = 416;
+                        } else if (bounds != null) {
+                            status = 206;
+                            first = bounds[0];
+                            last = bounds[1];
+                        }
+                    }
+                }
+            }
+        } catch (NoSuchFileException | AccessDeniedException e) {
+            status = 404;
+        } catch (IOException e) {
+            Server.LOG.warn(Server.ANSI_RED + "Static file failed: {}" + Server.ANSI_RESET, e.getMessage());
+            status = 500;
+        } finally {
+            bufferPool.release(message);
+        }
+        server.requests.increment();
+
+        if (status != 200 && status != 206) {
+            if (file != null) {
+                closeQuietly(file);
+            }
+            ByteBuffer response;
+            if (status == 416) {
+                response = bufferPool.acquire(HttpResponse.MAX_HEAD_LENGTH);
+                HttpResponse.writeStatusLine(response, status);
+                HttpResponse.writeContentRange(response, -1, -1, size);
+                HttpResponse.writeContentLength(response, 0);
+                HttpResponse.endHead(response, keepAlive, http10);
+                response.flip();
+            } else {
+                response = server.httpText(status, HttpResponse.reason(status), keepAlive, http10, headOnly);
+            }
+            finish(connection, response, keepAlive);
+            return;
+        }
+
+        long length = last - first + 1;
+        ByteBuffer head = bufferPool.acquire(HttpResponse.MAX_HEAD_LENGTH);
+        HttpResponse.writeStatusLine(head, status);
+        HttpResponse.writeField(head, "Content-Type", contentType);
+        HttpResponse.writeField(head, "Accept-Ranges", "bytes");
+        HttpResponse.writeContentLength(head, length);
+        if (status == 206) {
+            HttpResponse.writeContentRange(head, first, last, size);
+        }
+        HttpResponse.endHead(head, keepAlive, http10);
+        head.flip();
+
+        if (headOnly || length == 0) {
+            if (file != null) {
+                closeQuietly(file);
+            }
+            finish(connection, head, keepAlive);
+            return;
+        }
+        connection.write(head);
+        if (mapped != null) {
+            mapped.limit((int) (last + 1)).position((int) first);
+            finish(connection, mapped, keepAlive);
+        } else {
+            FileRegion region = new FileRegion(file, first, length);
+            if (keepAlive) {
+                connection.writeFile(region);
+                connection.requestDone();
+            } else {
+                connection.writeFileAndClose(region);
+            }
+        }
+    }
+
+    private static void finish(Connection connection, ByteBuffer response, boolean keepAlive) {
+        if (keepAlive) {
+            connection.write(response);
+            connection.requestDone();
+        } else {
+            connection.writeAndClose(response);
+        }
+    }
+
+    //The file for the request target, null if it is outside the document root or not a valid path.
+    //Percent-decoded; "..", "." and duplicate slashes are normalized away before the root check.
+    private Path resolve(HttpRequest request) {
+        ByteBuffer buffer = request.buffer();
+        int end = request.targetStart();
+        while (end < request.targetEnd() && buffer.get(end) != '?') {
+            end++;
+        }
+        byte[] decoded = new byte[end - request.targetStart()];
+        int length = 0;
+        for (int i = request.targetStart(); i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == '%' && i + 2 < end) {
+                int high = Character.digit(buffer.get(i + 1), 16);
+                int low = Character.digit(buffer.get(i + 2), 16);
+                if (high < 0 || low < 0) {
+                    return null;
+                }
+                b = (byte) (high << 4 | low);
+                i += 2;
+            }
+            if (b == 0) {
+                return null;
+            }
+            decoded[length++] = b;
+        }
+        String relative = new String(decoded, 0, length, StandardCharsets.UTF_8);
+        while (relative.startsWith("/")) {
+            relative = relative.substring(1);
+        }
+        try {
+            Path path = root.resolve(relative).normalize();
+            return path.startsWith(root) ? path : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    //"bytes=first-last" | "bytes=first-" | "bytes=-suffix" -> {first, last} clamped to the file, UNSATISFIABLE for a range
+    //that starts past the end, null (ignore the header) for anything else - other units, several ranges, malformed
+    static long[] parseRange(ByteBuffer buffer, int start, int end, long size) {
+        if (!HttpRequest.startsWith(buffer, start, end, "bytes=")) {
+            return null;
+        }
+        int i = start + "bytes=".length();
+        long first = -1;
+        long last = -1;
+        int digits = 0;
+        for (; i < end && Character.isDigit(buffer.get(i)) && digits < 18; i++, digits++) {
+            first = (first < 0 ? 0 : first * 10) + buffer.get(i) - '0';
+        }
+        if (i == end || buffer.get(i) != '-') {
+            return null;
+        }
+        i++;
+        digits = 0;
+        for (; i < end && Character.isDigit(buffer.get(i)) && digits < 18; i++, digits++) {
+            last = (last < 0 ? 0 : last * 10) + buffer.get(i) - '0';
+        }
+        if (i != end || (first < 0 && last < 0)) {
+            return null;
+        }
+        if (first < 0) {
+            //suffix: the last N bytes
+            if (last == 0 || size == 0) {
+                return UNSATISFIABLE;
+            }
+            return new long[] {Math.max(0, size - last), size - 1};
+        }
+        if (last >= 0 && last < first) {
+            return null;
+        }
+        if (first >= size) {
+            return UNSATISFIABLE;
+        }
+        return new long[] {first, last < 0 || last >= size ? size - 1 : last};
+    }
+
+    //by file name extension - browsers need it for html/css/js/images, anything unknown is plain bytes
+    static String contentType(String fileName) {
+        String extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
+        switch (extension) {
+            case "html":
+            case "htm":
+                return "text/html; charset=utf-8";
+            case "css":
+                return "text/css; charset=utf-8";
+            case "js":
+                return "text/javascript; charset=utf-8";
+            case "json":
+                return "application/json";
+            case "txt":
+                return "text/plain; charset=utf-8";
+            case "png":
+                return "image/png";
+            case "jpg":
+            case "jpeg":
+                return "image/jpeg";
+            case "svg":
+                return "image/svg+xml";
+            case "pdf":
+                return "application/pdf";
+            default:
+                return "application/octet-stream";
+        }
+    }
+
+    private static void closeQuietly(FileChannel file) {
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
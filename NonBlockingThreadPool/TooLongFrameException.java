@@ -0,0 +1,10 @@
+import java.io.IOException;
+
+//Thrown by a FrameDecoder when a frame is bigger than the configured maximum - the connection is closed instead of buffering it
+public class TooLongFrameException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public TooLongFrameException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,52 @@
+import java.nio.ByteBuffer;
+
+//Length prefixed frames: a base-128 varint length (7 bits per byte, high bit = more bytes follow, like protobuf) and then that many payload bytes.
+//Unlike a delimiter the payload may contain any byte, and the decoder never has to scan it.
+public class VarintFrameDecoder implements FrameDecoder {
+    private final int maxFrameLength;
+
+    public VarintFrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public void decode(ByteBuffer in, FrameSink sink) throws TooLongFrameException {
+        int limit = in.limit();
+        int frameStart = in.position();
+        while (frameStart < limit) {
+            //read the varint header without moving the position
+            int length = 0;
+            int shift = 0;
+            int i = frameStart;
+            boolean complete = false;
+            while (i < limit) {
+                byte b = in.get(i++);
+                length |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    complete = true;
+                    break;
+                }
+                shift += 7;
+                if (shift > 28) {
+                    throw new TooLongFrameException("Malformed varint length");
+                }
+            }
+            if (!complete) {
+                break;
+            }
+            if (length < 0 || length > maxFrameLength) {
+                throw new TooLongFrameException("Frame of " + length + " bytes exceeds " + maxFrameLength);
+            }
+            if (limit - i < length) {
+                //payload not fully here yet
+                break;
+            }
+            in.limit(i + length);
+            in.position(i);
+            sink.onFrame(in);
+            in.limit(limit);
+            frameStart = i + length;
+        }
+        in.position(frameStart);
+    }
+}
@@ -0,0 +1,31 @@
+import java.nio.ByteBuffer;
+
+//Writes the base-128 varint length read by VarintFrameDecoder in front of each payload
+public class VarintFrameEncoder implements FrameEncoder {
+    @Override
+    public int headerLength(int payloadLength) {
+        int bytes = 1;
+        while ((payloadLength >>>= 7) != 0) {
+            bytes++;
+        }
+        return bytes;
+    }
+
+    @Override
+    public void writeHeader(ByteBuffer out, int payloadLength) {
+        while ((payloadLength & ~0x7F) != 0) {
+            out.put((byte) ((payloadLength & 0x7F) | 0x80));
+            payloadLength >>>= 7;
+        }
+        out.put((byte) payloadLength);
+    }
+
+    @Override
+    public int trailerLength() {
+        return 0;
+    }
+
+    @Override
+    public void writeTrailer(ByteBuffer out) {
+    }
+}
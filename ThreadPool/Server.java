@@ -2,12 +2,10 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
-public class Server {
+public class Server implements Lifecycle {
     //To colour terminal text
     public static final String ANSI_RESET = "\u001B[0m";
     public static final String ANSI_BLACK = "\u001B[30m";
@@ -19,13 +17,43 @@ public class Server {
     public static final String ANSI_CYAN = "\u001B[36m";
     public static final String ANSI_WHITE = "\u001B[37m";
 
+    //handler threads only enqueue log records - the console is written by the logger's own thread
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
 
-    // Thread pool to manage a fixed number of worker threads for handling clients
-    private final ExecutorService threadPool;
+    // Runs handleClient for every accepted client - a fixed thread pool unless another execution mode is chosen
+    private final ConnectionHandler connectionHandler;
+    // Accept loop + graceful stop around the connection handler
+    private final BlockingServer acceptor;
 
     // Constructor initializes the thread pool with a given size
     public Server(int poolSize) {
-        this.threadPool = Executors.newFixedThreadPool(poolSize);
+        this(ConnectionHandler.Mode.FIXED_POOL, poolSize);
+    }
+
+    public Server(ConnectionHandler.Mode mode, int poolSize) {
+        this(mode, poolSize, ConnectionHandler.DEFAULT_QUEUE_CAPACITY, OverloadPolicy.FAIL_FAST);
+    }
+
+    // Bounded queue: at most queueCapacity clients wait for a pool thread, the overload policy decides about the rest
+    public Server(ConnectionHandler.Mode mode, int poolSize, int queueCapacity, OverloadPolicy overload) {
+        this.connectionHandler = new ConnectionHandler(mode, poolSize, queueCapacity, overload, this::handleClient);
+        this.acceptor = new BlockingServer("ThreadPool", connectionHandler);
+    }
+
+    // LIFECYCLE - see Lifecycle: start() returns once the port is bound, stop() drains the clients already accepted
+    @Override
+    public void start(int port) throws IOException {
+        acceptor.start(port);
+    }
+
+    @Override
+    public void stop(long drainTimeout, TimeUnit unit) {
+        acceptor.stop(drainTimeout, unit);
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return acceptor.awaitTermination(timeout, unit);
     }
 
     // Logic to handle an individual client connection
@@ -38,36 +66,53 @@ public class Server {
             int number=Integer.parseInt(line);
 
             //End of while loop means end of 1 connection
-            System.out.println();
-            System.out.println(ANSI_RED+"Connection Ended by Client "+(number)+ANSI_RESET);
+            LOG.info(ANSI_RED+"Connection Ended by Client {}"+ANSI_RESET, number);
         } catch (IOException ex) {
-            ex.printStackTrace();
+            LOG.error("Client handler failed", ex);
         }
     }
 
     // Main method starts the server and listens for incoming connections
+    // Optional first argument picks the execution mode: FIXED_POOL (default), WORK_STEALING_POOL, PLATFORM_PER_CONNECTION or VIRTUAL_PER_CONNECTION
+    // Optional second argument the overload policy: FAIL_FAST (default) or CALLER_RUNS
+    // Optional third argument adds an adaptive concurrency limit: aimd or gradient (default none)
     public static void main(String[] args) {
         int port = 8010; // Port number where the server will listen
-        int poolSize = 10; // Maximum number of concurrent client handler threads
-        Server server = new Server(poolSize); // Create the server with thread pool
+        int cores = Runtime.getRuntime().availableProcessors();
+        int poolSize = cores * 2; // Starting number of client handler threads (pool modes only) - the auto tuner takes it from there
+        int minThreads = 2;
+        int maxThreads = Math.max(64, cores * 16); // handlers block on the socket, so well above the core count
+        int queueCapacity = 100; // Clients allowed to wait for a pool thread before the overload policy kicks in (pool modes only)
+        int initialLimit = 20; // Starting point of the adaptive concurrency limit
+        ConnectionHandler.Mode mode = ConnectionHandler.modeFromArgs(args, ConnectionHandler.Mode.FIXED_POOL);
+        OverloadPolicy overload = args.length > 1 ? OverloadPolicy.valueOf(args[1].toUpperCase()) : OverloadPolicy.FAIL_FAST;
+        Server server = new Server(mode, poolSize, queueCapacity, overload); // Create the server with thread pool
+        if (server.connectionHandler.getPool() != null) {
+            new PoolAutoTuner(server.connectionHandler.getPool(), minThreads, maxThreads, 1000).start();
+        }
+        if (args.length > 2 && !args[2].equalsIgnoreCase("none")) {
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter(LimitAlgorithm.byName(args[2]), initialLimit);
+            limiter.bindMetrics(server.connectionHandler.getMetrics(), "blocking");
+            server.connectionHandler.setConcurrencyLimiter(limiter);
+        }
+        int metricsPort = 9010; // plain text metrics at http://localhost:9010/metrics
+        long drainSeconds = 10; // on SIGTERM / Ctrl+C: stop accepting, give accepted clients this long, then close them
 
         try {
-            ServerSocket serverSocket = new ServerSocket(port); // Create a listening socket on the specified port
-            serverSocket.setSoTimeout(20000); // Set a timeout for accepting connections (70 seconds)
-            System.out.println("Server is listening on port " + port);
-
-            while (true) {
-                // Wait for a client to connect (blocks until connection arrives or timeout occurs)
-                Socket clientSocket = serverSocket.accept();
-
-                // Submit the client handling task to the thread pool for execution
-                server.threadPool.execute(() -> server.handleClient(clientSocket));
-            }
+            server.connectionHandler.getMetrics().registerJmx("webserver:type=ThreadPool");
+            server.connectionHandler.getMetrics().startEndpoint(metricsPort);
+            // Listening socket + accept thread - every accepted client is submitted to the thread pool
+            server.start(port);
+            LOG.info("Server is listening on port {} ({}, " + overload + ")", port, mode);
+            // Shutdown the thread pool gracefully when the JVM is asked to stop
+            Lifecycle.stopOnShutdown(server, drainSeconds, TimeUnit.SECONDS);
+            server.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
         } catch (IOException ex) {
-            ex.printStackTrace();
-        } finally {
-            // Shutdown the thread pool gracefully when the server stops
-            server.threadPool.shutdown();
+            LOG.error("Server stopped", ex);
+            server.connectionHandler.shutdown();
+            server.connectionHandler.getMetrics().stopEndpoint();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
 }
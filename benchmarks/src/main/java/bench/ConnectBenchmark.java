@@ -0,0 +1,69 @@
+package bench;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//Accept rate: every operation opens `connections` new connections at once, sends the client number on each,
+//waits for one line back on each and closes them - the original "connect, send a number, get a line, close" protocol
+//that all five variants speak. connections/s = ops/s x connections.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=1")
+public class ConnectBenchmark {
+    private static final byte[] REQUEST = "1\n".getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"SINGLE_THREADED", "MULTI_THREADED", "THREAD_POOL", "NON_BLOCKING", "ASYNC", "LOAD_BALANCER", "LOAD_BALANCER_NIO"})
+    public ServerVariant variant;
+
+    @Param({"1", "8", "32"})
+    public int connections;
+
+    private Socket[] sockets;
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        ServerLauncher.start(variant);
+        sockets = new Socket[connections];
+    }
+
+    @Benchmark
+    public int connectSendReceive() throws IOException {
+        int bytes = 0;
+        try {
+            for (int i = 0; i < connections; i++) {
+                sockets[i] = new Socket("localhost", variant.port());
+                sockets[i].setTcpNoDelay(true);
+                sockets[i].getOutputStream().write(REQUEST);
+            }
+            for (int i = 0; i < connections; i++) {
+                bytes += LineIo.skipLine(sockets[i].getInputStream());
+            }
+        } finally {
+            for (int i = 0; i < connections; i++) {
+                if (sockets[i] != null) {
+                    sockets[i].close();
+                    sockets[i] = null;
+                }
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,23 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+//Minimal line reading for the benchmark clients - BufferedReader would add a decoder and a String per line to the measured allocations
+final class LineIo {
+    private LineIo() {
+    }
+
+    //reads up to and including '\n', returns the number of bytes read
+    static int skipLine(InputStream in) throws IOException {
+        int count = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            count++;
+            if (b == '\n') {
+                return count;
+            }
+        }
+        throw new IOException("Connection closed after " + count + " bytes without a complete line");
+    }
+}
@@ -0,0 +1,90 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//Request round trip on already open keep-alive connections (only the variants that answer more than one request per connection).
+//Every operation sends one request on each of the `connections` connections and waits for all replies, so the sampled time
+//is the latency of a batch of concurrent requests. payloadSize pads the request line with leading spaces, which the servers trim.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=1")
+public class RoundTripBenchmark {
+
+    @Param({"NON_BLOCKING", "ASYNC", "LOAD_BALANCER", "LOAD_BALANCER_NIO", "LOAD_BALANCER_FRAMED"})
+    public ServerVariant variant;
+
+    @Param({"1", "16", "64"})
+    public int connections;
+
+    @Param({"16", "1024", "4096"})
+    public int payloadSize;
+
+    private Socket[] sockets;
+    private OutputStream[] outs;
+    private InputStream[] ins;
+    private byte[] request;
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        ServerLauncher.start(variant);
+        request = new byte[payloadSize];
+        Arrays.fill(request, (byte) ' ');
+        request[payloadSize - 2] = '1';
+        request[payloadSize - 1] = '\n';
+
+        sockets = new Socket[connections];
+        outs = new OutputStream[connections];
+        ins = new InputStream[connections];
+        for (int i = 0; i < connections; i++) {
+            sockets[i] = new Socket("localhost", variant.port());
+            sockets[i].setTcpNoDelay(true);
+            outs[i] = sockets[i].getOutputStream();
+            ins[i] = new BufferedInputStream(sockets[i].getInputStream());
+            //every variant greets a new connection first
+            LineIo.skipLine(ins[i]);
+        }
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        for (int i = 0; i < connections; i++) {
+            outs[i].write(request);
+        }
+        int bytes = 0;
+        for (int i = 0; i < connections; i++) {
+            bytes += LineIo.skipLine(ins[i]);
+        }
+        return bytes;
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+//Starts a server variant inside the benchmark JVM: its module jars go into a fresh class loader (the variants' classes are
+//all in the default package and clash with each other), every main() runs on a daemon thread, and we wait until its port accepts.
+//JMH forks a new JVM per benchmark, so one variant is loaded per fork and the ports are free again for the next one.
+final class ServerLauncher {
+    private static final long STARTUP_TIMEOUT_MILLIS = 10_000;
+
+    private ServerLauncher() {
+    }
+
+    static void start(ServerVariant variant) throws Exception {
+        //the servers print a line per connection - keep that console traffic out of the measurement
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        URL[] urls = new URL[variant.jars.length];
+        for (int i = 0; i < urls.length; i++) {
+            Path jar = serversDir().resolve(variant.jars[i] + ".jar");
+            if (!Files.exists(jar)) {
+                throw new IllegalStateException(jar + " not found - build with mvn package first");
+            }
+            urls[i] = jar.toUri().toURL();
+        }
+        ClassLoader loader = new URLClassLoader(urls, ClassLoader.getPlatformClassLoader());
+
+        for (ServerVariant.Main main : variant.mains) {
+            Method mainMethod = loader.loadClass(main.className).getMethod("main", String[].class);
+            Thread thread = new Thread(() -> {
+                try {
+                    mainMethod.invoke(null, (Object) main.args);
+                } catch (ReflectiveOperationException e) {
+                    e.printStackTrace();
+                }
+            }, "bench-" + main.className);
+            thread.setDaemon(true);
+            thread.start();
+            awaitPort(main.port);
+        }
+    }
+
+    //benchmarks.jar sits in target/, the server jars are copied to target/servers
+    private static Path serversDir() throws Exception {
+        Path benchmarksJar = Paths.get(ServerLauncher.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        return benchmarksJar.getParent().resolve("servers");
+    }
+
+    private static void awaitPort(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", port), 200);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Nothing listening on port " + port + " after " + STARTUP_TIMEOUT_MILLIS + " ms");
+    }
+}
@@ -0,0 +1,48 @@
+package bench;
+
+//The server variants under benchmark: which module jars to load and which main classes to start, in order.
+//The client always connects to the port of the last one.
+public enum ServerVariant {
+    SINGLE_THREADED(new String[]{"single-threaded"}, main("Server", 8010)),
+    MULTI_THREADED(new String[]{"multi-threaded", "common"}, main("Server", 8010)),
+    THREAD_POOL(new String[]{"thread-pool", "common"}, main("Server", 8010)),
+    NON_BLOCKING(new String[]{"non-blocking-thread-pool", "common"}, main("Server", 8010)),
+    //NIO.2 completion handlers instead of the selector reactor - same module, same protocol
+    ASYNC(new String[]{"non-blocking-thread-pool", "common"}, main("AsyncServer", 8010)),
+    //the load balancer modes all sit in front of the two keep-alive backends
+    LOAD_BALANCER(new String[]{"load-balancer", "common"},
+            main("BackendServer", 8011, "8011"), main("BackendServer", 8012, "8012"), main("LoadBalancer", 8010)),
+    LOAD_BALANCER_NIO(new String[]{"load-balancer", "common"},
+            main("BackendServer", 8011, "8011"), main("BackendServer", 8012, "8012"), main("LoadBalancer", 8010, "nio")),
+    LOAD_BALANCER_FRAMED(new String[]{"load-balancer", "common"},
+            main("BackendServer", 8011, "8011"), main("BackendServer", 8012, "8012"), main("LoadBalancer", 8010, "framed"));
+
+    //main class + the port it listens on once started + its arguments
+    static final class Main {
+        final String className;
+        final int port;
+        final String[] args;
+
+        Main(String className, int port, String[] args) {
+            this.className = className;
+            this.port = port;
+            this.args = args;
+        }
+    }
+
+    final String[] jars;
+    final Main[] mains;
+
+    ServerVariant(String[] jars, Main... mains) {
+        this.jars = jars;
+        this.mains = mains;
+    }
+
+    int port() {
+        return mains[mains.length - 1].port;
+    }
+
+    private static Main main(String className, int port, String... args) {
+        return new Main(className, port, args);
+    }
+}